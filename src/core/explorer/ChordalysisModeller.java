@@ -23,6 +23,7 @@ import core.lattice.Lattice;
 import core.model.DecomposableModel;
 import core.model.GraphAction;
 import core.stats.MyPriorityQueue;
+import core.stats.StatisticsService;
 import core.stats.scorer.GraphActionScorer;
 
 /**
@@ -41,6 +42,7 @@ public abstract class ChordalysisModeller{
   protected ArrayList<GraphAction>  operationsPerformed;
   protected GraphActionScorer       scorer;
   protected int                     maxNSteps;
+  protected int                     nbThreads;
 
   // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
   // Constructors
@@ -62,6 +64,7 @@ public abstract class ChordalysisModeller{
     this.lattice              = data.lattice;
     // Other:
     this.maxNSteps            = Integer.MAX_VALUE;
+    this.nbThreads            = Runtime.getRuntime().availableProcessors();
     this.operationsPerformed  = new ArrayList<GraphAction>();
     // Warning: null pointers
     this.scorer               = null; // Must be init by subclasses
@@ -87,6 +90,15 @@ public abstract class ChordalysisModeller{
 
   public void setMaxNSteps(int nSteps){ this.maxNSteps = nSteps; }
 
+  /** Number of threads used to precompute the statistics of all the pairs of variables (defaults to the number of processors). */
+  public void setNbThreads(int nbThreads){ this.nbThreads = nbThreads; }
+
+  /**
+   * Bounds the number of sets of variables whose statistics are cached for the lattice (unbounded by default);
+   * the cliques and separators of the current model are never evicted. @see StatisticsService#setCapacity(int)
+   */
+  public void setCacheCapacity(int capacity){ StatisticsService.forLattice(lattice).setCapacity(capacity); }
+
   // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
   // Abstract methods
   // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
@@ -111,6 +123,8 @@ public abstract class ChordalysisModeller{
     int vl      = this.lattice.getNbVariables();
     this.scorer = initScorer();
     this.pq     = new MyPriorityQueue(vl, bestModel, scorer);
+    // every pair is scored by the first step: their tables are counted in parallel
+    this.scorer.precomputePairs(nbThreads);
     // --- 2 ---
     for (int i = 0; i < vl; i++) {
       for (int j = i + 1; j < vl; j++) {
@@ -17,6 +17,9 @@
  ******************************************************************************/
 package core.explorer;
 
+import java.util.Random;
+
+import core.lattice.Lattice;
 import core.model.ScoredGraphAction;
 import core.stats.EntropyComputer;
 import core.stats.scorer.GraphActionScorer;
@@ -33,6 +36,10 @@ import core.stats.scorer.GraphActionScorerPValue;
 public class ChordalysisModellingSMT extends ChordalysisModeller{
 
   double pValueThreshold;
+  /** number of rows the candidates are scored on, 0 to use all the rows (@see #setSampling(int, double, long)) */
+  int sampleSize = 0;
+  double samplingConfidence;
+  long samplingSeed;
   /**
    * Default constructor
    * 
@@ -44,9 +51,36 @@ public class ChordalysisModellingSMT extends ChordalysisModeller{
     this.pValueThreshold = pValueThreshold;
   }
 
+  /**
+   * Scores the candidate edges on a uniform sample of the rows rather than on
+   * all of them; only the candidates whose p-value is within its confidence
+   * interval from the corrected threshold are re-scored with the exact counts
+   * before being accepted or rejected. Must be called before building the
+   * model.
+   * 
+   * @param sampleSize
+   *            number of rows to sample (0 to use all the rows, the default)
+   * @param confidence
+   *            confidence level of the intervals of the sampled p-values
+   *            (e.g. 0.99)
+   * @param seed
+   *            seed for drawing the sample
+   */
+  public void setSampling(int sampleSize, double confidence, long seed) {
+    this.sampleSize = sampleSize;
+    this.samplingConfidence = confidence;
+    this.samplingSeed = seed;
+  }
+
   @Override
   protected GraphActionScorer initScorer() {
     EntropyComputer entropyComputer = new EntropyComputer(this.lattice);
+    if (sampleSize > 0) {
+      Lattice sample = this.lattice.sample(sampleSize, new Random(samplingSeed));
+      if (sample.isSample()) {
+        return new GraphActionScorerPValue(new EntropyComputer(sample), entropyComputer, samplingConfidence);
+      }
+    }
     return new GraphActionScorerPValue(entropyComputer);
   }
 
@@ -63,6 +97,12 @@ public class ChordalysisModellingSMT extends ChordalysisModeller{
       // System.out.println(pq);
       ScoredGraphAction todo = pq.poll();
 
+      if (scorer instanceof GraphActionScorerPValue && ((GraphActionScorerPValue) scorer).isBorderline(todo, correctedPValueThreshold)) {
+        // the decision could change with the exact counts
+        pq.offerRescored(((GraphActionScorerPValue) scorer).scoreEdgeExactly(bestModel, todo));
+        continue;
+      }
+
       if (todo.getScore()> correctedPValueThreshold) {
         break;
       }
@@ -0,0 +1,35 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.lattice;
+
+/**
+ * Receives the non-empty cells of the matrix of a node, one (index, count)
+ * pair at a time, without any boxing nor intermediate table (@see
+ * LatticeNode#forEachCell(CellConsumer)).
+ */
+public interface CellConsumer {
+
+  /**
+   * @param index
+   *            the index of the cell (as for {@link LatticeNode#getMatrix()},
+   *            but on 64 bits)
+   * @param count
+   *            the number of records in the cell, never 0
+   */
+  void accept(long index, int count);
+}
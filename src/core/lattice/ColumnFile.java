@@ -0,0 +1,295 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.lattice;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Columnar file storing the data of a {@link Lattice}: the TID set of every
+ * value of every variable, as dense words, written once and then read back by
+ * mapping the file in memory ({@link Lattice#Lattice(File)}), so that the data
+ * does not have to be loaded on the heap (nor parsed) again.
+ * <p>
+ * Format (little endian):
+ * <pre>
+ * header     magic (long), version, nbVariables, nbRows, hasWeights (ints)
+ *            number of values for every variable (ints)
+ * directory  for every value of every variable: offset of its words in the
+ *            file (long), number of words (int, -1 for an implicit value),
+ *            cardinality (int)
+ * weights    the weight of every row (ints), if hasWeights
+ * words      the words of every set, starting at offsets multiple of 8
+ * </pre>
+ */
+public final class ColumnFile {
+
+  /** "CHRDCOLS" */
+  static final long MAGIC = 0x43485244434f4c53L;
+  static final int VERSION = 1;
+
+  private static final int HEADER_BYTES = 8 + 4 * 4;
+  private static final int DIRECTORY_ENTRY_BYTES = 8 + 4 + 4;
+
+  /** largest mapping of the words (a mapped buffer is limited to 2GB) */
+  private static final long MAX_CHUNK_BYTES = Integer.MAX_VALUE & ~7L;
+  /** number of weights written or read at once */
+  private static final int WEIGHTS_PER_CHUNK = 1 << 16;
+
+  int nbVariables;
+  int nbRows;
+  int[] nbValuesForAttribute;
+  TIDSet[][] sets;
+  int[] weights;
+
+  private ColumnFile() {
+  }
+
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+  // Writing
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+
+  /**
+   * Writes the data of a lattice (its rows and their weights, in any
+   * representation of TID sets).
+   *
+   * @param file
+   *            the file to write (overwritten if it exists)
+   * @param lattice
+   *            the lattice holding the data; it cannot be a masked view
+   * @throws IOException
+   */
+  public static void write(File file, Lattice lattice) throws IOException {
+    if (lattice.isMasked()) {
+      throw new IllegalArgumentException("The data of a masked lattice cannot be written: write the full lattice");
+    }
+    int nbVariables = lattice.getNbVariables();
+    int nbRows = lattice.getNbRows();
+    int[] nbValuesForAttribute = lattice.getnbValuesForAttribute();
+    TIDSet[][] data = lattice.getData();
+
+    // words of every set, to know the directory before writing them
+    long[][][] words = new long[nbVariables][][];
+    int nbSets = 0;
+    for (int a = 0; a < nbVariables; a++) {
+      words[a] = new long[data[a].length][];
+      for (int v = 0; v < data[a].length; v++) {
+        if (data[a][v] != null) {
+          words[a][v] = (data[a][v] instanceof DenseTIDSet) ? ((DenseTIDSet) data[a][v]).words : data[a][v].toBitSet().toLongArray();
+        }
+        nbSets++;
+      }
+    }
+
+    // header and directory on the heap, the weights are written separately
+    long metadataBytes = HEADER_BYTES + 4L * nbVariables + (long) DIRECTORY_ENTRY_BYTES * nbSets;
+    if (metadataBytes > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many values (" + nbSets + ") for a column file");
+    }
+    long weightsBytes = (lattice.weights != null) ? 4L * nbRows : 0L;
+    long dataOffset = (metadataBytes + weightsBytes + 7L) & ~7L;
+    ByteBuffer metadata = ByteBuffer.allocate((int) metadataBytes).order(ByteOrder.LITTLE_ENDIAN);
+    metadata.putLong(MAGIC);
+    metadata.putInt(VERSION);
+    metadata.putInt(nbVariables);
+    metadata.putInt(nbRows);
+    metadata.putInt(lattice.weights != null ? 1 : 0);
+    for (int a = 0; a < nbVariables; a++) {
+      metadata.putInt(nbValuesForAttribute[a]);
+    }
+    long offset = dataOffset;
+    for (int a = 0; a < nbVariables; a++) {
+      for (int v = 0; v < words[a].length; v++) {
+        if (words[a][v] == null) {
+          metadata.putLong(0L);
+          metadata.putInt(-1);
+          metadata.putInt(0);
+        } else {
+          metadata.putLong(offset);
+          metadata.putInt(words[a][v].length);
+          metadata.putInt(data[a][v].cardinality());
+          offset += 8L * words[a][v].length;
+        }
+      }
+    }
+    metadata.rewind();
+
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      FileChannel channel = out.getChannel();
+      writeFully(channel, metadata);
+      if (lattice.weights != null) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * Math.min(nbRows, WEIGHTS_PER_CHUNK)).order(ByteOrder.LITTLE_ENDIAN);
+        for (int from = 0; from < nbRows; from += WEIGHTS_PER_CHUNK) {
+          int length = Math.min(WEIGHTS_PER_CHUNK, nbRows - from);
+          buffer.clear();
+          buffer.asIntBuffer().put(lattice.weights, from, length);
+          buffer.limit(4 * length);
+          writeFully(channel, buffer);
+        }
+      }
+      // padding: the words start at a multiple of 8
+      writeFully(channel, ByteBuffer.allocate((int) (dataOffset - metadataBytes - weightsBytes)));
+      for (int a = 0; a < nbVariables; a++) {
+        for (int v = 0; v < words[a].length; v++) {
+          if (words[a][v] != null) {
+            ByteBuffer buffer = ByteBuffer.allocate(8 * words[a][v].length).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.asLongBuffer().put(words[a][v]);
+            writeFully(channel, buffer);
+          }
+        }
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+  // Reading
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+
+  /**
+   * Maps a column file in memory. The words are mapped in as few chunks as
+   * possible (a chunk is limited to the 2GB of a mapped buffer, and never
+   * splits a set) rather than one mapping per set, which would quickly reach
+   * the limit of mappings per process of the OS; every TID set is a slice of
+   * its chunk, as a {@link MappedTIDSet}. Only the metadata and the weights
+   * are read on the heap.
+   *
+   * @param file
+   *            a file written by {@link #write(File, Lattice)}
+   * @return the content of the file
+   * @throws IOException
+   */
+  static ColumnFile open(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      ColumnFile columns = new ColumnFile();
+
+      ByteBuffer header = map(channel, 0L, HEADER_BYTES);
+      if (header.getLong() != MAGIC) {
+        throw new IOException(file + " is not a Chordalysis column file");
+      }
+      int version = header.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported version of column file: " + version);
+      }
+      columns.nbVariables = header.getInt();
+      columns.nbRows = header.getInt();
+      boolean hasWeights = header.getInt() != 0;
+
+      ByteBuffer dims = map(channel, HEADER_BYTES, 4L * columns.nbVariables);
+      columns.nbValuesForAttribute = new int[columns.nbVariables];
+      int nbSets = 0;
+      for (int a = 0; a < columns.nbVariables; a++) {
+        columns.nbValuesForAttribute[a] = dims.getInt();
+        nbSets += columns.nbValuesForAttribute[a];
+      }
+
+      long directoryOffset = HEADER_BYTES + 4L * columns.nbVariables;
+      ByteBuffer directory = map(channel, directoryOffset, (long) DIRECTORY_ENTRY_BYTES * nbSets);
+      long[] offsets = new long[nbSets];
+      int[] nbWords = new int[nbSets];
+      int[] cardinalities = new int[nbSets];
+      for (int s = 0; s < nbSets; s++) {
+        offsets[s] = directory.getLong();
+        nbWords[s] = directory.getInt();
+        cardinalities[s] = directory.getInt();
+      }
+
+      columns.sets = new TIDSet[columns.nbVariables][];
+      ByteBuffer chunk = null;
+      long chunkStart = 0L;
+      for (int a = 0, s = 0; a < columns.nbVariables; a++) {
+        columns.sets[a] = new TIDSet[columns.nbValuesForAttribute[a]];
+        for (int v = 0; v < columns.sets[a].length; v++, s++) {
+          if (nbWords[s] < 0) {
+            continue;
+          }
+          long end = offsets[s] + 8L * nbWords[s];
+          if (chunk == null || offsets[s] < chunkStart || end > chunkStart + chunk.capacity()) {
+            // next chunk: from this set to as many following sets as fit
+            chunkStart = offsets[s];
+            long chunkEnd = end;
+            for (int t = s + 1; t < nbSets; t++) {
+              if (nbWords[t] < 0) {
+                continue;
+              }
+              long tEnd = offsets[t] + 8L * nbWords[t];
+              if (offsets[t] < chunkStart || tEnd - chunkStart > MAX_CHUNK_BYTES) {
+                break;
+              }
+              chunkEnd = Math.max(chunkEnd, tEnd);
+            }
+            chunk = map(channel, chunkStart, chunkEnd - chunkStart);
+          }
+          columns.sets[a][v] = new MappedTIDSet(slice(chunk, (int) (offsets[s] - chunkStart), 8 * nbWords[s]).asLongBuffer(), cardinalities[s]);
+        }
+      }
+
+      if (hasWeights) {
+        long weightsOffset = directoryOffset + (long) DIRECTORY_ENTRY_BYTES * nbSets;
+        columns.weights = new int[columns.nbRows];
+        for (int from = 0; from < columns.nbRows; from += WEIGHTS_PER_CHUNK) {
+          int length = Math.min(WEIGHTS_PER_CHUNK, columns.nbRows - from);
+          ByteBuffer buffer = ByteBuffer.allocate(4 * length).order(ByteOrder.LITTLE_ENDIAN);
+          readFully(channel, buffer, weightsOffset + 4L * from);
+          buffer.asIntBuffer().get(columns.weights, from, length);
+        }
+      }
+      return columns;
+    } finally {
+      // the mappings remain valid once the file is closed
+      raf.close();
+    }
+  }
+
+  private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+    return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Truncated column file");
+      }
+    }
+    buffer.flip();
+  }
+
+  /** @return the given bytes of a mapped chunk, sharing its memory */
+  private static ByteBuffer slice(ByteBuffer chunk, int position, int size) {
+    ByteBuffer view = chunk.duplicate();
+    view.position(position);
+    view.limit(position + size);
+    // a slice is big endian whatever the order of the chunk
+    return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+}
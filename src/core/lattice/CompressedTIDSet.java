@@ -0,0 +1,651 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.lattice;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Compressed TID set, for values that are rare or whose rows are clustered.
+ * The rows are split in chunks of 2^16 rows; only the non-empty chunks are
+ * stored, each one in the smallest of three containers:
+ * <ul>
+ * <li>array: the sorted list of the rows in the chunk (up to 4096 rows),</li>
+ * <li>bitmap: one bit per row of the chunk (8kB),</li>
+ * <li>run: the list of the intervals of consecutive rows.</li>
+ * </ul>
+ * Intersections only visit the chunks present in both sets, and are done
+ * container by container without going back to single bits whenever possible.
+ */
+public class CompressedTIDSet extends TIDSet {
+
+  static final int CHUNK_BITS = 16;
+  static final int WORDS_PER_CHUNK = (1 << CHUNK_BITS) / 64;
+  static final int ARRAY_MAX_SIZE = 4096;
+
+  /** high 16 bits of the rows of every stored chunk (sorted) */
+  final char[] keys;
+  final Container[] containers;
+  final int nbContainers;
+  private int cardinality;
+
+  public CompressedTIDSet(BitSet set) {
+    long[] words = set.toLongArray();
+    int nbChunks = (words.length + WORDS_PER_CHUNK - 1) / WORDS_PER_CHUNK;
+    char[] keys = new char[nbChunks];
+    Container[] containers = new Container[nbChunks];
+    int n = 0;
+    for (int c = 0; c < nbChunks; c++) {
+      long[] chunk = new long[WORDS_PER_CHUNK];
+      int from = c * WORDS_PER_CHUNK;
+      System.arraycopy(words, from, chunk, 0, Math.min(WORDS_PER_CHUNK, words.length - from));
+      Container container = Container.fromWords(chunk);
+      if (container != null) {
+        keys[n] = (char) c;
+        containers[n] = container;
+        n++;
+      }
+    }
+    this.keys = keys;
+    this.containers = containers;
+    this.nbContainers = n;
+    this.cardinality = -1;
+  }
+
+  private CompressedTIDSet(char[] keys, Container[] containers, int nbContainers) {
+    this.keys = keys;
+    this.containers = containers;
+    this.nbContainers = nbContainers;
+    this.cardinality = -1;
+  }
+
+  @Override
+  public int cardinality() {
+    if (cardinality < 0) {
+      int c = 0;
+      for (int i = 0; i < nbContainers; i++) {
+        c += containers[i].cardinality();
+      }
+      cardinality = c;
+    }
+    return cardinality;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    // empty containers are never stored
+    return nbContainers == 0;
+  }
+
+  @Override
+  public boolean get(int row) {
+    int i = Arrays.binarySearch(keys, 0, nbContainers, (char) (row >>> CHUNK_BITS));
+    return i >= 0 && containers[i].contains(row & 0xFFFF);
+  }
+
+  @Override
+  public int nextSetBit(int fromRow) {
+    int high = fromRow >>> CHUNK_BITS;
+    int i = Arrays.binarySearch(keys, 0, nbContainers, (char) high);
+    int low = fromRow & 0xFFFF;
+    if (i < 0) {
+      i = -i - 1;
+      low = 0;
+    }
+    for (; i < nbContainers; i++) {
+      int next = containers[i].next(low);
+      if (next >= 0) {
+        return (keys[i] << CHUNK_BITS) | next;
+      }
+      low = 0;
+    }
+    return -1;
+  }
+
+  @Override
+  public TIDSet and(TIDSet other) {
+    char[] resultKeys = new char[nbContainers];
+    Container[] resultContainers = new Container[nbContainers];
+    int n = 0;
+    if (other instanceof CompressedTIDSet) {
+      CompressedTIDSet o = (CompressedTIDSet) other;
+      int i = 0, j = 0;
+      while (i < nbContainers && j < o.nbContainers) {
+        if (keys[i] < o.keys[j]) {
+          i++;
+        } else if (keys[i] > o.keys[j]) {
+          j++;
+        } else {
+          Container c = containers[i].and(o.containers[j]);
+          if (c != null) {
+            resultKeys[n] = keys[i];
+            resultContainers[n] = c;
+            n++;
+          }
+          i++;
+          j++;
+        }
+      }
+    } else {
+      long[] chunk = new long[WORDS_PER_CHUNK];
+      for (int i = 0; i < nbContainers; i++) {
+        maskedChunk(i, other, chunk);
+        Container c = Container.fromWords(chunk);
+        if (c != null) {
+          resultKeys[n] = keys[i];
+          resultContainers[n] = c;
+          n++;
+        }
+      }
+    }
+    return new CompressedTIDSet(resultKeys, resultContainers, n);
+  }
+
+  @Override
+  public int andCardinality(TIDSet other) {
+    int count = 0;
+    if (other instanceof CompressedTIDSet) {
+      CompressedTIDSet o = (CompressedTIDSet) other;
+      int i = 0, j = 0;
+      while (i < nbContainers && j < o.nbContainers) {
+        if (keys[i] < o.keys[j]) {
+          i++;
+        } else if (keys[i] > o.keys[j]) {
+          j++;
+        } else {
+          count += containers[i].andCardinality(o.containers[j]);
+          i++;
+          j++;
+        }
+      }
+    } else {
+      long[] chunk = new long[WORDS_PER_CHUNK];
+      for (int i = 0; i < nbContainers; i++) {
+        maskedChunk(i, other, chunk);
+        for (int w = 0; w < chunk.length; w++) {
+          count += Long.bitCount(chunk[w]);
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Writes the bitmap of the i-th container, intersected with the matching
+   * chunk of another representation of TID set.
+   */
+  private void maskedChunk(int i, TIDSet other, long[] chunk) {
+    Arrays.fill(chunk, 0L);
+    containers[i].fill(chunk);
+    int base = keys[i] << CHUNK_BITS;
+    if (other instanceof DenseTIDSet) {
+      long[] otherWords = ((DenseTIDSet) other).words;
+      int offset = base >>> 6;
+      for (int w = 0; w < WORDS_PER_CHUNK; w++) {
+        chunk[w] &= (offset + w < otherWords.length) ? otherWords[offset + w] : 0L;
+      }
+    } else {
+      for (int w = 0; w < WORDS_PER_CHUNK; w++) {
+        long word = chunk[w];
+        while (word != 0L) {
+          long bit = word & -word;
+          if (!other.get(base + (w << 6) + Long.numberOfTrailingZeros(word))) {
+            chunk[w] &= ~bit;
+          }
+          word ^= bit;
+        }
+      }
+    }
+  }
+
+  @Override
+  public long getSizeInBytes() {
+    long size = 32L + 2L * keys.length + 8L * containers.length;
+    for (int i = 0; i < nbContainers; i++) {
+      size += containers[i].getSizeInBytes();
+    }
+    return size;
+  }
+
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+  // Containers (for one chunk of 2^16 rows, values in [0,65535])
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+
+  abstract static class Container {
+
+    abstract int cardinality();
+
+    abstract boolean contains(int value);
+
+    /** @return the first value greater or equal to the given one, -1 if none */
+    abstract int next(int value);
+
+    /** @return the intersection of both containers, null if it is empty */
+    abstract Container and(Container other);
+
+    abstract int andCardinality(Container other);
+
+    /** Sets the bits of the values of this container in a chunk bitmap */
+    abstract void fill(long[] chunk);
+
+    abstract long getSizeInBytes();
+
+    /**
+     * Builds the smallest container for the given chunk bitmap
+     *
+     * @return the container, null if the chunk is empty
+     */
+    static Container fromWords(long[] chunk) {
+      int card = 0;
+      int nbRuns = 0;
+      long previousTop = 0L;
+      for (int w = 0; w < chunk.length; w++) {
+        long word = chunk[w];
+        card += Long.bitCount(word);
+        // a run starts on every 1 whose predecessor is a 0
+        nbRuns += Long.bitCount(word & ~((word << 1) | previousTop));
+        previousTop = word >>> 63;
+      }
+      if (card == 0) {
+        return null;
+      }
+      long sizeArray = 2L * card;
+      long sizeBitmap = 8L * WORDS_PER_CHUNK;
+      long sizeRun = 4L * nbRuns;
+      if (sizeRun < sizeArray && sizeRun < sizeBitmap) {
+        return RunContainer.fromWords(chunk, nbRuns);
+      } else if (card <= ARRAY_MAX_SIZE) {
+        return ArrayContainer.fromWords(chunk, card);
+      } else {
+        return new BitmapContainer(chunk.clone(), card);
+      }
+    }
+  }
+
+  static final class ArrayContainer extends Container {
+    final char[] values;
+    final int size;
+
+    ArrayContainer(char[] values, int size) {
+      this.values = values;
+      this.size = size;
+    }
+
+    static ArrayContainer fromWords(long[] chunk, int card) {
+      char[] values = new char[card];
+      int n = 0;
+      for (int w = 0; w < chunk.length; w++) {
+        long word = chunk[w];
+        while (word != 0L) {
+          values[n++] = (char) ((w << 6) + Long.numberOfTrailingZeros(word));
+          word &= word - 1;
+        }
+      }
+      return new ArrayContainer(values, card);
+    }
+
+    @Override
+    int cardinality() {
+      return size;
+    }
+
+    @Override
+    boolean contains(int value) {
+      return Arrays.binarySearch(values, 0, size, (char) value) >= 0;
+    }
+
+    @Override
+    int next(int value) {
+      int i = Arrays.binarySearch(values, 0, size, (char) value);
+      if (i < 0) {
+        i = -i - 1;
+      }
+      return (i < size) ? values[i] : -1;
+    }
+
+    @Override
+    Container and(Container other) {
+      char[] result = new char[size];
+      int n = 0;
+      if (other instanceof ArrayContainer) {
+        ArrayContainer o = (ArrayContainer) other;
+        int i = 0, j = 0;
+        while (i < size && j < o.size) {
+          if (values[i] < o.values[j]) {
+            i++;
+          } else if (values[i] > o.values[j]) {
+            j++;
+          } else {
+            result[n++] = values[i];
+            i++;
+            j++;
+          }
+        }
+      } else {
+        for (int i = 0; i < size; i++) {
+          if (other.contains(values[i])) {
+            result[n++] = values[i];
+          }
+        }
+      }
+      return (n == 0) ? null : new ArrayContainer(result, n);
+    }
+
+    @Override
+    int andCardinality(Container other) {
+      int n = 0;
+      if (other instanceof ArrayContainer) {
+        ArrayContainer o = (ArrayContainer) other;
+        int i = 0, j = 0;
+        while (i < size && j < o.size) {
+          if (values[i] < o.values[j]) {
+            i++;
+          } else if (values[i] > o.values[j]) {
+            j++;
+          } else {
+            n++;
+            i++;
+            j++;
+          }
+        }
+      } else {
+        for (int i = 0; i < size; i++) {
+          if (other.contains(values[i])) {
+            n++;
+          }
+        }
+      }
+      return n;
+    }
+
+    @Override
+    void fill(long[] chunk) {
+      for (int i = 0; i < size; i++) {
+        chunk[values[i] >>> 6] |= 1L << values[i];
+      }
+    }
+
+    @Override
+    long getSizeInBytes() {
+      return 24L + 2L * values.length;
+    }
+  }
+
+  static final class BitmapContainer extends Container {
+    final long[] words;
+    final int card;
+
+    BitmapContainer(long[] words, int card) {
+      this.words = words;
+      this.card = card;
+    }
+
+    @Override
+    int cardinality() {
+      return card;
+    }
+
+    @Override
+    boolean contains(int value) {
+      return (words[value >>> 6] & (1L << value)) != 0L;
+    }
+
+    @Override
+    int next(int value) {
+      int w = value >>> 6;
+      long word = words[w] & (-1L << value);
+      while (true) {
+        if (word != 0L) {
+          return (w << 6) + Long.numberOfTrailingZeros(word);
+        }
+        w++;
+        if (w == words.length) {
+          return -1;
+        }
+        word = words[w];
+      }
+    }
+
+    @Override
+    Container and(Container other) {
+      if (other instanceof ArrayContainer) {
+        return other.and(this);
+      }
+      long[] result = new long[WORDS_PER_CHUNK];
+      if (other instanceof BitmapContainer) {
+        long[] o = ((BitmapContainer) other).words;
+        for (int w = 0; w < result.length; w++) {
+          result[w] = words[w] & o[w];
+        }
+      } else {
+        other.fill(result);
+        for (int w = 0; w < result.length; w++) {
+          result[w] &= words[w];
+        }
+      }
+      return Container.fromWords(result);
+    }
+
+    @Override
+    int andCardinality(Container other) {
+      if (other instanceof ArrayContainer) {
+        return other.andCardinality(this);
+      }
+      int n = 0;
+      if (other instanceof BitmapContainer) {
+        long[] o = ((BitmapContainer) other).words;
+        for (int w = 0; w < words.length; w++) {
+          n += Long.bitCount(words[w] & o[w]);
+        }
+      } else {
+        RunContainer o = (RunContainer) other;
+        for (int r = 0; r < o.nbRuns; r++) {
+          n += countInRange(o.starts[r], o.starts[r] + o.lengths[r]);
+        }
+      }
+      return n;
+    }
+
+    /** @return the number of values in [from,to] */
+    private int countInRange(int from, int to) {
+      int firstWord = from >>> 6;
+      int lastWord = to >>> 6;
+      long firstMask = -1L << from;
+      long lastMask = -1L >>> (63 - (to & 63));
+      if (firstWord == lastWord) {
+        return Long.bitCount(words[firstWord] & firstMask & lastMask);
+      }
+      int n = Long.bitCount(words[firstWord] & firstMask);
+      for (int w = firstWord + 1; w < lastWord; w++) {
+        n += Long.bitCount(words[w]);
+      }
+      n += Long.bitCount(words[lastWord] & lastMask);
+      return n;
+    }
+
+    @Override
+    void fill(long[] chunk) {
+      for (int w = 0; w < words.length; w++) {
+        chunk[w] |= words[w];
+      }
+    }
+
+    @Override
+    long getSizeInBytes() {
+      return 24L + 8L * words.length;
+    }
+  }
+
+  static final class RunContainer extends Container {
+    /** first value of every run */
+    final char[] starts;
+    /** length of every run minus 1 */
+    final char[] lengths;
+    final int nbRuns;
+    final int card;
+
+    RunContainer(char[] starts, char[] lengths, int nbRuns) {
+      this.starts = starts;
+      this.lengths = lengths;
+      this.nbRuns = nbRuns;
+      int c = 0;
+      for (int r = 0; r < nbRuns; r++) {
+        c += lengths[r] + 1;
+      }
+      this.card = c;
+    }
+
+    static RunContainer fromWords(long[] chunk, int nbRuns) {
+      char[] starts = new char[nbRuns];
+      char[] lengths = new char[nbRuns];
+      int r = 0;
+      int value = 0;
+      int limit = chunk.length << 6;
+      while (r < nbRuns) {
+        // beginning of the next run
+        while ((chunk[value >>> 6] & (1L << value)) == 0L) {
+          value++;
+        }
+        int start = value;
+        while (value < limit && (chunk[value >>> 6] & (1L << value)) != 0L) {
+          value++;
+        }
+        starts[r] = (char) start;
+        lengths[r] = (char) (value - 1 - start);
+        r++;
+      }
+      return new RunContainer(starts, lengths, nbRuns);
+    }
+
+    /** @return the index of the last run starting before or at the value, -1 if none */
+    private int runBefore(int value) {
+      int i = Arrays.binarySearch(starts, 0, nbRuns, (char) value);
+      return (i >= 0) ? i : -i - 2;
+    }
+
+    @Override
+    int cardinality() {
+      return card;
+    }
+
+    @Override
+    boolean contains(int value) {
+      int r = runBefore(value);
+      return r >= 0 && value <= starts[r] + lengths[r];
+    }
+
+    @Override
+    int next(int value) {
+      int r = runBefore(value);
+      if (r >= 0 && value <= starts[r] + lengths[r]) {
+        return value;
+      }
+      return (r + 1 < nbRuns) ? starts[r + 1] : -1;
+    }
+
+    @Override
+    Container and(Container other) {
+      if (!(other instanceof RunContainer)) {
+        return other.and(this);
+      }
+      RunContainer o = (RunContainer) other;
+      char[] resultStarts = new char[nbRuns + o.nbRuns];
+      char[] resultLengths = new char[nbRuns + o.nbRuns];
+      int n = 0;
+      int i = 0, j = 0;
+      while (i < nbRuns && j < o.nbRuns) {
+        int end = starts[i] + lengths[i];
+        int otherEnd = o.starts[j] + o.lengths[j];
+        int from = Math.max(starts[i], o.starts[j]);
+        int to = Math.min(end, otherEnd);
+        if (from <= to) {
+          resultStarts[n] = (char) from;
+          resultLengths[n] = (char) (to - from);
+          n++;
+        }
+        if (end < otherEnd) {
+          i++;
+        } else {
+          j++;
+        }
+      }
+      if (n == 0) {
+        return null;
+      }
+      RunContainer result = new RunContainer(resultStarts, resultLengths, n);
+      if (4L * n > 2L * result.card && result.card <= ARRAY_MAX_SIZE) {
+        // many short runs: an array is smaller
+        long[] chunk = new long[WORDS_PER_CHUNK];
+        result.fill(chunk);
+        return ArrayContainer.fromWords(chunk, result.card);
+      }
+      return result;
+    }
+
+    @Override
+    int andCardinality(Container other) {
+      if (!(other instanceof RunContainer)) {
+        return other.andCardinality(this);
+      }
+      RunContainer o = (RunContainer) other;
+      int n = 0;
+      int i = 0, j = 0;
+      while (i < nbRuns && j < o.nbRuns) {
+        int end = starts[i] + lengths[i];
+        int otherEnd = o.starts[j] + o.lengths[j];
+        int from = Math.max(starts[i], o.starts[j]);
+        int to = Math.min(end, otherEnd);
+        if (from <= to) {
+          n += to - from + 1;
+        }
+        if (end < otherEnd) {
+          i++;
+        } else {
+          j++;
+        }
+      }
+      return n;
+    }
+
+    @Override
+    void fill(long[] chunk) {
+      for (int r = 0; r < nbRuns; r++) {
+        int from = starts[r];
+        int to = from + lengths[r];
+        int firstWord = from >>> 6;
+        int lastWord = to >>> 6;
+        long firstMask = -1L << from;
+        long lastMask = -1L >>> (63 - (to & 63));
+        if (firstWord == lastWord) {
+          chunk[firstWord] |= firstMask & lastMask;
+        } else {
+          chunk[firstWord] |= firstMask;
+          for (int w = firstWord + 1; w < lastWord; w++) {
+            chunk[w] = -1L;
+          }
+          chunk[lastWord] |= lastMask;
+        }
+      }
+    }
+
+    @Override
+    long getSizeInBytes() {
+      return 32L + 2L * starts.length + 2L * lengths.length;
+    }
+  }
+}
@@ -0,0 +1,374 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.lattice;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Persistent store of the matrices of counts computed by the nodes of a
+ * {@link Lattice} (@see Lattice#setCountStore(CountStore)), so that several
+ * runs over the same data (e.g., with different scorers or p-values) only
+ * count every matrix once. The matrices are keyed by the fingerprint of the
+ * data ({@link Lattice#getFingerprint()}) and the set of variables, so that a
+ * store can be shared by several datasets (or views of a dataset).
+ * <p>
+ * The file is a log of records, only appended to; an index from the keys to
+ * the positions of the records is built when the store is opened, and the
+ * matrices are read from the file when asked for (outside of the lock of the
+ * store, so that several threads can read at the same time). A record is:
+ * <pre>
+ * fingerprint (long), kind (byte: 0 dense, 1 sparse), k (int), variables (k ints),
+ * n (int), then n counts (ints) for a dense matrix or n (index (long), count (int)) for a sparse one
+ * </pre>
+ * A truncated or corrupt record (e.g., after a crash) is dropped when opening
+ * the store, with everything after it. Errors when reading or writing the
+ * store are reported on the standard error and the counts are then computed
+ * as if the store was not there.
+ */
+public class CountStore {
+
+  private static final byte DENSE = 0;
+  private static final byte SPARSE = 1;
+
+  /** Key of a matrix: fingerprint of the data and (sorted) variables */
+  private static final class Key {
+    final long fingerprint;
+    final int[] variables;
+
+    Key(long fingerprint, int[] variables) {
+      this.fingerprint = fingerprint;
+      this.variables = variables;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * Arrays.hashCode(variables) + (int) (fingerprint ^ (fingerprint >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return fingerprint == other.fingerprint && Arrays.equals(variables, other.variables);
+    }
+  }
+
+  private final RandomAccessFile file;
+  /** channel of the file, for the reads at a given position (that do not move the position of the file) */
+  private final FileChannel channel;
+  /** position of the record of every matrix in the file */
+  private final HashMap<Key, Long> index;
+  private long nbHits = 0L;
+  private long nbMisses = 0L;
+
+  /**
+   * Opens a store, creating the file if it does not exist.
+   *
+   * @param file
+   *            the file of the store
+   * @throws IOException
+   */
+  public CountStore(File file) throws IOException {
+    this.file = new RandomAccessFile(file, "rw");
+    this.channel = this.file.getChannel();
+    this.index = new HashMap<Key, Long>();
+    buildIndex();
+  }
+
+  private void buildIndex() throws IOException {
+    long position = 0L;
+    long length = file.length();
+    file.seek(0L);
+    try {
+      while (position < length) {
+        long fingerprint = file.readLong();
+        byte kind = file.readByte();
+        int k = file.readInt();
+        // sizes read from garbage are checked before anything is allocated
+        if ((kind != DENSE && kind != SPARSE) || k < 0 || 4L * k > length - file.getFilePointer()) {
+          throw new EOFException();
+        }
+        int[] variables = new int[k];
+        for (int j = 0; j < k; j++) {
+          variables[j] = file.readInt();
+        }
+        int n = file.readInt();
+        long next = file.getFilePointer() + (long) n * ((kind == DENSE) ? 4 : 12);
+        if (n < 0 || next > length) {
+          throw new EOFException();
+        }
+        index.put(new Key(fingerprint, variables), position);
+        position = next;
+        file.seek(position);
+      }
+    } catch (EOFException e) {
+      System.err.println("Truncated or corrupt record in the count store: dropping it and what follows (from byte " + position + ")");
+      file.setLength(position);
+    }
+  }
+
+  /** @return the number of matrices in the store (for all the datasets) */
+  public synchronized int size() {
+    return index.size();
+  }
+
+  /** @return the number of matrices that have been found in the store */
+  public synchronized long getNbHits() {
+    return nbHits;
+  }
+
+  /** @return the number of matrices that have been asked for but were not in the store */
+  public synchronized long getNbMisses() {
+    return nbMisses;
+  }
+
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+  // Reading
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+
+  /**
+   * @param nbCells
+   *            the number of cells of the matrix
+   * @return the dense matrix (@see LatticeNode#getMatrix()) for the given
+   *         variables of the given data, null if it is not in the store
+   */
+  public int[] getMatrix(long fingerprint, int[] variables, int nbCells) {
+    return getMatrix(fingerprint, variables, nbCells, null);
+  }
+
+  /**
+   * Same as {@link #getMatrix(long, int[], int)}, but the counts are written
+   * in a buffer supplied by the caller (@see LatticeNode#getMatrix(int[])).
+   *
+   * @param buffer
+   *            the array to fill, with at least nbCells cells; a new one is
+   *            allocated if it is null
+   * @return the array holding the matrix in its first nbCells cells, null if
+   *         the matrix is not in the store
+   */
+  public int[] getMatrix(long fingerprint, int[] variables, int nbCells, int[] buffer) {
+    try {
+      ByteBuffer record = read(fingerprint, variables);
+      if (record == null) {
+        return null;
+      }
+      byte kind = record.get();
+      int n = record.getInt();
+      int[] matrix = buffer;
+      if (kind == DENSE) {
+        if (matrix == null) {
+          matrix = new int[n];
+        } else if (n > matrix.length) {
+          throw new IOException("Invalid size of matrix in the count store: " + n);
+        }
+        record.asIntBuffer().get(matrix, 0, n);
+      } else {
+        if (matrix == null) {
+          matrix = new int[nbCells];
+        } else {
+          Arrays.fill(matrix, 0, nbCells, 0);
+        }
+        for (int s = 0; s < n; s++) {
+          long cell = record.getLong();
+          matrix[(int) cell] += record.getInt();
+        }
+      }
+      return matrix;
+    } catch (IOException e) {
+      System.err.println("Could not read the count store: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * @return the sparse matrix (@see LatticeNode#getSparseMatrix()) for the
+   *         given variables of the given data, null if it is not in the store
+   */
+  public SparseTable getSparseMatrix(long fingerprint, int[] variables) {
+    try {
+      ByteBuffer record = read(fingerprint, variables);
+      if (record == null) {
+        return null;
+      }
+      byte kind = record.get();
+      int n = record.getInt();
+      SparseTable table;
+      if (kind == DENSE) {
+        table = new SparseTable();
+        for (int i = 0; i < n; i++) {
+          table.add(i, record.getInt());
+        }
+      } else {
+        table = new SparseTable(n);
+        for (int s = 0; s < n; s++) {
+          long cell = record.getLong();
+          table.add(cell, record.getInt());
+        }
+      }
+      return table;
+    } catch (IOException e) {
+      System.err.println("Could not read the count store: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * @return the kind, the size and the content of the record of the given
+   *         matrix, null if the matrix is not in the store
+   */
+  private ByteBuffer read(long fingerprint, int[] variables) throws IOException {
+    long position = find(fingerprint, variables);
+    if (position < 0L) {
+      return null;
+    }
+    // a record is never modified once written: it is read without the lock
+    ByteBuffer kind = readFully(ByteBuffer.allocate(1), position + 8L);
+    long sizePosition = position + 8L + 1L + 4L + 4L * variables.length;
+    int n = readFully(ByteBuffer.allocate(4), sizePosition).getInt();
+    long nbBytes = 1L + 4L + (long) n * ((kind.get(0) == DENSE) ? 4 : 12);
+    if (n < 0 || nbBytes > Integer.MAX_VALUE) {
+      throw new IOException("Invalid size of matrix in the count store: " + n);
+    }
+    ByteBuffer record = ByteBuffer.allocate((int) nbBytes);
+    record.put(kind.get(0));
+    record.putInt(n);
+    return readFully(record, sizePosition + 4L);
+  }
+
+  /** @return the position of the record of the given matrix, -1 if it is not in the store */
+  private synchronized long find(long fingerprint, int[] variables) {
+    Long position = index.get(new Key(fingerprint, variables));
+    if (position == null) {
+      nbMisses++;
+      return -1L;
+    }
+    nbHits++;
+    return position;
+  }
+
+  /** Fills the remaining bytes of the buffer from the given position of the file */
+  private ByteBuffer readFully(ByteBuffer buffer, long position) throws IOException {
+    long next = position;
+    while (buffer.hasRemaining()) {
+      int nbRead = channel.read(buffer, next);
+      if (nbRead < 0) {
+        throw new EOFException("Truncated record in the count store");
+      }
+      next += nbRead;
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+  // Writing
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+
+  /** Appends a dense matrix to the store (if it is not already there) */
+  public void putMatrix(long fingerprint, int[] variables, int[] matrix) {
+    putMatrix(fingerprint, variables, matrix, matrix.length);
+  }
+
+  /**
+   * Appends the first nbCells cells of an array as a dense matrix to the
+   * store (if it is not already there), so that a buffer (@see
+   * LatticeNode#getMatrix(int[])) can be stored without copying it first
+   */
+  public synchronized void putMatrix(long fingerprint, int[] variables, int[] matrix, int nbCells) {
+    Key key = new Key(fingerprint, variables.clone());
+    if (index.containsKey(key)) {
+      return;
+    }
+    ByteBuffer record = header(fingerprint, DENSE, variables, nbCells, 4L * nbCells);
+    if (record == null) {
+      return;
+    }
+    record.asIntBuffer().put(matrix, 0, nbCells);
+    append(key, record);
+  }
+
+  /** Appends a sparse matrix to the store (if it is not already there) */
+  public synchronized void putSparseMatrix(long fingerprint, int[] variables, SparseTable table) {
+    Key key = new Key(fingerprint, variables.clone());
+    if (index.containsKey(key)) {
+      return;
+    }
+    ByteBuffer record = header(fingerprint, SPARSE, variables, table.size(), 12L * table.size());
+    if (record == null) {
+      return;
+    }
+    for (int s = table.nextSlot(0); s >= 0; s = table.nextSlot(s + 1)) {
+      record.putLong(table.getIndex(s));
+      record.putInt(table.getCount(s));
+    }
+    append(key, record);
+  }
+
+  /**
+   * @return a buffer for a whole record, filled up to the payload, null if the
+   *         record is too large for a buffer (it is then not stored)
+   */
+  private static ByteBuffer header(long fingerprint, byte kind, int[] variables, int n, long payloadBytes) {
+    long nbBytes = 8L + 1L + 4L + 4L * variables.length + 4L + payloadBytes;
+    if (nbBytes > Integer.MAX_VALUE) {
+      System.err.println("Matrix too large for the count store: " + n + " cells");
+      return null;
+    }
+    ByteBuffer record = ByteBuffer.allocate((int) nbBytes);
+    record.putLong(fingerprint);
+    record.put(kind);
+    record.putInt(variables.length);
+    for (int j = 0; j < variables.length; j++) {
+      record.putInt(variables[j]);
+    }
+    record.putInt(n);
+    return record;
+  }
+
+  private void append(Key key, ByteBuffer record) {
+    long position = -1L;
+    try {
+      position = file.length();
+      file.seek(position);
+      file.write(record.array(), 0, record.capacity());
+      index.put(key, position);
+    } catch (IOException e) {
+      System.err.println("Could not write to the count store: " + e.getMessage());
+      try {
+        // do not leave a partial record before the next ones
+        if (position >= 0L) { file.setLength(position); }
+      } catch (IOException e2) {
+        System.err.println("Could not truncate the count store: " + e2.getMessage());
+      }
+    }
+  }
+
+  /** Closes the file of the store */
+  public synchronized void close() throws IOException {
+    file.close();
+  }
+}
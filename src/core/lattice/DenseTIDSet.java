@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.lattice;
+
+import java.util.BitSet;
+
+/**
+ * Dense TID set: one bit per row, stored in 64-bit words (same layout as
+ * {@link BitSet#toLongArray()}).
+ */
+public class DenseTIDSet extends TIDSet {
+
+  final long[] words;
+  /** cached cardinality (-1 when not computed yet) */
+  private int cardinality;
+
+  public DenseTIDSet(BitSet set) {
+    this(set.toLongArray());
+  }
+
+  DenseTIDSet(long[] words) {
+    this(words, -1);
+  }
+
+  /** @param cardinality the number of rows in the set, -1 if unknown */
+  DenseTIDSet(long[] words, int cardinality) {
+    this.words = words;
+    this.cardinality = cardinality;
+  }
+
+  @Override
+  public int cardinality() {
+    if (cardinality < 0) {
+      int c = 0;
+      for (int i = 0; i < words.length; i++) {
+        c += Long.bitCount(words[i]);
+      }
+      cardinality = c;
+    }
+    return cardinality;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    if (cardinality >= 0) {
+      return cardinality == 0;
+    }
+    for (int i = 0; i < words.length; i++) {
+      if (words[i] != 0L) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean get(int row) {
+    int w = row >>> 6;
+    return w < words.length && (words[w] & (1L << row)) != 0L;
+  }
+
+  @Override
+  public int nextSetBit(int fromRow) {
+    int w = fromRow >>> 6;
+    if (w >= words.length) {
+      return -1;
+    }
+    long word = words[w] & (-1L << fromRow);
+    while (true) {
+      if (word != 0L) {
+        return (w << 6) + Long.numberOfTrailingZeros(word);
+      }
+      w++;
+      if (w == words.length) {
+        return -1;
+      }
+      word = words[w];
+    }
+  }
+
+  @Override
+  public TIDSet and(TIDSet other) {
+    if (other instanceof DenseTIDSet) {
+      long[] otherWords = ((DenseTIDSet) other).words;
+      int n = Math.min(words.length, otherWords.length);
+      long[] result = new long[n];
+      for (int i = 0; i < n; i++) {
+        result[i] = words[i] & otherWords[i];
+      }
+      return new DenseTIDSet(result);
+    } else {
+      // the other representation knows how to intersect with a dense set
+      return other.and(this);
+    }
+  }
+
+  /**
+   * Intersection written in a reusable buffer rather than in a new array (the
+   * returned set is only valid until the buffer is reused).
+   *
+   * @param buffer
+   *            the words for the result, at least as long as the shortest set
+   * @return the intersection of this set with the given one, with its
+   *         cardinality already known
+   */
+  DenseTIDSet andInto(DenseTIDSet other, long[] buffer) {
+    int c = WordKernels.andInto(words, other.words, buffer);
+    return new DenseTIDSet(buffer, c);
+  }
+
+  @Override
+  public int andCardinality(TIDSet other) {
+    if (other instanceof DenseTIDSet) {
+      long[] otherWords = ((DenseTIDSet) other).words;
+      int n = Math.min(words.length, otherWords.length);
+      int c = 0;
+      for (int i = 0; i < n; i++) {
+        c += Long.bitCount(words[i] & otherWords[i]);
+      }
+      return c;
+    } else {
+      return other.andCardinality(this);
+    }
+  }
+
+  @Override
+  public int weightedCardinality(int[] weights) {
+    int c = 0;
+    for (int i = 0; i < words.length; i++) {
+      c += WordKernels.sumWeights(words[i], i << 6, weights);
+    }
+    return c;
+  }
+
+  @Override
+  public int andWeightedCardinality(TIDSet other, int[] weights) {
+    if (other instanceof DenseTIDSet) {
+      long[] otherWords = ((DenseTIDSet) other).words;
+      int n = Math.min(words.length, otherWords.length);
+      int c = 0;
+      for (int i = 0; i < n; i++) {
+        c += WordKernels.sumWeights(words[i] & otherWords[i], i << 6, weights);
+      }
+      return c;
+    } else {
+      return other.andWeightedCardinality(this, weights);
+    }
+  }
+
+  @Override
+  public long getSizeInBytes() {
+    return 16L + 8L * words.length;
+  }
+
+  @Override
+  public BitSet toBitSet() {
+    return BitSet.valueOf(words);
+  }
+}
@@ -17,7 +17,11 @@
  ******************************************************************************/
 package core.lattice;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Random;
 
 /**
  * Represents the lattice over the variables. This lattice is used to access the
@@ -30,39 +34,244 @@ public class Lattice {
   private LatticeNode[] singleNodes;
   private int nbVariables;
   private int nbInstances;
+  /** number of rows stored in the TID sets (less than nbInstances when the rows are weighted) */
+  private int nbRows;
+  /** weight (multiplicity) of every stored row; null when every row counts once */
+  int[] weights;
+  /** rows of the subpopulation modelled by this lattice; null for all the rows (@see #Lattice(Lattice, BitSet)) */
+  TIDSet mask;
+  /**
+   * for every variable, the value whose TID set is not stored (null in the
+   * data, only for binary variables), -1 if the sets of all the values are
+   * stored
+   */
+  private int[] implicitValues;
+  /** persistent store of the matrices of counts, null if none (@see #setCountStore(CountStore)) */
+  CountStore countStore;
+  /** lattice the rows of this one have been sampled from, null if not a sample (@see #sample(int, Random)) */
+  private Lattice exact;
+  /** fingerprint of the data, 0 when not computed yet */
+  private long fingerprint = 0L;
+  /** Index of all the nodes that have been created in this lattice (by set of variables) */
+  LatticeNodeIndex index;
+  /**
+   * Frozen index of the nodes shared with the lattice this one is a copy of
+   * (@see #Lattice(Lattice)), null if none; never modified, the new nodes go
+   * to {@link #index}
+   */
+  private LatticeNodeIndex sharedIndex;
+  /** Row scan counting engine; null unless enabled with {@link #enableRowScan()} */
+  RowScanCounter rowScan;
+
+  // Memory governor for the nodes above the first level (@see #setMemoryBudget(long))
+  private long memoryBudget = Long.MAX_VALUE;
+  private long memoryUsage = 0L;
+  private long nbEvictions = 0L;
+  private long nbRebuilds = 0L;
+  /** most and least recently used nodes that can be evicted */
+  private LatticeNode mostRecent, leastRecent;
+  /** Bloom filter of the sets of variables of the evicted nodes (to count the rebuilds) */
+  private long[] evictedSketch = null;
+  private static final int EVICTED_SKETCH_BITS = 1 << 20;
 
   // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
   // Constructors
   // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
 
-  /** Lattice Constructor */
+  /** Lattice Constructor, storing the data in dense TID sets ({@link DenseTIDSet}) */
   public Lattice(int nbVariables, int nbInstances, int[] nbValuesForAttribute, BitSet[][] convData){
+    this(nbVariables, nbInstances, nbValuesForAttribute, TIDSet.convert(convData, false));
+  }
+
+  /**
+   * Lattice Constructor for weighted rows, storing the data in dense TID sets
+   * (@see #Lattice(int, int, int[], TIDSet[][], int[]))
+   */
+  public Lattice(int nbVariables, int nbRows, int[] nbValuesForAttribute, BitSet[][] convData, int[] weights){
+    this(nbVariables, nbRows, nbValuesForAttribute, TIDSet.convert(convData, false), weights);
+  }
+
+  /**
+   * Lattice Constructor
+   *
+   * @param convData
+   *            the TID set for every value of every variable, in any of the
+   *            implementations of {@link TIDSet} (e.g.,
+   *            {@link TIDSet#convert(BitSet[][], boolean)})
+   */
+  public Lattice(int nbVariables, int nbInstances, int[] nbValuesForAttribute, TIDSet[][] convData){
+    this(nbVariables, nbInstances, nbValuesForAttribute, convData, null);
+  }
+
+  /**
+   * Lattice Constructor for weighted rows: every row of the TID sets stands
+   * for weights[row] instances of the dataset (e.g., the distinct rows of a
+   * dataset with their multiplicities). All the counts are weighted, so that
+   * the statistics are the ones of the full dataset while the intersections
+   * only run over the stored rows.
+   *
+   * @param nbRows
+   *            the number of rows in the TID sets
+   * @param convData
+   *            the TID set for every value of every variable; the set of one
+   *            of the two values of a binary variable can be null, the counts
+   *            for this value being then deduced from the other one
+   * @param weights
+   *            the weight of every row, null if every row counts once
+   */
+  public Lattice(int nbVariables, int nbRows, int[] nbValuesForAttribute, TIDSet[][] convData, int[] weights){
 
     // Init fields:
     this.nbVariables = nbVariables;
-    this.nbInstances = nbInstances;
+    this.nbRows      = nbRows;
+    this.weights     = weights;
+    this.nbInstances = computeNbInstances();
+    this.implicitValues = findImplicitValues(nbValuesForAttribute, convData);
+    this.index       = new LatticeNodeIndex();
     this.singleNodes = new LatticeNode[nbVariables];
     this.all         = new LatticeNode(this, nbValuesForAttribute);
 
     // Initialise the first nodes of the lattice (i.e., the ones corresponding to single variables
     for (int a = 0; a < nbVariables; a++) {
       int[] variablesNumbers = { a };
-      LatticeNode node = new LatticeNode(this, variablesNumbers, nbValuesForAttribute, convData[a], all);
+      LatticeNode node = new LatticeNode(this, variablesNumbers, nbValuesForAttribute, convData[a]);
       singleNodes[a] = node;
     }
   }
 
+  /**
+   * Lattice Constructor over the data of a column file (@see
+   * ColumnFile#write(File, Lattice)): the file is mapped in memory and the
+   * TID sets are read directly from the mapped words ({@link MappedTIDSet}),
+   * so that the data is neither parsed nor copied on the heap.
+   *
+   * @param columnFile
+   *            the file holding the data
+   * @throws IOException
+   */
+  public Lattice(File columnFile) throws IOException {
+    this(ColumnFile.open(columnFile));
+  }
+
+  private Lattice(ColumnFile columns) {
+    this(columns.nbVariables, columns.nbRows, columns.nbValuesForAttribute, columns.sets, columns.weights);
+  }
+
+  /**
+   * View of a lattice with other weights for its rows, e.g. for a bootstrap
+   * resample (@see #bootstrapWeights(Random)): the TID sets of the data (and
+   * the row scan codes, if any) are shared with the given lattice, only the
+   * nodes above the first level are built again, with weighted counts.
+   * The view does not use the count store of lat: every resample has its own
+   * fingerprint, so that its counts would only grow the store (it can still
+   * be given one with {@link #setCountStore(CountStore)}).
+   *
+   * @param lat
+   *            the lattice holding the data
+   * @param weights
+   *            the weight of every row stored in lat (@see #getNbRows()),
+   *            replacing the weights of lat
+   */
+  public Lattice(Lattice lat, int[] weights){
+    this(lat.getNbVariables(), lat.getNbRows(), lat.getnbValuesForAttribute(), lat.getData(), checkWeights(lat, weights));
+    this.mask = lat.mask;
+    this.nbInstances = computeNbInstances();
+    this.memoryBudget = lat.memoryBudget;
+    if (lat.rowScan != null) { this.rowScan = lat.rowScan.withRows(this.weights, this.mask); }
+  }
+
+  /**
+   * View of a lattice restricted to a subpopulation (e.g., a segment or a
+   * cross-validation fold): the TID sets of the data (and the row scan codes,
+   * if any) are shared with the given lattice, and all the counts of the view
+   * are intersected with the selected rows. The view has its own nodes and
+   * its own number of instances, so that several views of the same data can be
+   * modelled independently (and concurrently).
+   *
+   * @param lat
+   *            the lattice holding the data (possibly itself a view, in which
+   *            case the selections are combined)
+   * @param rows
+   *            the rows of lat (@see #getNbRows()) in the subpopulation
+   */
+  public Lattice(Lattice lat, BitSet rows){
+    this(lat.getNbVariables(), lat.getNbRows(), lat.getnbValuesForAttribute(), lat.getData(), lat.weights);
+    BitSet selection = rows.get(0, lat.getNbRows());
+    TIDSet rowSet = lat.isCompressed() ? TIDSet.compressed(selection) : TIDSet.dense(selection);
+    this.mask = (lat.mask == null) ? rowSet : lat.mask.and(rowSet);
+    this.nbInstances = computeNbInstances();
+    this.memoryBudget = lat.memoryBudget;
+    this.countStore = lat.countStore;
+    if (lat.rowScan != null) { this.rowScan = lat.rowScan.withRows(this.weights, this.mask); }
+  }
+
+  private static int[] checkWeights(Lattice lat, int[] weights) {
+    if (weights.length != lat.getNbRows()) {
+      throw new IllegalArgumentException("Expected " + lat.getNbRows() + " weights, got " + weights.length);
+    }
+    return weights;
+  }
+
+  /**
+   * Copy of a lattice, sharing its data and all the nodes it has already built
+   * (copy-on-write): the nodes of lat are frozen in an index shared by the
+   * copy, and the nodes built afterwards by either lattice only go to its own
+   * index. The copy is thus cheap to create (one pass over the index of lat,
+   * none if lat is itself a copy that has not built any node), and several
+   * copies can be explored side by side. The shared nodes keep counting with
+   * the settings (row scan, count store) of the lattice that built them, and
+   * are never evicted from it (@see #setMemoryBudget(long)), so lat can still
+   * be used after the copy.
+   *
+   * @param lat
+   *            the lattice to copy
+   */
   public Lattice(Lattice lat){
     this.nbVariables = lat.getNbVariables();
     this.nbInstances = lat.getNbInstances();
-    this.singleNodes = new LatticeNode[nbVariables];
+    this.nbRows = lat.getNbRows();
+    this.weights = lat.weights;
+    this.mask = lat.mask;
+    this.implicitValues = lat.implicitValues;
+    this.memoryBudget = lat.memoryBudget;
+    this.countStore = lat.countStore;
+    this.rowScan = lat.rowScan;
+    this.exact = lat.exact;
+    this.index       = new LatticeNodeIndex();
+    this.sharedIndex = lat.freezeIndex();
+    this.singleNodes = lat.getSingleNodes().clone();
     this.all         = new LatticeNode(this, lat.getnbValuesForAttribute());
-    for (int a = 0; a < nbVariables; a++) {
-      singleNodes[a] = new LatticeNode(this, lat.getSingleNodes()[a]);
-    }
 
   }
 
+  /**
+   * @return an index of all the nodes of this lattice, that will not be
+   *         modified anymore; these nodes leave the memory accounting of this
+   *         lattice so that they cannot be evicted while copies use them
+   */
+  private synchronized LatticeNodeIndex freezeIndex() {
+    if (sharedIndex != null && index.size() == 0) {
+      return sharedIndex;
+    }
+    LatticeNodeIndex frozen = new LatticeNodeIndex();
+    if (sharedIndex != null) { frozen.putAll(sharedIndex); }
+    frozen.putAll(index);
+    // all the evictable nodes are in the list of the nodes by last access
+    LatticeNode node = leastRecent;
+    while (node != null) {
+      LatticeNode next = node.moreRecent;
+      node.shared = true;
+      memoryUsage -= node.sizeInBytes;
+      node.sizeInBytes = 0L;
+      node.moreRecent = null;
+      node.lessRecent = null;
+      node = next;
+    }
+    leastRecent = null;
+    mostRecent = null;
+    return frozen;
+  }
+
   // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
   // Getters
   // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
@@ -70,15 +279,127 @@ public class Lattice {
   /** @return the number of variables that are modelled by this lattice.  */
   public int getNbVariables(){return this.nbVariables;}
 
+  /** @return the number of instances of the dataset (sum of the weights of the rows) */
   public int getNbInstances(){return this.nbInstances;}
 
+  /** @return the number of rows stored in the TID sets (equal to the number of instances unless the rows are weighted) */
+  public int getNbRows(){return this.nbRows;}
+
+  /** @return true if the rows stored in the TID sets are weighted */
+  public boolean isWeighted(){return this.weights != null;}
+
+  /**
+   * @return the value of a binary variable whose TID set is not stored (@see
+   *         TIDSet#convert(BitSet[][], boolean, boolean)), -1 if the sets of
+   *         all the values of the variable are stored
+   */
+  public int getImplicitValue(int variable){return this.implicitValues[variable];}
+
+  /** @return true if the data is stored in compressed TID sets */
+  private boolean isCompressed(){
+    for (int a = 0; a < nbVariables; a++) {
+      for (TIDSet set : singleNodes[a].records) { if (set != null) { return set instanceof CompressedTIDSet; } }
+    }
+    return false;
+  }
+
+  /** @return true if this lattice only models a subpopulation of the rows (@see #Lattice(Lattice, BitSet)) */
+  public boolean isMasked(){return this.mask != null;}
+
+  /** @return true if this lattice only counts a sample of the rows (@see #sample(int, Random)) */
+  public boolean isSample(){return this.exact != null;}
+
+  /** @return the lattice this sample has been drawn from (this lattice if it is not a sample), to escalate to exact counts */
+  public Lattice getExactLattice(){return (this.exact == null) ? this : this.exact;}
+
   public LatticeNode getAll(){return this.all;}
 
   public LatticeNode[] getSingleNodes(){return this.singleNodes;}
 
+  /** @return the TID set for every value of every variable (shared, not copied) */
+  TIDSet[][] getData(){
+    TIDSet[][] convData = new TIDSet[nbVariables][];
+    for (int a = 0; a < nbVariables; a++) { convData[a] = singleNodes[a].records; }
+    return convData;
+  }
+
+  /** @return the memory used by the TID sets of the data */
+  public long getDataSizeInBytes(){
+    long size = 0L;
+    for (int a = 0; a < nbVariables; a++) {
+      for (TIDSet set : singleNodes[a].records) { if (set != null) { size += set.getSizeInBytes(); } }
+    }
+    return size;
+  }
+
+  /**
+   * Report of the layout of the TID set of every value of every variable: its
+   * density (fraction of the rows), its number of runs of consecutive rows,
+   * the fractions of its 64-row words that are empty or full, and its size.
+   * Few long runs (e.g., after reordering the rows) mean more empty and full
+   * words, hence cheaper intersections and better compression.
+   *
+   * @return the report, one line per value (tab separated)
+   */
+  public String getDensityReport(){
+    StringBuilder report = new StringBuilder();
+    report.append("variable\tvalue\tdensity\truns\temptyWords\tfullWords\tbytes\n");
+    int nbWords = (nbRows + 63) >>> 6;
+    for (int a = 0; a < nbVariables; a++) {
+      TIDSet[] sets = singleNodes[a].records;
+      for (int v = 0; v < sets.length; v++) {
+        if (sets[v] == null) {
+          report.append(a).append('\t').append(v).append("\timplicit\n");
+          continue;
+        }
+        int nbRuns = 0, nbNonEmptyWords = 0, nbFullWords = 0;
+        int previous = -2, currentWord = -1, bitsInWord = 0;
+        for (int i = sets[v].nextSetBit(0); i >= 0; i = sets[v].nextSetBit(i + 1)) {
+          if (i != previous + 1) { nbRuns++; }
+          if ((i >>> 6) != currentWord) {
+            if (bitsInWord == 64) { nbFullWords++; }
+            currentWord = i >>> 6;
+            bitsInWord = 0;
+            nbNonEmptyWords++;
+          }
+          bitsInWord++;
+          previous = i;
+        }
+        if (bitsInWord == 64) { nbFullWords++; }
+        report.append(String.format("%d\t%d\t%.4f\t%d\t%.4f\t%.4f\t%d%n", a, v,
+            sets[v].cardinality() / (double) Math.max(1, nbRows), nbRuns,
+            (nbWords - nbNonEmptyWords) / (double) Math.max(1, nbWords), nbFullWords / (double) Math.max(1, nbWords),
+            sets[v].getSizeInBytes()));
+      }
+    }
+    return report.toString();
+  }
+
+  /** @return the number of nodes in this lattice, including the ones shared with the lattice it is a copy of (not counting the root). */
+  public synchronized int getNbNodes(){return this.index.size() + ((sharedIndex == null) ? 0 : sharedIndex.size());}
+
   public int[] getnbValuesForAttribute(){
     return this.all.dimensionsForVariables;
   }
+
+  /** @return the memory budget for the nodes above the first level (@see #setMemoryBudget(long)) */
+  public long getMemoryBudget(){return this.memoryBudget;}
+
+  /** @return the estimated memory used by the nodes above the first level and their records */
+  public long getMemoryUsage(){return this.memoryUsage;}
+
+  /** @return the number of nodes that have been evicted to stay within the memory budget */
+  public long getNbEvictions(){return this.nbEvictions;}
+
+  /**
+   * @return the number of nodes that have been built again after having been
+   *         evicted (estimated with a Bloom filter, so it can slightly
+   *         over-count)
+   */
+  public long getNbRebuilds(){return this.nbRebuilds;}
+
+  /** @return true if the nodes can be counted with a scan of the rows (@see {@link #enableRowScan()}) */
+  public boolean isRowScanEnabled(){return this.rowScan != null;}
   // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
   // Methods
   // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
@@ -88,11 +409,20 @@ public class Lattice {
    * {0,4,8} for the node representing the correlation of variables 0,4 and 8
    * in the dataset).
    *
+   * Thread-safe: the nodes are looked up and built under the lock of the
+   * lattice; their matrices can then be counted concurrently.
+   *
    * @param clique
    *            the list of variable
    * @return the node of the lattice
    */
-  public LatticeNode getNode(BitSet clique) {
+  public synchronized LatticeNode getNode(BitSet clique) {
+    LatticeNode node = index.get(clique);
+    if (node == null && sharedIndex != null) { node = sharedIndex.get(clique); }
+    if (node != null) {
+      touch(node);
+      return node;
+    }
     int[] variables = new int[clique.cardinality()];
     int current =0;
     for (int i = clique.nextSetBit(0); i >= 0; i = clique.nextSetBit(i+1)) {
@@ -111,13 +441,419 @@ public class Lattice {
    *            the list of variable
    * @return the node of the lattice
    */
-  public LatticeNode getNode(int[] variables) {
-    LatticeNode node = singleNodes[variables[0]];
+  public synchronized LatticeNode getNode(int[] variables) {
+    LatticeNode node = lookup(variables);
+    if (node != null) {
+      touch(node);
+      return node;
+    }
+    node = singleNodes[variables[0]];
     for (int i = 1; i < variables.length; i++) { node = node.getChild(variables[i], this); }
     return node;
   }
 
-  protected BitSet getSetForVariable(int variableIndex, int valueIndex) {
+  /**
+   * Sets a persistent store for the matrices of counts of the nodes above the
+   * first level: a matrix is looked for in the store before being counted,
+   * and added to it once counted, so that the runs over the same data share
+   * their counts. The store is shared by the copies and the subpopulations of
+   * this lattice built afterwards (with their own fingerprints), but not by its
+   * reweighted views (@see #Lattice(Lattice, int[])).
+   *
+   * @param store
+   *            the store, null to stop using one
+   */
+  public void setCountStore(CountStore store) {
+    this.countStore = store;
+  }
+
+  /** @return the persistent store of the matrices of counts, null if none */
+  public CountStore getCountStore(){return this.countStore;}
+
+  /**
+   * @return a 64-bit fingerprint of the data seen by this lattice (the
+   *         number of values of the variables, the rows having every value,
+   *         the weights and the subpopulation), computed once in one pass
+   *         over the data
+   */
+  public long getFingerprint() {
+    if (fingerprint == 0L) {
+      long h = 0xcbf29ce484222325L;
+      h = mix(h, nbVariables);
+      h = mix(h, nbRows);
+      for (int a = 0; a < nbVariables; a++) {
+        TIDSet[] sets = singleNodes[a].records;
+        h = mix(h, sets.length);
+        for (int v = 0; v < sets.length; v++) {
+          h = mix(h, -1 - v);
+          if (sets[v] != null) {
+            for (int i = sets[v].nextSetBit(0); i >= 0; i = sets[v].nextSetBit(i + 1)) { h = mix(h, i); }
+          }
+        }
+      }
+      if (weights != null) {
+        for (int i = 0; i < nbRows; i++) { h = mix(h, weights[i]); }
+      }
+      if (mask != null) {
+        h = mix(h, -1);
+        for (int i = mask.nextSetBit(0); i >= 0; i = mask.nextSetBit(i + 1)) { h = mix(h, i); }
+      }
+      fingerprint = (h == 0L) ? 1L : h;
+    }
+    return fingerprint;
+  }
+
+  /** FNV-1a step over the 4 bytes of an int */
+  private static long mix(long h, int value) {
+    for (int b = 0; b < 4; b++) {
+      h ^= (value >>> (8 * b)) & 0xFF;
+      h *= 0x100000001b3L;
+    }
+    return h;
+  }
+
+  /**
+   * Builds a compact copy of the data (one byte or one short per variable and
+   * per row) so that the matrices with many cells compared to the number of
+   * rows can be counted in one scan of the rows rather than by intersecting
+   * the TID sets for every cell. Every node then picks the cheaper of the two
+   * engines (@see {@link LatticeNode#getMatrix()}).
+   */
+  public void enableRowScan() {
+    if (rowScan == null) {
+      rowScan = new RowScanCounter(nbRows, getnbValuesForAttribute(), getData(), weights, mask);
+    }
+  }
+
+  /**
+   * Draws a bootstrap resample of the instances: nbInstances draws with
+   * replacement, every row (of the subpopulation, for a masked lattice) being
+   * drawn with a probability proportional to its weight.
+   *
+   * @param random
+   *            the random number generator
+   * @return the number of times every row has been drawn, to be given to
+   *         {@link #Lattice(Lattice, int[])}
+   */
+  public int[] bootstrapWeights(Random random) {
+    int[] resample = new int[nbRows];
+    if (weights == null && mask == null) {
+      for (int i = 0; i < nbInstances; i++) { resample[random.nextInt(nbRows)]++; }
+    } else {
+      // cumulated weights, searched for every draw
+      int[] cumulated = new int[nbRows];
+      int sum = 0;
+      for (int r = 0; r < nbRows; r++) {
+        if (mask == null || mask.get(r)) { sum += (weights == null) ? 1 : weights[r]; }
+        cumulated[r] = sum;
+      }
+      for (int i = 0; i < nbInstances; i++) {
+        int draw = random.nextInt(nbInstances);
+        int r = Arrays.binarySearch(cumulated, draw + 1);
+        if (r < 0) { r = -r - 1; }
+        // rows of weight 0 share their cumulated weight with the previous row
+        while (r > 0 && cumulated[r - 1] == cumulated[r]) { r--; }
+        resample[r]++;
+      }
+    }
+    return resample;
+  }
+
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+  // Sampling: approximate counts on a fixed number of rows; the exact counts
+  // remain available from the lattice the sample has been drawn from
+  // (@see #getExactLattice()).
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+
+  /**
+   * Draws a uniform sample (without replacement) of the rows counted by this
+   * lattice, and returns the view of the lattice restricted to it (@see
+   * #Lattice(Lattice, BitSet)). The weights of the sampled rows, if any, are
+   * kept. The entropies computed on the sample are estimates of those of this
+   * lattice, at a cost proportional to the size of the sample. The sample does
+   * not use the count store of this lattice, as the bootstrap views (@see
+   * #Lattice(Lattice, int[])); it can still be given one with
+   * {@link #setCountStore(CountStore)}.
+   *
+   * @param sampleSize
+   *            the number of rows to sample
+   * @param random
+   *            the source of randomness
+   * @return the sample, or this lattice if it does not have more rows than
+   *         sampleSize
+   */
+  public Lattice sample(int sampleSize, Random random) {
+    BitSet population = getCountedRows();
+    if (population.cardinality() <= sampleSize) {
+      return this;
+    }
+    BitSet selection = new BitSet(nbRows);
+    sampleRows(population, sampleSize, random, selection);
+    return sampleView(selection);
+  }
+
+  /**
+   * Same as {@link #sample(int, Random)}, but the sample is stratified by the
+   * values of one variable: every value gets a share of the sample
+   * proportional to its number of rows, so that the distribution of this
+   * variable (e.g., a rare class) is kept in the sample.
+   *
+   * @param sampleSize
+   *            the number of rows to sample (up to rounding in every stratum)
+   * @param variable
+   *            the variable defining the strata
+   * @param random
+   *            the source of randomness
+   * @return the sample, or this lattice if it does not have more rows than
+   *         sampleSize
+   */
+  public Lattice sampleStratified(int sampleSize, int variable, Random random) {
+    BitSet population = getCountedRows();
+    int nbCounted = population.cardinality();
+    if (nbCounted <= sampleSize) {
+      return this;
+    }
+    TIDSet[] sets = singleNodes[variable].records;
+    BitSet selection = new BitSet(nbRows);
+    BitSet others = new BitSet(nbRows);
+    for (int v = 0; v < sets.length; v++) {
+      if (sets[v] != null) {
+        others.or(sets[v].toBitSet());
+      }
+    }
+    for (int v = 0; v < sets.length; v++) {
+      BitSet stratum = (BitSet) population.clone();
+      if (sets[v] != null) {
+        stratum.and(sets[v].toBitSet());
+      } else {
+        stratum.andNot(others);
+      }
+      int share = (int) Math.round((double) sampleSize * stratum.cardinality() / nbCounted);
+      sampleRows(stratum, share, random, selection);
+    }
+    return sampleView(selection);
+  }
+
+  private Lattice sampleView(BitSet selection) {
+    Lattice view = new Lattice(this, selection);
+    view.exact = this;
+    // every sample has its own fingerprint: its counts would only grow the store
+    view.countStore = null;
+    return view;
+  }
+
+  /** @return the rows counted by this lattice (all the rows, or the ones of the subpopulation) */
+  private BitSet getCountedRows() {
+    if (mask != null) {
+      return mask.toBitSet();
+    }
+    BitSet rows = new BitSet(nbRows);
+    rows.set(0, nbRows);
+    return rows;
+  }
+
+  /**
+   * Adds a uniform sample of the rows of a population to a selection: Floyd's
+   * algorithm draws the ranks of the sampled rows in the population, which are
+   * then mapped to the rows in one pass.
+   */
+  private static void sampleRows(BitSet population, int sampleSize, Random random, BitSet selection) {
+    int n = population.cardinality();
+    if (sampleSize >= n) {
+      selection.or(population);
+      return;
+    }
+    BitSet ranks = new BitSet(n);
+    for (int j = n - sampleSize; j < n; j++) {
+      int t = random.nextInt(j + 1);
+      ranks.set(ranks.get(t) ? j : t);
+    }
+    int row = population.nextSetBit(0);
+    int rank = 0;
+    for (int r = ranks.nextSetBit(0); r >= 0; r = ranks.nextSetBit(r + 1)) {
+      while (rank < r) {
+        row = population.nextSetBit(row + 1);
+        rank++;
+      }
+      selection.set(row);
+    }
+  }
+
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+  // Memory governor
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+
+  /**
+   * Bounds the memory used by the nodes of the lattice. The nodes of the first
+   * level hold the data and are always kept; the other ones (and the records
+   * they may have materialised) are evicted, least recently used first, as
+   * soon as their estimated size exceeds the budget. An evicted node is simply
+   * rebuilt if it is asked for again. The nodes shared with copies of the
+   * lattice (@see #Lattice(Lattice)) are kept and no longer accounted for.
+   *
+   * @param bytes
+   *            the budget in bytes (Long.MAX_VALUE for no limit, the default)
+   */
+  public synchronized void setMemoryBudget(long bytes) {
+    this.memoryBudget = bytes;
+    evictIfNeeded();
+  }
+
+  /** @return the node for the given sorted variables, in this lattice or shared with it, null if not built yet */
+  LatticeNode lookup(int[] variables) {
+    LatticeNode node = index.get(variables);
+    if (node == null && sharedIndex != null) { node = sharedIndex.get(variables); }
+    return node;
+  }
+
+  /** @return the node for 'variables U {added}', in this lattice or shared with it, null if not built yet */
+  LatticeNode lookup(int[] variables, int added) {
+    LatticeNode node = index.get(variables, added);
+    if (node == null && sharedIndex != null) { node = sharedIndex.get(variables, added); }
+    return node;
+  }
+
+  /** Adds a newly built node to the index and to the memory accounting */
+  void register(LatticeNode node) {
+    index.put(node);
+    if (node.getLevel() > 1) {
+      if (evictedSketch != null && sketchContains(node.variablesNumbers)) {
+        nbRebuilds++;
+      }
+      addMostRecent(node);
+      addToMemoryUsage(node, node.getBaseSizeInBytes());
+    }
+  }
+
+  /** Marks a node as being the most recently used one */
+  void touch(LatticeNode node) {
+    // the shared nodes are not in the memory accounting of this lattice
+    if (node.lattice == this && !node.shared && node.getLevel() > 1 && node != mostRecent) {
+      unlink(node);
+      addMostRecent(node);
+    }
+  }
+
+  /** Accounts for memory used by a node (e.g. for its records) */
+  void addToMemoryUsage(LatticeNode node, long bytes) {
+    if (node.getLevel() > 1 && !node.shared) {
+      node.sizeInBytes += bytes;
+      memoryUsage += bytes;
+      evictIfNeeded();
+    }
+  }
+
+  private void evictIfNeeded() {
+    // the most recent node is the one in use: never evicted
+    while (memoryUsage > memoryBudget && leastRecent != null && leastRecent != mostRecent) {
+      evict(leastRecent);
+    }
+  }
+
+  private void evict(LatticeNode node) {
+    unlink(node);
+    index.remove(node);
+    int[] variables = node.variablesNumbers;
+    memoryUsage -= node.sizeInBytes;
+    node.sizeInBytes = 0L;
+    node.records = null;
+    if (evictedSketch == null) { evictedSketch = new long[EVICTED_SKETCH_BITS / 64]; }
+    int h = LatticeNodeIndex.hash(variables);
+    int bit1 = h & (EVICTED_SKETCH_BITS - 1);
+    int bit2 = (h >>> 12) & (EVICTED_SKETCH_BITS - 1);
+    evictedSketch[bit1 >>> 6] |= 1L << bit1;
+    evictedSketch[bit2 >>> 6] |= 1L << bit2;
+    nbEvictions++;
+  }
+
+  private boolean sketchContains(int[] variables) {
+    int h = LatticeNodeIndex.hash(variables);
+    int bit1 = h & (EVICTED_SKETCH_BITS - 1);
+    int bit2 = (h >>> 12) & (EVICTED_SKETCH_BITS - 1);
+    return (evictedSketch[bit1 >>> 6] & (1L << bit1)) != 0L && (evictedSketch[bit2 >>> 6] & (1L << bit2)) != 0L;
+  }
+
+  private void addMostRecent(LatticeNode node) {
+    node.lessRecent = mostRecent;
+    node.moreRecent = null;
+    if (mostRecent != null) { mostRecent.moreRecent = node; }
+    mostRecent = node;
+    if (leastRecent == null) { leastRecent = node; }
+  }
+
+  private void unlink(LatticeNode node) {
+    if (node.moreRecent != null) { node.moreRecent.lessRecent = node.lessRecent; } else { mostRecent = node.lessRecent; }
+    if (node.lessRecent != null) { node.lessRecent.moreRecent = node.moreRecent; } else { leastRecent = node.moreRecent; }
+    node.moreRecent = null;
+    node.lessRecent = null;
+  }
+
+  /**
+   * @return the number of instances in the given set of rows (the sum of their
+   *         weights), restricted to the subpopulation for a masked lattice
+   */
+  int count(TIDSet set) {
+    if (mask != null) {
+      return countIntersection(set, mask);
+    }
+    return countRows(set);
+  }
+
+  /**
+   * @return the number of instances in the given set of rows, that must
+   *         already be restricted to the subpopulation for a masked lattice
+   */
+  int countRows(TIDSet set) {
+    return (weights == null) ? set.cardinality() : set.weightedCardinality(weights);
+  }
+
+  /**
+   * @return the given set restricted to the subpopulation for a masked
+   *         lattice, the set itself otherwise
+   */
+  TIDSet restrict(TIDSet set) {
+    return (mask == null) ? set : set.and(mask);
+  }
+
+  private static int[] findImplicitValues(int[] nbValuesForAttribute, TIDSet[][] convData) {
+    int[] implicitValues = new int[convData.length];
+    for (int a = 0; a < convData.length; a++) {
+      implicitValues[a] = -1;
+      for (int v = 0; v < convData[a].length; v++) {
+        if (convData[a][v] == null) {
+          if (nbValuesForAttribute[a] != 2 || implicitValues[a] != -1) {
+            throw new IllegalArgumentException("Only one value of a binary variable can be left implicit (variable " + a + ")");
+          }
+          implicitValues[a] = v;
+        }
+      }
+    }
+    return implicitValues;
+  }
+
+  private int computeNbInstances() {
+    if (mask != null) {
+      return (weights == null) ? mask.cardinality() : mask.weightedCardinality(weights);
+    }
+    int n = nbRows;
+    if (weights != null) {
+      n = 0;
+      for (int i = 0; i < nbRows; i++) { n += weights[i]; }
+    }
+    return n;
+  }
+
+  /** @return the number of instances in the intersection of the given sets of rows */
+  int countIntersection(TIDSet set1, TIDSet set2) {
+    return (weights == null) ? set1.andCardinality(set2) : set1.andWeightedCardinality(set2, weights);
+  }
+
+  /**
+   * @return the TID set of the rows having the given value for the given
+   *         variable, null for the implicit value of a binary variable (@see
+   *         #getImplicitValue(int))
+   */
+  protected TIDSet getSetForVariable(int variableIndex, int valueIndex) {
     return singleNodes[variableIndex].getSet(valueIndex);
   }
 
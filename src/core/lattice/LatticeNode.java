@@ -17,21 +17,15 @@
  ******************************************************************************/
 package core.lattice;
 
-import java.util.ArrayList;
+import java.nio.LongBuffer;
 import java.util.Arrays;
-import java.util.BitSet;
-import java.util.TreeSet;
+import java.util.Comparator;
 
 /**
  * Represents one node of the Lattice {@link Lattice}
  */
 public class LatticeNode implements Comparable<LatticeNode> {
 
-  /**
-   * children of the node
-   */
-  TreeSet<LatticeNode> children;
-
   /**
    * table storing the number of the variables corresponding to the node
    */
@@ -45,7 +39,7 @@ public class LatticeNode implements Comparable<LatticeNode> {
    * Storage of the records: one Bitset set per cell in the matrix. (one
    * dimensional storage of numVariables-dimensional matrix)
    */
-  BitSet[] records;
+  TIDSet[] records;
 
   /**
    * Stores the number of values by attribute (indexed by the number of the
@@ -58,7 +52,11 @@ public class LatticeNode implements Comparable<LatticeNode> {
    */
   int nbVariables;
 
-  int nbCells;
+  /**
+   * number of cells of the matrix (product of the dimensions, which can be
+   * larger than what an int can hold)
+   */
+  long nbCells;
 
   /**
    * tells if the entropy has been computed or not
@@ -67,6 +65,47 @@ public class LatticeNode implements Comparable<LatticeNode> {
 
   Lattice lattice;
 
+  /**
+   * neighbours in the list of the nodes ordered by last access (only for the
+   * nodes that can be evicted, @see {@link Lattice#setMemoryBudget(long)})
+   */
+  LatticeNode moreRecent, lessRecent;
+
+  /**
+   * memory accounted for this node by the lattice
+   */
+  long sizeInBytes;
+
+  /**
+   * true once the node is shared with copies of its lattice: it is then never
+   * evicted (@see Lattice#Lattice(Lattice))
+   */
+  boolean shared;
+
+  /**
+   * positions (in {@link #variablesNumbers}) of the variables in the order used
+   * to enumerate the cells, most selective first (@see
+   * #computeEnumerationOrder())
+   */
+  volatile int[] enumerationOrder;
+
+  /**
+   * strides[j] is the step in the matrix between two consecutive values of
+   * the j<sup>th</sup> variable
+   */
+  long[] strides;
+
+  /**
+   * Relative cost of intersecting (clear, or, and) two TID sets, per 64-bit
+   * word, compared to reading the code of one variable for one row in a scan.
+   */
+  static final double COST_INTERSECTION_PER_WORD = 3.0;
+
+  /**
+   * Matrices with less cells than this are always dense (@see #isSparse())
+   */
+  static final long MAX_CELLS_ALWAYS_DENSE = 1L << 16;
+
   /**
    * Constructor of a node
    * 
@@ -79,26 +118,19 @@ public class LatticeNode implements Comparable<LatticeNode> {
    * @param records
    *            the bitsets for all the possible combination of values for the
    *            variables of this node
-   * @param parents
-   *            the parents of this node
    */
   public LatticeNode(Lattice lattice, int[] variablesNumbers,
-      int[] dimensionsForVariables, BitSet[] records,
-      LatticeNode... parents) {
+      int[] dimensionsForVariables, TIDSet[] records) {
     this.lattice = lattice;
     this.nbVariables = this.lattice.getNbVariables();
     this.variablesNumbers = variablesNumbers;
     this.dimensionsForVariables = dimensionsForVariables;
-    this.children = new TreeSet<LatticeNode>();
-    nbCells = 1;
+    nbCells = 1L;
     for (int i = 0; i < variablesNumbers.length; i++) {
-      nbCells *= dimensionsForVariables[variablesNumbers[i]];
+      nbCells = multiplyCapped(nbCells, dimensionsForVariables[variablesNumbers[i]]);
     }
     this.records = records;
-
-    for (LatticeNode parent : parents) {
-      parent.addChild(this);
-    }
+    lattice.register(this);
 
   }
 
@@ -112,23 +144,9 @@ public class LatticeNode implements Comparable<LatticeNode> {
     this.lattice = lattice;
     this.variablesNumbers = null;
     this.dimensionsForVariables = dimensionsForVariables;
-    this.children = new TreeSet<LatticeNode>();
     records = null;
   }
 
-  public LatticeNode(Lattice lattice, LatticeNode node){
-    this.lattice = lattice;
-    this.variablesNumbers = node.variablesNumbers.clone();
-    this.dimensionsForVariables = node.dimensionsForVariables.clone();
-    this.records = node.records.clone();
-    this.nbCells = node.getNbCells();
-    this.children = new TreeSet<LatticeNode>();
-
-    for(LatticeNode child : node.children){
-      this.children.add(new LatticeNode(lattice, child));
-    }
-  }
-
   /**
    * Computes the intersections of the TIDset for every cell of the matrix, as
    * well as the count (size of the intersection) that will be used for the
@@ -136,16 +154,13 @@ public class LatticeNode implements Comparable<LatticeNode> {
    */
   protected void computeRecords() {
     if (records == null) {
-      records = new BitSet[nbCells];
+      records = new TIDSet[getNbCells()];
       if(getLevel()==1)System.out.println(getLevel());
       for (int i = 0; i < nbCells; i++) {
         int[] indexes = getIndexes(i);
         // nb variables always strictly greater than 1
-        BitSet set = (BitSet) lattice.getSetForVariable(
-            variablesNumbers[0], indexes[0]).clone();
-        set.and(lattice.getSetForVariable(variablesNumbers[1],
-              indexes[1]));
-        records[i] = set;
+        records[i] = lattice.getSetForVariable(variablesNumbers[0], indexes[0])
+          .and(lattice.getSetForVariable(variablesNumbers[1], indexes[1]));
 
       }
     }
@@ -159,29 +174,415 @@ public class LatticeNode implements Comparable<LatticeNode> {
    *         one-dimension.
    */
   public int[] getMatrix() {
-    int[] matrix = new int[nbCells];
+    if (getLevel() > 1 && lattice.countStore != null) {
+      long fingerprint = lattice.getFingerprint();
+      int[] matrix = lattice.countStore.getMatrix(fingerprint, variablesNumbers, getNbCells());
+      if (matrix == null) {
+        matrix = countMatrix(new int[getNbCells()]);
+        lattice.countStore.putMatrix(fingerprint, variablesNumbers, matrix);
+      }
+      return matrix;
+    }
+    return countMatrix(new int[getNbCells()]);
+  }
+
+  /**
+   * Same as {@link #getMatrix()}, but the counts are written in a buffer
+   * supplied by the caller, so that the matrices of many nodes can be
+   * obtained without allocating one array for each of them:
+   * <pre>
+   * buffer = node.getMatrix(buffer);
+   * </pre>
+   * 
+   * @param buffer
+   *            the array to fill; a new one is allocated if it is null or has
+   *            less than {@link #getNbCells()} cells
+   * @return the array holding the matrix in its first {@link #getNbCells()}
+   *         cells (the following ones are left untouched)
+   */
+  public int[] getMatrix(int[] buffer) {
+    int n = getNbCells();
+    if (buffer == null || buffer.length < n) {
+      buffer = new int[n];
+    } else {
+      Arrays.fill(buffer, 0, n, 0);
+    }
+    if (getLevel() > 1 && lattice.countStore != null) {
+      long fingerprint = lattice.getFingerprint();
+      if (lattice.countStore.getMatrix(fingerprint, variablesNumbers, n, buffer) == null) {
+        countMatrix(buffer);
+        lattice.countStore.putMatrix(fingerprint, variablesNumbers, buffer, n);
+      }
+      return buffer;
+    }
+    return countMatrix(buffer);
+  }
+
+  /**
+   * Counts the matrix of this node (@see #getMatrix())
+   * 
+   * @param matrix
+   *            the array to fill, full of zeros over the first
+   *            {@link #getNbCells()} cells
+   */
+  private int[] countMatrix(int[] matrix) {
     if (getLevel() <= 1) {
       computeRecords();
-      for (int i = 0; i < matrix.length; i++) {
-        matrix[i] = records[i].cardinality();
+      for (int i = 0; i < records.length; i++) {
+        matrix[i] = countValue(i);
       }
+    } else if (isRowScanCheaper()) {
+      lattice.rowScan.count(variablesNumbers, dimensionsForVariables, matrix);
     } else {
-      for (int i = 0; i < nbCells; i++) {
-        int[] indexes = getIndexes(i);
-        // nb variables always strictly greater than 1
-        BitSet set = (BitSet) lattice.getSetForVariable(
-            variablesNumbers[0], indexes[0]).clone();
-        int j;
-        for (j = 1; j < variablesNumbers.length; j++) {
-          set.and(lattice.getSetForVariable(variablesNumbers[j],
-                indexes[j]));
+      // depth-first enumeration of the cells: the intersection for a prefix of
+      // values is computed once and shared by all the cells below it
+      // the variables are enumerated from the most selective one, so that
+      // empty prefixes (and their whole subtree) are met as early as possible;
+      // the subpopulation of a masked lattice is intersected at the root
+      computeEnumerationOrder();
+      TIDSet[] partials = new TIDSet[variablesNumbers.length];
+      long[][] buffers = new long[variablesNumbers.length][];
+      int first = enumerationOrder[0];
+      int dim = dimensionsForVariables[variablesNumbers[first]];
+      for (int v = 0; v < dim; v++) {
+        partials[0] = intersect(null, lattice.getSetForVariable(variablesNumbers[first], v), null, 0);
+        if (!isEmpty(partials[0])) {
+          fillMatrix(matrix, partials, buffers, 1, v * strides[first]);
         }
-        matrix[i] = set.cardinality();
+      }
+      if (hasImplicitValues()) {
+        subtractImplicitValues(matrix);
       }
     }
     return matrix;
   }
 
+  /**
+   * Tells if the matrix of this node should be handled as a
+   * {@link SparseTable} (@see #getSparseMatrix()) rather than as a dense array:
+   * when the number of cells is much larger than the number of rows most cells
+   * are empty, and when it does not fit in an int a dense array is impossible.
+   * 
+   * @return true if the matrix should be sparse
+   */
+  public boolean isSparse() {
+    return isSparse(nbCells, lattice.getNbRows());
+  }
+
+  /** @return true if a matrix with the given number of cells should be sparse (@see #isSparse()) */
+  static boolean isSparse(long nbCells, int nbRows) {
+    return nbCells > Integer.MAX_VALUE
+      || (nbCells > MAX_CELLS_ALWAYS_DENSE && nbCells > 2L * nbRows);
+  }
+
+  /**
+   * @return the non-empty cells of the matrix of this node, indexed as for
+   *         {@link #getMatrix()}; the cost is proportional to the number of
+   *         non-empty cells (or of rows with the row scan) rather than to the
+   *         number of cells.
+   */
+  public SparseTable getSparseMatrix() {
+    if (getLevel() > 1 && lattice.countStore != null) {
+      long fingerprint = lattice.getFingerprint();
+      SparseTable table = lattice.countStore.getSparseMatrix(fingerprint, variablesNumbers);
+      if (table == null) {
+        table = countSparseMatrix();
+        lattice.countStore.putSparseMatrix(fingerprint, variablesNumbers, table);
+      }
+      return table;
+    }
+    return countSparseMatrix();
+  }
+
+  /** Counts the sparse matrix of this node (@see #getSparseMatrix()) */
+  private SparseTable countSparseMatrix() {
+    SparseTable table = new SparseTable();
+    if (getLevel() <= 1) {
+      computeRecords();
+      for (int i = 0; i < records.length; i++) {
+        table.add(i, countValue(i));
+      }
+    } else if (lattice.rowScan != null) {
+      lattice.rowScan.count(variablesNumbers, dimensionsForVariables, table);
+    } else {
+      computeEnumerationOrder();
+      TIDSet[] partials = new TIDSet[variablesNumbers.length];
+      long[][] buffers = new long[variablesNumbers.length][];
+      int first = enumerationOrder[0];
+      int dim = dimensionsForVariables[variablesNumbers[first]];
+      for (int v = 0; v < dim; v++) {
+        partials[0] = intersect(null, lattice.getSetForVariable(variablesNumbers[first], v), null, 0);
+        if (!isEmpty(partials[0])) {
+          fillCells(table, partials, buffers, 1, v * strides[first]);
+        }
+      }
+      if (hasImplicitValues()) {
+        subtractImplicitValues(table);
+      }
+    }
+    return table;
+  }
+
+  /**
+   * Streams the non-empty cells of the matrix of this node to a consumer, in
+   * no particular order. When neither the row scan, nor a count store, nor
+   * the implicit values of binary variables are involved, the cells are given
+   * as they are counted, without building any table; otherwise they are read
+   * from {@link #getSparseMatrix()}.
+   * 
+   * @param consumer
+   *            receives every non-empty cell exactly once
+   */
+  public void forEachCell(CellConsumer consumer) {
+    if (getLevel() <= 1) {
+      computeRecords();
+      for (int i = 0; i < records.length; i++) {
+        int count = countValue(i);
+        if (count != 0) {
+          consumer.accept(i, count);
+        }
+      }
+    } else if (lattice.rowScan != null || lattice.countStore != null || hasImplicitValues()) {
+      SparseTable table = getSparseMatrix();
+      for (int s = table.nextSlot(0); s >= 0; s = table.nextSlot(s + 1)) {
+        int count = table.getCount(s);
+        if (count != 0) {
+          consumer.accept(table.getIndex(s), count);
+        }
+      }
+    } else {
+      computeEnumerationOrder();
+      TIDSet[] partials = new TIDSet[variablesNumbers.length];
+      long[][] buffers = new long[variablesNumbers.length][];
+      int first = enumerationOrder[0];
+      int dim = dimensionsForVariables[variablesNumbers[first]];
+      for (int v = 0; v < dim; v++) {
+        partials[0] = intersect(null, lattice.getSetForVariable(variablesNumbers[first], v), null, 0);
+        if (!isEmpty(partials[0])) {
+          fillCells(consumer, partials, buffers, 1, v * strides[first]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Sparse version of {@link #fillMatrix(int[], TIDSet[], long[][], int, long)}:
+   * only the non-empty cells are given to the consumer.
+   */
+  private void fillCells(CellConsumer cells, TIDSet[] partials, long[][] buffers, int depth, long offset) {
+    TIDSet prefix = partials[depth - 1];
+    int position = enumerationOrder[depth];
+    int variable = variablesNumbers[position];
+    long stride = strides[position];
+    int dim = dimensionsForVariables[variable];
+    boolean isLast = (depth == variablesNumbers.length - 1);
+    for (int v = 0; v < dim; v++) {
+      TIDSet set = lattice.getSetForVariable(variable, v);
+      long index = offset + v * stride;
+      if (isLast) {
+        int count = countIntersection(prefix, set);
+        if (count != 0) {
+          cells.accept(index, count);
+        }
+      } else {
+        partials[depth] = intersect(prefix, set, buffers, depth);
+        if (!isEmpty(partials[depth])) {
+          fillCells(cells, partials, buffers, depth + 1, index);
+        }
+      }
+    }
+  }
+
+  /**
+   * Cost model choosing the counting engine for this node: the depth-first
+   * intersection of TID sets costs one intersection per edge of the tree of
+   * values (at most d1 + d1.d2 + ... + d1...dk edges below the first level),
+   * each one over all the words of the TID sets; the scan reads the k codes of
+   * every row and then touches every cell once.
+   * 
+   * @return true if the row scan is enabled and expected to be cheaper
+   */
+  boolean isRowScanCheaper() {
+    return isRowScanCheaper(lattice, variablesNumbers, dimensionsForVariables, nbCells);
+  }
+
+  /** @return true if the row scan is cheaper for the given (sorted) variables (@see #isRowScanCheaper()) */
+  static boolean isRowScanCheaper(Lattice lattice, int[] variablesNumbers, int[] dimensionsForVariables, long nbCells) {
+    if (lattice.rowScan == null) {
+      return false;
+    }
+    int nbRows = lattice.getNbRows();
+    double nbWords = Math.ceil(nbRows / 64.0);
+    double nbEdges = 0.0;
+    double nbPrefixes = dimensionsForVariables[variablesNumbers[0]];
+    for (int j = 1; j < variablesNumbers.length; j++) {
+      nbPrefixes *= dimensionsForVariables[variablesNumbers[j]];
+      nbEdges += nbPrefixes;
+    }
+    double costIntersections = COST_INTERSECTION_PER_WORD * nbWords * nbEdges;
+    double costScan = (double) nbRows * variablesNumbers.length + nbCells;
+    return costScan < costIntersections;
+  }
+
+  /**
+   * Fills the cells of the matrix that are below the given prefix of values.
+   * Empty intersections are not explored any further: all the cells below them
+   * are left to 0.
+   * 
+   * @param matrix
+   *            the matrix being filled
+   * @param partials
+   *            partials[j] is the intersection of the TID sets for the values
+   *            chosen for the first j+1 variables
+   * @param buffers
+   *            buffers[j] holds the words of partials[j] when it is dense, so
+   *            that the intersections do not allocate new words for every
+   *            prefix
+   * @param depth
+   *            the rank, in {@link #enumerationOrder}, of the variable to
+   *            enumerate
+   * @param offset
+   *            the contribution of the values already chosen to the index of
+   *            the cells in the matrix
+   */
+  private void fillMatrix(int[] matrix, TIDSet[] partials, long[][] buffers, int depth, long offset) {
+    TIDSet prefix = partials[depth - 1];
+    int position = enumerationOrder[depth];
+    int variable = variablesNumbers[position];
+    long stride = strides[position];
+    int dim = dimensionsForVariables[variable];
+    boolean isLast = (depth == variablesNumbers.length - 1);
+    for (int v = 0; v < dim; v++) {
+      TIDSet set = lattice.getSetForVariable(variable, v);
+      int index = (int) (offset + v * stride);
+      if (isLast) {
+        // the intersections for the last variable are only counted
+        matrix[index] = countIntersection(prefix, set);
+      } else {
+        partials[depth] = intersect(prefix, set, buffers, depth);
+        if (!isEmpty(partials[depth])) {
+          fillMatrix(matrix, partials, buffers, depth + 1, index);
+        }
+      }
+    }
+  }
+
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+  // Binary variables with an implicit value (@see Lattice#getImplicitValue(int))
+  // In the depth-first enumeration, the implicit value does not constrain the
+  // rows (the partial intersection null stands for all the rows of the
+  // lattice): its cells first hold the counts without this variable, from
+  // which the counts for the other value are then subtracted.
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+
+  /**
+   * @param buffers
+   *            reusable buffers for the dense intersections at every depth,
+   *            null to always allocate the result
+   * @return the intersection of a partial intersection (null for all the
+   *         rows) with the set for a value (null for an implicit value)
+   */
+  private TIDSet intersect(TIDSet prefix, TIDSet set, long[][] buffers, int depth) {
+    if (set == null) {
+      return prefix;
+    }
+    if (prefix == null) {
+      return lattice.restrict(set);
+    }
+    if (buffers != null && prefix instanceof DenseTIDSet && set instanceof DenseTIDSet) {
+      DenseTIDSet dense1 = (DenseTIDSet) prefix, dense2 = (DenseTIDSet) set;
+      int length = Math.min(dense1.words.length, dense2.words.length);
+      if (buffers[depth] == null || buffers[depth].length < length) {
+        buffers[depth] = new long[length];
+      }
+      return dense1.andInto(dense2, buffers[depth]);
+    }
+    if (buffers != null && (prefix instanceof MappedTIDSet || set instanceof MappedTIDSet)) {
+      LongBuffer words1 = WordKernels.words(prefix), words2 = WordKernels.words(set);
+      if (words1 != null && words2 != null) {
+        int length = Math.min(words1.capacity(), words2.capacity());
+        if (buffers[depth] == null || buffers[depth].length < length) {
+          buffers[depth] = new long[length];
+        }
+        int c = WordKernels.andInto(words1, words2, buffers[depth]);
+        return new DenseTIDSet(buffers[depth], c);
+      }
+    }
+    return prefix.and(set);
+  }
+
+  /** @return the number of instances in the intersection (@see #intersect(TIDSet, TIDSet, long[][], int)) */
+  private int countIntersection(TIDSet prefix, TIDSet set) {
+    if (prefix == null) {
+      return (set == null) ? lattice.getNbInstances() : lattice.count(set);
+    }
+    return (set == null) ? lattice.countRows(prefix) : lattice.countIntersection(prefix, set);
+  }
+
+  private static boolean isEmpty(TIDSet partial) {
+    return partial != null && partial.isEmpty();
+  }
+
+  /** @return the count for the i<sup>th</sup> value of a node of the first level */
+  private int countValue(int i) {
+    if (records[i] == null) {
+      return lattice.getNbInstances() - lattice.count(records[1 - i]);
+    }
+    return lattice.count(records[i]);
+  }
+
+  /** @return true if one of the variables of the node has an implicit value */
+  boolean hasImplicitValues() {
+    for (int j = 0; j < variablesNumbers.length; j++) {
+      if (lattice.getImplicitValue(variablesNumbers[j]) >= 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Turns the counts of the implicit values, computed without constraining
+   * their variable, into the actual counts: n(.., x=implicit, ..) = n(.., ..)
+   * - n(.., x=other, ..), one variable after the other (Moebius inversion).
+   */
+  private void subtractImplicitValues(int[] matrix) {
+    for (int j = 0; j < variablesNumbers.length; j++) {
+      int implicit = lattice.getImplicitValue(variablesNumbers[j]);
+      if (implicit >= 0) {
+        int stride = (int) strides[j];
+        int shift = (1 - 2 * implicit) * stride;
+        for (int i = 0; i < nbCells; i++) {
+          if ((i / stride) % 2 == implicit) {
+            matrix[i] -= matrix[i + shift];
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Sparse version of {@link #subtractImplicitValues(int[])}; the cells that
+   * become empty are removed from the table.
+   */
+  private void subtractImplicitValues(SparseTable table) {
+    for (int j = 0; j < variablesNumbers.length; j++) {
+      int implicit = lattice.getImplicitValue(variablesNumbers[j]);
+      if (implicit >= 0) {
+        long stride = strides[j];
+        long shift = (1 - 2 * implicit) * stride;
+        for (int s = table.nextSlot(0); s >= 0; s = table.nextSlot(s + 1)) {
+          long index = table.getIndex(s);
+          if ((index / stride) % 2 == implicit) {
+            // the cell is already in the table: no insertion while iterating
+            table.add(index, -table.get(index + shift));
+          }
+        }
+      }
+    }
+    table.removeEmptyCells();
+  }
+
   /**
    * Returns the i<up>th</up> cell of the matrix.
    * 
@@ -193,18 +594,9 @@ public class LatticeNode implements Comparable<LatticeNode> {
   public int getMatrixCell(int i) {
     if (getLevel() <= 1) {
       computeRecords();//TODO not necessary for storing one level?
-      return records[i].cardinality();
+      return countValue(i);
     } else {
-      int[] indexes = getIndexes(i);
-      // nb variables always strictly greater than 1
-      BitSet set = (BitSet) lattice.getSetForVariable(
-          variablesNumbers[0], indexes[0]).clone();
-      int j;
-      for (j = 1; j < variablesNumbers.length; j++) {
-        set.and(lattice.getSetForVariable(variablesNumbers[j],
-              indexes[j]));
-      }
-      return set.cardinality();
+      return getMatrixCell(getIndexes(i));
     }
   }
 
@@ -220,18 +612,127 @@ public class LatticeNode implements Comparable<LatticeNode> {
   public int getMatrixCell(int[] indexes) {
     if (getLevel() <= 1) {
       computeRecords();
-      return records[getIndex(indexes)].cardinality();
+      return countValue(getIndex(indexes));
     } else {
-      // nb variables always strictly greater than 1
-      BitSet set = (BitSet) lattice.getSetForVariable(
-          variablesNumbers[0], indexes[0]).clone();
-      int j;
-      for (j = 1; j < variablesNumbers.length; j++) {
-        set.and(lattice.getSetForVariable(variablesNumbers[j],
-              indexes[j]));
+      // nb variables always strictly greater than 1; the rows of the
+      // subpopulation of a masked lattice are one more set to intersect
+      int k = variablesNumbers.length;
+      TIDSet[] sets = new TIDSet[k + 1];
+      TIDSet[] others = null;
+      int nbSets = 0, nbImplicit = 0;
+      for (int j = 0; j < k; j++) {
+        int implicit = lattice.getImplicitValue(variablesNumbers[j]);
+        if (indexes[j] == implicit) {
+          if (others == null) { others = new TIDSet[k]; }
+          others[nbImplicit++] = lattice.getSetForVariable(variablesNumbers[j], 1 - implicit);
+        } else {
+          sets[nbSets++] = lattice.getSetForVariable(variablesNumbers[j], indexes[j]);
+        }
+      }
+      if (lattice.mask != null) {
+        sets[nbSets++] = lattice.mask;
+      }
+      if (nbImplicit == 0) {
+        return countIntersection(sets, nbSets);
+      }
+      // inclusion-exclusion over the implicit values asked for:
+      // n(x=implicit, rest) = n(rest) - n(x=other, rest)
+      TIDSet[] subsetSets = new TIDSet[nbSets + nbImplicit];
+      int count = 0;
+      for (int subset = 0; subset < (1 << nbImplicit); subset++) {
+        System.arraycopy(sets, 0, subsetSets, 0, nbSets);
+        int n = nbSets;
+        for (int j = 0; j < nbImplicit; j++) {
+          if ((subset & (1 << j)) != 0) { subsetSets[n++] = others[j]; }
+        }
+        int c = (n == 0) ? lattice.getNbInstances() : countIntersection(subsetSets, n);
+        count += (Integer.bitCount(subset) % 2 == 0) ? c : -c;
+      }
+      return count;
+    }
+  }
+
+  /**
+   * @return the number of instances in the intersection of the given sets
+   *         (reordered in place), intersected from the rarest one so that the
+   *         running intersection shrinks (and possibly becomes empty) as soon
+   *         as possible
+   */
+  private int countIntersection(TIDSet[] sets, int length) {
+    int[] cardinalities = new int[length];
+    for (int j = 0; j < length; j++) {
+      TIDSet set = sets[j];
+      int cardinality = set.cardinality();
+      if (cardinality == 0) {
+        return 0;
+      }
+      // insertion sort by increasing cardinality
+      int pos = j;
+      while (pos > 0 && cardinalities[pos - 1] > cardinality) {
+        sets[pos] = sets[pos - 1];
+        cardinalities[pos] = cardinalities[pos - 1];
+        pos--;
+      }
+      sets[pos] = set;
+      cardinalities[pos] = cardinality;
+    }
+    return TIDSet.intersectionCardinality(sets, length, lattice.weights);
+  }
+
+  /**
+   * Computes (once) the order in which the variables of this node are
+   * enumerated when filling the matrix, from the most selective one, as well
+   * as the stride of every variable in the matrix. The selectivity of a
+   * variable is estimated from the counts of its values (level-1 records) as
+   * the probability that two rows share the same value, sum(p_v^2): the lower
+   * it is, the smaller the intersections below it.
+   */
+  void computeEnumerationOrder() {
+    if (enumerationOrder != null) {
+      return;
+    }
+    int k = variablesNumbers.length;
+    long[] newStrides = new long[k];
+    long stride = 1L;
+    for (int j = k - 1; j >= 0; j--) {
+      newStrides[j] = stride;
+      stride *= dimensionsForVariables[variablesNumbers[j]];
+    }
+    double nbRows = Math.max(1, lattice.getNbRows());
+    double[] selectivities = new double[k];
+    Integer[] positions = new Integer[k];
+    for (int j = 0; j < k; j++) {
+      double selectivity = 0.0;
+      double remaining = 1.0;
+      for (int v = 0; v < dimensionsForVariables[variablesNumbers[j]]; v++) {
+        TIDSet set = lattice.getSetForVariable(variablesNumbers[j], v);
+        if (set != null) {
+          double p = set.cardinality() / nbRows;
+          selectivity += p * p;
+          remaining -= p;
+        }
+      }
+      if (lattice.getImplicitValue(variablesNumbers[j]) >= 0) {
+        selectivity += remaining * remaining;
+      }
+      selectivities[j] = selectivity;
+      positions[j] = j;
+    }
+    final double[] keys = selectivities;
+    Arrays.sort(positions, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer p1, Integer p2) {
+        int cmp = Double.compare(keys[p1], keys[p2]);
+        return (cmp != 0) ? cmp : p1.compareTo(p2);
       }
-      return set.cardinality();
+    });
+    int[] order = new int[k];
+    for (int j = 0; j < k; j++) {
+      order[j] = positions[j];
     }
+    // (enumerationOrder last: it publishes the strides to the other threads)
+    this.strides = newStrides;
+    this.enumerationOrder = order;
   }
 
   /**
@@ -242,66 +743,28 @@ public class LatticeNode implements Comparable<LatticeNode> {
    * @return the corresponding node
    */
   public LatticeNode getChild(int variableNumber, Lattice lattice) {
-    // constructing the variables numbers corresponding to the search
-    int[] childVariablesNumbers = new int[variablesNumbers.length + 1];
-    int currentIndex = 0;
-    while (currentIndex < variablesNumbers.length
-        && variablesNumbers[currentIndex] < variableNumber) {
-      childVariablesNumbers[currentIndex] = variablesNumbers[currentIndex];
-      currentIndex++;
-        }
-    childVariablesNumbers[currentIndex] = variableNumber;
-    currentIndex++;
-    while (currentIndex < childVariablesNumbers.length) {
-      childVariablesNumbers[currentIndex] = variablesNumbers[currentIndex - 1];
-      currentIndex++;
-    }
-
     // looking for the corresponding child
-    LatticeNode foundNode = null;
-    for (LatticeNode child : children) {
-      int i;
-      for (i = 0; i < childVariablesNumbers.length; i++) {
-        if (childVariablesNumbers[i] < child.variablesNumbers[i]) {
-          break;
-        }
-        if (childVariablesNumbers[i] > child.variablesNumbers[i]) {
-          break;
-        }
+    LatticeNode foundNode = lattice.lookup(variablesNumbers, variableNumber);
+    if (foundNode != null) {
+      lattice.touch(foundNode);
+    } else { // node not yet computed, thus we compute it
+      // constructing the variables numbers corresponding to the search
+      int[] childVariablesNumbers = new int[variablesNumbers.length + 1];
+      int currentIndex = 0;
+      while (currentIndex < variablesNumbers.length
+          && variablesNumbers[currentIndex] < variableNumber) {
+        childVariablesNumbers[currentIndex] = variablesNumbers[currentIndex];
+        currentIndex++;
       }
-      if (i == childVariablesNumbers.length) {
-        foundNode = child;
-        break;
+      childVariablesNumbers[currentIndex] = variableNumber;
+      currentIndex++;
+      while (currentIndex < childVariablesNumbers.length) {
+        childVariablesNumbers[currentIndex] = variablesNumbers[currentIndex - 1];
+        currentIndex++;
       }
 
-    }
-    // if (foundNode == null)
-    // System.out.println(Arrays.toString(childVariablesNumbers) +
-    // " not found among children " + children);
-
-    if (foundNode == null) { // node not yet computed, thus we compute it
-      // get all the parents using all (the root)
-      ArrayList<LatticeNode> childParents = new ArrayList<LatticeNode>();
-      for (int i = 0; i < childVariablesNumbers.length; i++) {
-        // one parent per variable of the child
-        // parent skipping the i
-        int[] parentVariableNumbers = new int[childVariablesNumbers.length - 1];
-        for (int j = 0; j < childVariablesNumbers.length; j++) {
-          if (j < i) {
-            parentVariableNumbers[j] = childVariablesNumbers[j];
-          } else if (j > i) {
-            parentVariableNumbers[j - 1] = childVariablesNumbers[j];
-          }
-        }
-        // System.out.println("potential parent for "+Arrays.toString(childVariablesNumbers)+": "+Arrays.toString(parentVariableNumbers));
-        // System.out.println(lattice.getNode(parentVariableNumbers));
-        childParents.add(lattice.getNode(parentVariableNumbers));// should
-        // always
-        // exist
-      }
       foundNode = new LatticeNode(lattice, childVariablesNumbers,
-          dimensionsForVariables, null,
-          childParents.toArray(new LatticeNode[] {}));
+          dimensionsForVariables, null);
 
     }
     return foundNode;
@@ -330,7 +793,7 @@ public class LatticeNode implements Comparable<LatticeNode> {
     return 0;
   }
 
-  protected BitSet getSet(int... indexes) {
+  protected TIDSet getSet(int... indexes) {
     if (records == null) {
       computeRecords();
     }
@@ -348,9 +811,27 @@ public class LatticeNode implements Comparable<LatticeNode> {
    *         cells in the matrix (@see {@link #getMatrix()}).
    */
   public int getNbCells() {
+    if (nbCells > Integer.MAX_VALUE) {
+      throw new ArithmeticException(this + " has too many cells (" + getNbCellsLong() + ") for a dense matrix");
+    }
+    return (int) nbCells;
+  }
+
+  /**
+   * @return the number of cells in the matrix, even when it is larger than
+   *         an int can hold (saturates at Long.MAX_VALUE)
+   */
+  public long getNbCellsLong() {
     return nbCells;
   }
 
+  private static long multiplyCapped(long a, long b) {
+    if (a > Long.MAX_VALUE / b) {
+      return Long.MAX_VALUE;
+    }
+    return a * b;
+  }
+
   /**
    * Computes the index in the one-dimensional array from the coordinates in
    * the matrix
@@ -395,14 +876,122 @@ public class LatticeNode implements Comparable<LatticeNode> {
   public final int[] getIndexes(int index) {
 
     int[] indexes = new int[variablesNumbers.length];
-    for (int i = indexes.length - 1; i > 0; i--) {
+    getIndexes(index, indexes);
+    return indexes;
+  }
+
+  /**
+   * Same as {@link #getIndexes(int)}, in an array supplied by the caller.
+   * 
+   * @param index
+   *            the index in the one-dimensional array
+   * @param indexes
+   *            the array receiving the indexes, with at least one cell per
+   *            variable of the node
+   */
+  public final void getIndexes(int index, int[] indexes) {
+    for (int i = variablesNumbers.length - 1; i > 0; i--) {
       int dim = dimensionsForVariables[variablesNumbers[i]];
       indexes[i] = index % dim;
       index /= dim;
     }
     indexes[0] = index;
+  }
 
-    return indexes;
+  /**
+   * Moves to the indexes of the next cell of the matrix, as an odometer (the
+   * last variable changes first), so that the cells can be visited in the
+   * order of {@link #getMatrix()} without any division nor allocation:
+   * <pre>
+   * int[] indexes = new int[node.getLevel()];
+   * int cell = 0;
+   * do {
+   *   // indexes are the values of the cell 'cell'
+   *   cell++;
+   * } while (node.nextIndexes(indexes));
+   * </pre>
+   * 
+   * @param indexes
+   *            the indexes of a cell, modified in place
+   * @return false if the given cell was the last one (the indexes are then
+   *         back to the first cell, all 0)
+   */
+  public final boolean nextIndexes(int[] indexes) {
+    for (int i = variablesNumbers.length - 1; i >= 0; i--) {
+      indexes[i]++;
+      if (indexes[i] < dimensionsForVariables[variablesNumbers[i]]) {
+        return true;
+      }
+      indexes[i] = 0;
+    }
+    return false;
+  }
+
+  /**
+   * Sums a matrix of this node over one of its variables. The result is the
+   * matrix of the parent node that does not have this variable (in the layout
+   * of {@link #getMatrix()} for that parent), so that the tables of subsets of
+   * a node can be derived without going back to the data.
+   * 
+   * @param matrix
+   *            a matrix of this node (@see {@link #getMatrix()})
+   * @param variableNumber
+   *            the number of the variable to sum over; must be one of the
+   *            variables of this node
+   * @return the marginal matrix over the remaining variables
+   */
+  public int[] marginalise(int[] matrix, int variableNumber) {
+    int position = Arrays.binarySearch(variablesNumbers, variableNumber);
+    if (position < 0) {
+      throw new IllegalArgumentException("variable " + variableNumber + " is not in " + this);
+    }
+    int dim = dimensionsForVariables[variableNumber];
+    int inner = 1;
+    for (int i = position + 1; i < variablesNumbers.length; i++) {
+      inner *= dimensionsForVariables[variablesNumbers[i]];
+    }
+    int outer = getNbCells() / (dim * inner);
+
+    int[] marginal = new int[outer * inner];
+    int from = 0;
+    for (int o = 0; o < outer; o++) {
+      int to = o * inner;
+      for (int v = 0; v < dim; v++) {
+        for (int i = 0; i < inner; i++) {
+          marginal[to + i] += matrix[from];
+          from++;
+        }
+      }
+    }
+    return marginal;
+  }
+
+  /**
+   * Sparse version of {@link #marginalise(int[], int)}.
+   * 
+   * @param table
+   *            a sparse matrix of this node (@see {@link #getSparseMatrix()})
+   * @param variableNumber
+   *            the number of the variable to sum over
+   * @return the marginal matrix over the remaining variables
+   */
+  public SparseTable marginalise(SparseTable table, int variableNumber) {
+    int position = Arrays.binarySearch(variablesNumbers, variableNumber);
+    if (position < 0) {
+      throw new IllegalArgumentException("variable " + variableNumber + " is not in " + this);
+    }
+    int dim = dimensionsForVariables[variableNumber];
+    long inner = 1L;
+    for (int i = position + 1; i < variablesNumbers.length; i++) {
+      inner *= dimensionsForVariables[variablesNumbers[i]];
+    }
+    SparseTable marginal = new SparseTable(table.size());
+    for (int s = table.nextSlot(0); s >= 0; s = table.nextSlot(s + 1)) {
+      long index = table.getIndex(s);
+      long outer = index / (dim * inner);
+      marginal.add(outer * inner + index % inner, table.getCount(s));
+    }
+    return marginal;
   }
 
 
@@ -412,14 +1001,11 @@ public class LatticeNode implements Comparable<LatticeNode> {
   }
 
   /**
-   * Add the given node as a child of the current one (without checking
-   * anything).
-   * 
-   * @param child
-   *            the node to be added as a child
+   * @return an estimate of the memory used by the node itself (object and
+   *         variables), not counting its records
    */
-  protected void addChild(LatticeNode child) {
-    this.children.add(child);
+  long getBaseSizeInBytes() {
+    return 96L + 4L * variablesNumbers.length;
   }
 
   /**
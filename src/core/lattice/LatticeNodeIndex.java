@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.lattice;
+
+import java.util.BitSet;
+
+/**
+ * Hash index over the nodes of a {@link Lattice}, keyed by the (sorted) set of
+ * variables of each node. The lookups can be done from a sorted array, from a
+ * BitSet or from a parent node plus one variable, all in O(k) and without
+ * allocating any key.
+ * Open addressing with linear probing; the hash of every stored node is kept
+ * to avoid comparing the variables of nodes that cannot match.
+ */
+final class LatticeNodeIndex {
+
+  private static final int INITIAL_CAPACITY = 1 << 10;
+
+  private LatticeNode[] nodes;
+  private int[] hashes;
+  private int size;
+  private int mask;
+
+  LatticeNodeIndex() {
+    this.nodes = new LatticeNode[INITIAL_CAPACITY];
+    this.hashes = new int[INITIAL_CAPACITY];
+    this.mask = INITIAL_CAPACITY - 1;
+    this.size = 0;
+  }
+
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+  // Hashing
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+
+  private static int step(int h, int variable) {
+    return 31 * h + variable;
+  }
+
+  /** Final mixing (murmur3) so that close sets of variables spread over the table */
+  private static int spread(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  static int hash(int[] variables) {
+    int h = 1;
+    for (int i = 0; i < variables.length; i++) { h = step(h, variables[i]); }
+    return spread(h);
+  }
+
+  static int hash(BitSet variables) {
+    int h = 1;
+    for (int i = variables.nextSetBit(0); i >= 0; i = variables.nextSetBit(i + 1)) { h = step(h, i); }
+    return spread(h);
+  }
+
+  /** Hash of the sorted set 'variables U {added}', with 'added' not in 'variables' */
+  static int hash(int[] variables, int added) {
+    int h = 1;
+    boolean inserted = false;
+    for (int i = 0; i < variables.length; i++) {
+      if (!inserted && added < variables[i]) {
+        h = step(h, added);
+        inserted = true;
+      }
+      h = step(h, variables[i]);
+    }
+    if (!inserted) { h = step(h, added); }
+    return spread(h);
+  }
+
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+  // Equality between the key of a node and the different representations
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+
+  private static boolean matches(LatticeNode node, int[] variables) {
+    int[] nodeVariables = node.variablesNumbers;
+    if (nodeVariables.length != variables.length) { return false; }
+    for (int i = 0; i < variables.length; i++) {
+      if (nodeVariables[i] != variables[i]) { return false; }
+    }
+    return true;
+  }
+
+  private static boolean matches(LatticeNode node, BitSet variables, int cardinality) {
+    int[] nodeVariables = node.variablesNumbers;
+    if (nodeVariables.length != cardinality) { return false; }
+    int i = 0;
+    for (int v = variables.nextSetBit(0); v >= 0; v = variables.nextSetBit(v + 1)) {
+      if (nodeVariables[i] != v) { return false; }
+      i++;
+    }
+    return true;
+  }
+
+  private static boolean matches(LatticeNode node, int[] variables, int added) {
+    int[] nodeVariables = node.variablesNumbers;
+    if (nodeVariables.length != variables.length + 1) { return false; }
+    int j = 0;
+    boolean inserted = false;
+    for (int i = 0; i < nodeVariables.length; i++) {
+      int expected;
+      if (!inserted && (j == variables.length || added < variables[j])) {
+        expected = added;
+        inserted = true;
+      } else {
+        expected = variables[j];
+        j++;
+      }
+      if (nodeVariables[i] != expected) { return false; }
+    }
+    return true;
+  }
+
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+  // Lookups
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+
+  /** @return the node for the given sorted variables, null if not in the index */
+  LatticeNode get(int[] variables) {
+    int h = hash(variables);
+    for (int slot = h & mask; nodes[slot] != null; slot = (slot + 1) & mask) {
+      if (hashes[slot] == h && matches(nodes[slot], variables)) { return nodes[slot]; }
+    }
+    return null;
+  }
+
+  /** @return the node for the given set of variables, null if not in the index */
+  LatticeNode get(BitSet variables) {
+    int h = hash(variables);
+    int cardinality = variables.cardinality();
+    for (int slot = h & mask; nodes[slot] != null; slot = (slot + 1) & mask) {
+      if (hashes[slot] == h && matches(nodes[slot], variables, cardinality)) { return nodes[slot]; }
+    }
+    return null;
+  }
+
+  /** @return the node for 'variables U {added}', null if not in the index */
+  LatticeNode get(int[] variables, int added) {
+    int h = hash(variables, added);
+    for (int slot = h & mask; nodes[slot] != null; slot = (slot + 1) & mask) {
+      if (hashes[slot] == h && matches(nodes[slot], variables, added)) { return nodes[slot]; }
+    }
+    return null;
+  }
+
+  /**
+   * Adds a node to the index; a node already stored for the same variables is
+   * replaced.
+   */
+  void put(LatticeNode node) {
+    if (2 * (size + 1) > nodes.length) { resize(2 * nodes.length); }
+    int h = hash(node.variablesNumbers);
+    int slot = h & mask;
+    while (nodes[slot] != null) {
+      if (hashes[slot] == h && matches(nodes[slot], node.variablesNumbers)) {
+        nodes[slot] = node;
+        return;
+      }
+      slot = (slot + 1) & mask;
+    }
+    nodes[slot] = node;
+    hashes[slot] = h;
+    size++;
+  }
+
+  /**
+   * Removes a node from the index (backward-shift deletion, so that no probe
+   * sequence is broken and no tombstone is needed).
+   */
+  void remove(LatticeNode node) {
+    int slot = hash(node.variablesNumbers) & mask;
+    while (nodes[slot] != node) {
+      if (nodes[slot] == null) { return; }
+      slot = (slot + 1) & mask;
+    }
+    // shift back the following entries that would not be found anymore
+    int hole = slot;
+    int next = (hole + 1) & mask;
+    while (nodes[next] != null) {
+      int ideal = hashes[next] & mask;
+      // the entry can fill the hole if its ideal slot is not in ]hole,next]
+      if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+        nodes[hole] = nodes[next];
+        hashes[hole] = hashes[next];
+        hole = next;
+      }
+      next = (next + 1) & mask;
+    }
+    nodes[hole] = null;
+    size--;
+  }
+
+  /** Adds all the nodes of another index to this one */
+  void putAll(LatticeNodeIndex other) {
+    for (int i = 0; i < other.nodes.length; i++) {
+      if (other.nodes[i] != null) { put(other.nodes[i]); }
+    }
+  }
+
+  /** @return the number of nodes in the index */
+  int size() {
+    return size;
+  }
+
+  private void resize(int capacity) {
+    LatticeNode[] oldNodes = nodes;
+    int[] oldHashes = hashes;
+    nodes = new LatticeNode[capacity];
+    hashes = new int[capacity];
+    mask = capacity - 1;
+    for (int i = 0; i < oldNodes.length; i++) {
+      if (oldNodes[i] != null) {
+        int slot = oldHashes[i] & mask;
+        while (nodes[slot] != null) { slot = (slot + 1) & mask; }
+        nodes[slot] = oldNodes[i];
+        hashes[slot] = oldHashes[i];
+      }
+    }
+  }
+}
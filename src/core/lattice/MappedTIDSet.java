@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.lattice;
+
+import java.nio.LongBuffer;
+
+/**
+ * Dense TID set read directly from a memory-mapped {@link ColumnFile}: the
+ * words stay in the file (in the page cache of the OS) rather than on the
+ * heap. The intersections are returned as {@link DenseTIDSet}s.
+ */
+public class MappedTIDSet extends TIDSet {
+
+  /**
+   * the words of the set (same layout as {@link DenseTIDSet}), a slice of the
+   * mapping of the file, only read with absolute gets (@see WordKernels)
+   */
+  final LongBuffer words;
+  private final int nbWords;
+  private final int cardinality;
+
+  /**
+   * @param words
+   *            the words of the set
+   * @param cardinality
+   *            the number of rows in the set (stored in the file)
+   */
+  MappedTIDSet(LongBuffer words, int cardinality) {
+    this.words = words;
+    this.nbWords = words.capacity();
+    this.cardinality = cardinality;
+  }
+
+  @Override
+  public int cardinality() {
+    return cardinality;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return cardinality == 0;
+  }
+
+  @Override
+  public boolean get(int row) {
+    int w = row >>> 6;
+    return w < nbWords && (words.get(w) & (1L << row)) != 0L;
+  }
+
+  @Override
+  public int nextSetBit(int fromRow) {
+    int w = fromRow >>> 6;
+    if (w >= nbWords) {
+      return -1;
+    }
+    long word = words.get(w) & (-1L << fromRow);
+    while (true) {
+      if (word != 0L) {
+        return (w << 6) + Long.numberOfTrailingZeros(word);
+      }
+      w++;
+      if (w == nbWords) {
+        return -1;
+      }
+      word = words.get(w);
+    }
+  }
+
+  @Override
+  public TIDSet and(TIDSet other) {
+    if (other instanceof DenseTIDSet) {
+      long[] otherWords = ((DenseTIDSet) other).words;
+      int n = Math.min(nbWords, otherWords.length);
+      long[] result = new long[n];
+      for (int i = 0; i < n; i++) {
+        result[i] = words.get(i) & otherWords[i];
+      }
+      return new DenseTIDSet(result);
+    } else if (other instanceof MappedTIDSet) {
+      MappedTIDSet o = (MappedTIDSet) other;
+      int n = Math.min(nbWords, o.nbWords);
+      long[] result = new long[n];
+      for (int i = 0; i < n; i++) {
+        result[i] = words.get(i) & o.words.get(i);
+      }
+      return new DenseTIDSet(result);
+    } else {
+      return other.and(this);
+    }
+  }
+
+  @Override
+  public int andCardinality(TIDSet other) {
+    if (other instanceof DenseTIDSet) {
+      long[] otherWords = ((DenseTIDSet) other).words;
+      int n = Math.min(nbWords, otherWords.length);
+      int c = 0;
+      for (int i = 0; i < n; i++) {
+        c += Long.bitCount(words.get(i) & otherWords[i]);
+      }
+      return c;
+    } else if (other instanceof MappedTIDSet) {
+      MappedTIDSet o = (MappedTIDSet) other;
+      int n = Math.min(nbWords, o.nbWords);
+      int c = 0;
+      for (int i = 0; i < n; i++) {
+        c += Long.bitCount(words.get(i) & o.words.get(i));
+      }
+      return c;
+    } else {
+      return other.andCardinality(this);
+    }
+  }
+
+  @Override
+  public int weightedCardinality(int[] weights) {
+    int c = 0;
+    for (int i = 0; i < nbWords; i++) {
+      c += WordKernels.sumWeights(words.get(i), i << 6, weights);
+    }
+    return c;
+  }
+
+  @Override
+  public int andWeightedCardinality(TIDSet other, int[] weights) {
+    LongBuffer otherWords = WordKernels.words(other);
+    if (otherWords != null) {
+      int n = Math.min(nbWords, otherWords.capacity());
+      int c = 0;
+      for (int i = 0; i < n; i++) {
+        c += WordKernels.sumWeights(words.get(i) & otherWords.get(i), i << 6, weights);
+      }
+      return c;
+    } else {
+      return other.andWeightedCardinality(this, weights);
+    }
+  }
+
+  /** @return the size of the mapped words (not on the heap) */
+  @Override
+  public long getSizeInBytes() {
+    return 8L * nbWords;
+  }
+}
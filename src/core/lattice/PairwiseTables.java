@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.lattice;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds the matrices of counts of all the pairs of variables of a lattice in
+ * parallel, without creating their nodes; used to fill the caches of the
+ * scorers before the first exploration step, which scores every pair.
+ * The pairs are processed in blocks sharing their first variable (whose TID
+ * sets are restricted to the subpopulation once for the whole block), and for
+ * each pair one value of each variable (the implicit one if any, the most
+ * frequent one otherwise) is derived from the counts of the first level
+ * rather than intersected. As for the nodes (@see LatticeNode#getMatrix()),
+ * the matrices are first looked up in the {@link CountStore} of the lattice
+ * if any, and counted by the row scan when it is cheaper.
+ */
+public final class PairwiseTables {
+
+  /** Receives the matrix of every pair of variables */
+  public interface PairConsumer {
+    /**
+     * Called concurrently by the workers.
+     * 
+     * @param a
+     *            the first variable of the pair
+     * @param b
+     *            the second variable of the pair (a &lt; b)
+     * @param matrix
+     *            the matrix of the pair in its first dim(a).dim(b) cells, in
+     *            the layout of {@link LatticeNode#getMatrix()}; the array is
+     *            reused after the call
+     */
+    void accept(int a, int b, int[] matrix);
+  }
+
+  private PairwiseTables() {
+  }
+
+  /**
+   * @return true if the matrix of the pair (a,b) is computed by
+   *         {@link #computeAll(Lattice, int, PairConsumer)}; the pairs whose
+   *         matrix is sparse are left to the nodes of the lattice (@see
+   *         LatticeNode#isSparse())
+   */
+  public static boolean isComputed(Lattice lattice, int a, int b) {
+    int[] dims = lattice.getnbValuesForAttribute();
+    return !LatticeNode.isSparse((long) dims[a] * dims[b], lattice.getNbRows());
+  }
+
+  /**
+   * Computes the matrices of all the pairs of variables whose matrix is dense
+   * (@see #isComputed(Lattice, int, int)).
+   * 
+   * @param lattice
+   *            the lattice holding the data (only read)
+   * @param nbThreads
+   *            the number of workers
+   * @param consumer
+   *            receives every matrix
+   */
+  public static void computeAll(final Lattice lattice, int nbThreads, final PairConsumer consumer) {
+    final int nbVariables = lattice.getNbVariables();
+    final int[][] marginals = new int[nbVariables][];
+    for (int a = 0; a < nbVariables; a++) {
+      marginals[a] = lattice.getSingleNodes()[a].getMatrix();
+    }
+    if (lattice.countStore != null) {
+      // computed once before the workers share it
+      lattice.getFingerprint();
+    }
+    final AtomicInteger nextBlock = new AtomicInteger(0);
+    final Throwable[] failure = new Throwable[1];
+    Thread[] workers = new Thread[Math.max(1, nbThreads)];
+    for (int t = 0; t < workers.length; t++) {
+      workers[t] = new Thread("pairwise-tables-" + t) {
+        @Override
+        public void run() {
+          try {
+            int[] buffer = new int[0];
+            // the first blocks have the most pairs: they are handed out first
+            for (int a = nextBlock.getAndIncrement(); a < nbVariables - 1; a = nextBlock.getAndIncrement()) {
+              buffer = computeBlock(lattice, a, marginals, buffer, consumer);
+            }
+          } catch (Throwable e) {
+            synchronized (failure) {
+              if (failure[0] == null) { failure[0] = e; }
+            }
+          }
+        }
+      };
+      workers[t].start();
+    }
+    for (Thread worker : workers) {
+      try {
+        worker.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while computing the pairwise tables", e);
+      }
+    }
+    if (failure[0] != null) {
+      throw new RuntimeException("Failed to compute the pairwise tables", failure[0]);
+    }
+  }
+
+  /** Computes the matrices of the pairs (a,b) for all b &gt; a */
+  private static int[] computeBlock(Lattice lattice, int a, int[][] marginals, int[] buffer, PairConsumer consumer) {
+    int nbVariables = lattice.getNbVariables();
+    int dimA = marginals[a].length;
+    int skipA = derivedValue(lattice, a, marginals[a]);
+    TIDSet[] setsA = new TIDSet[dimA];
+    for (int va = 0; va < dimA; va++) {
+      if (va != skipA) { setsA[va] = lattice.restrict(lattice.getSetForVariable(a, va)); }
+    }
+    int[] dims = lattice.getnbValuesForAttribute();
+    for (int b = a + 1; b < nbVariables; b++) {
+      if (!isComputed(lattice, a, b)) {
+        continue;
+      }
+      int dimB = marginals[b].length;
+      int nbCells = dimA * dimB;
+      if (buffer.length < nbCells) { buffer = new int[nbCells]; }
+      int[] pair = new int[] { a, b };
+      if (lattice.countStore != null) {
+        if (lattice.countStore.getMatrix(lattice.getFingerprint(), pair, nbCells, buffer) != null) {
+          consumer.accept(a, b, buffer);
+          continue;
+        }
+      }
+      if (LatticeNode.isRowScanCheaper(lattice, pair, dims, nbCells)) {
+        Arrays.fill(buffer, 0, nbCells, 0);
+        lattice.rowScan.count(pair, dims, buffer);
+      } else {
+        countPair(lattice, a, b, setsA, skipA, marginals, buffer);
+      }
+      if (lattice.countStore != null) {
+        lattice.countStore.putMatrix(lattice.getFingerprint(), pair, buffer, nbCells);
+      }
+      consumer.accept(a, b, buffer);
+    }
+    return buffer;
+  }
+
+  /** Counts the matrix of the pair (a,b) from the TID sets of a, restricted to the subpopulation */
+  private static void countPair(Lattice lattice, int a, int b, TIDSet[] setsA, int skipA, int[][] marginals, int[] buffer) {
+    int dimA = marginals[a].length;
+    int dimB = marginals[b].length;
+    int skipB = derivedValue(lattice, b, marginals[b]);
+    for (int va = 0; va < dimA; va++) {
+      if (va == skipA) { continue; }
+      int rest = marginals[a][va];
+      for (int vb = 0; vb < dimB; vb++) {
+        if (vb == skipB) { continue; }
+        int count = lattice.countIntersection(setsA[va], lattice.getSetForVariable(b, vb));
+        buffer[va * dimB + vb] = count;
+        rest -= count;
+      }
+      buffer[va * dimB + skipB] = rest;
+    }
+    for (int vb = 0; vb < dimB; vb++) {
+      int rest = marginals[b][vb];
+      for (int va = 0; va < dimA; va++) {
+        if (va != skipA) { rest -= buffer[va * dimB + vb]; }
+      }
+      buffer[skipA * dimB + vb] = rest;
+    }
+  }
+
+  /** @return the value of the variable whose counts are derived from the others */
+  private static int derivedValue(Lattice lattice, int variable, int[] marginal) {
+    int implicit = lattice.getImplicitValue(variable);
+    if (implicit >= 0) {
+      return implicit;
+    }
+    int best = 0;
+    for (int v = 1; v < marginal.length; v++) {
+      if (marginal[v] > marginal[best]) { best = v; }
+    }
+    return best;
+  }
+}
@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.lattice;
+
+import java.util.Arrays;
+
+/**
+ * Counting engine that builds a full matrix in a single pass over the rows,
+ * rather than with one intersection of TID sets per cell. It works on a
+ * compact copy of the data storing the index of the value of every variable
+ * for every row (one byte per value when the variable has at most 256 values,
+ * one short otherwise).
+ * The codes are stored variable by variable: a node only reads the k streams
+ * of its own variables, whereas a row-major layout would load a cache line per
+ * variable and per row.
+ */
+final class RowScanCounter {
+
+  /** codes for the variables with at most 256 values (null otherwise) */
+  private final byte[][] byteCodes;
+  /** codes for the variables with more than 256 values (null otherwise) */
+  private final short[][] shortCodes;
+  private final int nbRows;
+  /** weight of every row, null if every row counts once */
+  private final int[] weights;
+  /** rows to count, null for all of them */
+  private final TIDSet mask;
+
+  /**
+   * Builds the codes from the TID sets of the lattice.
+   *
+   * @param nbRows
+   *            the number of rows in the data
+   * @param nbValuesForAttribute
+   *            the number of values for every variable
+   * @param convData
+   *            the TID set for every value of every variable
+   * @param weights
+   *            the weight of every row, null if every row counts once
+   * @param mask
+   *            the rows to count, null for all of them
+   */
+  RowScanCounter(int nbRows, int[] nbValuesForAttribute, TIDSet[][] convData, int[] weights, TIDSet mask) {
+    int nbVariables = nbValuesForAttribute.length;
+    this.nbRows = nbRows;
+    this.weights = weights;
+    this.mask = mask;
+    this.byteCodes = new byte[nbVariables][];
+    this.shortCodes = new short[nbVariables][];
+    for (int a = 0; a < nbVariables; a++) {
+      if (nbValuesForAttribute[a] > Character.MAX_VALUE + 1) {
+        throw new IllegalArgumentException("Variable " + a + " has too many values for the row scan: " + nbValuesForAttribute[a]);
+      }
+      if (nbValuesForAttribute[a] <= 256) {
+        byte[] codes = new byte[nbRows];
+        for (int v = 0; v < convData[a].length; v++) {
+          // rows of an implicit value (null set) are the ones without any other value
+          if (convData[a][v] == null) { Arrays.fill(codes, (byte) v); }
+        }
+        for (int v = 0; v < convData[a].length; v++) {
+          TIDSet set = convData[a][v];
+          if (set == null) { continue; }
+          for (int i = set.nextSetBit(0); i >= 0 && i < nbRows; i = set.nextSetBit(i + 1)) { codes[i] = (byte) v; }
+        }
+        byteCodes[a] = codes;
+      } else {
+        short[] codes = new short[nbRows];
+        for (int v = 0; v < convData[a].length; v++) {
+          // rows of an implicit value (null set) are the ones without any other value
+          if (convData[a][v] == null) { Arrays.fill(codes, (short) v); }
+        }
+        for (int v = 0; v < convData[a].length; v++) {
+          TIDSet set = convData[a][v];
+          if (set == null) { continue; }
+          for (int i = set.nextSetBit(0); i >= 0 && i < nbRows; i = set.nextSetBit(i + 1)) { codes[i] = (short) v; }
+        }
+        shortCodes[a] = codes;
+      }
+    }
+  }
+
+  private RowScanCounter(RowScanCounter counter, int[] weights, TIDSet mask) {
+    this.byteCodes = counter.byteCodes;
+    this.shortCodes = counter.shortCodes;
+    this.nbRows = counter.nbRows;
+    this.weights = weights;
+    this.mask = mask;
+  }
+
+  /**
+   * @return a counter sharing the codes of this one, with other weights for
+   *         the rows (null if every row counts once) and other rows to count
+   *         (null for all of them)
+   */
+  RowScanCounter withRows(int[] weights, TIDSet mask) {
+    return new RowScanCounter(this, weights, mask);
+  }
+
+  /** @return the first row to count at or after the given one, -1 if none */
+  private int nextRow(int row) {
+    if (mask != null) {
+      return mask.nextSetBit(row);
+    }
+    return (row < nbRows) ? row : -1;
+  }
+
+  /**
+   * Fills the matrix of a node (@see {@link LatticeNode#getMatrix()}) with
+   * one scan of the rows.
+   *
+   * @param variablesNumbers
+   *            the (sorted) variables of the node
+   * @param dimensionsForVariables
+   *            the number of values for every variable
+   * @param matrix
+   *            the matrix to fill, that must be full of zeros
+   */
+  void count(int[] variablesNumbers, int[] dimensionsForVariables, int[] matrix) {
+    int k = variablesNumbers.length;
+    byte[][] nodeByteCodes = new byte[k][];
+    short[][] nodeShortCodes = new short[k][];
+    int[] dims = new int[k];
+    for (int j = 0; j < k; j++) {
+      nodeByteCodes[j] = byteCodes[variablesNumbers[j]];
+      nodeShortCodes[j] = shortCodes[variablesNumbers[j]];
+      dims[j] = dimensionsForVariables[variablesNumbers[j]];
+    }
+    for (int i = nextRow(0); i >= 0; i = nextRow(i + 1)) {
+      int index = 0;
+      for (int j = 0; j < k; j++) {
+        int code = (nodeByteCodes[j] != null) ? nodeByteCodes[j][i] & 0xFF : nodeShortCodes[j][i] & 0xFFFF;
+        index = index * dims[j] + code;
+      }
+      matrix[index] += (weights == null) ? 1 : weights[i];
+    }
+  }
+
+  /**
+   * Sparse version of {@link #count(int[], int[], int[])}
+   */
+  void count(int[] variablesNumbers, int[] dimensionsForVariables, SparseTable table) {
+    int k = variablesNumbers.length;
+    byte[][] nodeByteCodes = new byte[k][];
+    short[][] nodeShortCodes = new short[k][];
+    int[] dims = new int[k];
+    for (int j = 0; j < k; j++) {
+      nodeByteCodes[j] = byteCodes[variablesNumbers[j]];
+      nodeShortCodes[j] = shortCodes[variablesNumbers[j]];
+      dims[j] = dimensionsForVariables[variablesNumbers[j]];
+    }
+    for (int i = nextRow(0); i >= 0; i = nextRow(i + 1)) {
+      long index = 0L;
+      for (int j = 0; j < k; j++) {
+        int code = (nodeByteCodes[j] != null) ? nodeByteCodes[j][i] & 0xFF : nodeShortCodes[j][i] & 0xFFFF;
+        index = index * dims[j] + code;
+      }
+      table.add(index, (weights == null) ? 1 : weights[i]);
+    }
+  }
+
+  /** @return the number of bytes used by the codes */
+  long getSizeInBytes() {
+    long size = 0L;
+    for (int a = 0; a < byteCodes.length; a++) {
+      size += (byteCodes[a] != null) ? byteCodes[a].length : 2L * shortCodes[a].length;
+    }
+    return size;
+  }
+}
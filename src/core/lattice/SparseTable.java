@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.lattice;
+
+import java.util.Arrays;
+
+/**
+ * Sparse matrix of counts: only the non-empty cells are stored, in an open
+ * addressing (linear probing) map from the index of the cell (as for
+ * {@link LatticeNode#getMatrix()}, but on 64 bits) to its count. Used for the
+ * nodes whose number of cells is large compared to the number of rows, for
+ * which most of the cells are empty (a cell left with a count of 0 by a
+ * subtraction stays in the table until {@link #removeEmptyCells()}).
+ * The cells are iterated with:
+ * <pre>
+ * for (int s = table.nextSlot(0); s >= 0; s = table.nextSlot(s + 1)) {
+ *   long index = table.getIndex(s);
+ *   int count = table.getCount(s);
+ * }
+ * </pre>
+ */
+public class SparseTable implements CellConsumer {
+
+  private static final long EMPTY = -1L;
+
+  private long[] indexes;
+  private int[] counts;
+  private int size;
+  private int mask;
+
+  public SparseTable() {
+    this(16);
+  }
+
+  /**
+   * @param expectedSize
+   *            the expected number of non-empty cells
+   */
+  public SparseTable(int expectedSize) {
+    int capacity = 16;
+    while (capacity < 2 * expectedSize) {
+      capacity <<= 1;
+    }
+    allocate(capacity);
+  }
+
+  private void allocate(int capacity) {
+    this.indexes = new long[capacity];
+    Arrays.fill(indexes, EMPTY);
+    this.counts = new int[capacity];
+    this.mask = capacity - 1;
+    this.size = 0;
+  }
+
+  private static int slotFor(long index, int mask) {
+    long h = index * 0x9E3779B97F4A7C15L;
+    return (int) (h >>> 32) & mask;
+  }
+
+  /** Adds count to the given cell */
+  public void add(long index, int count) {
+    if (count == 0) {
+      return;
+    }
+    int slot = slotFor(index, mask);
+    while (indexes[slot] != EMPTY) {
+      if (indexes[slot] == index) {
+        counts[slot] += count;
+        return;
+      }
+      slot = (slot + 1) & mask;
+    }
+    indexes[slot] = index;
+    counts[slot] = count;
+    size++;
+    if (2 * size > indexes.length) {
+      resize(2 * indexes.length);
+    }
+  }
+
+  /** Same as {@link #add(long, int)}, so that a table can collect the cells of a node */
+  @Override
+  public void accept(long index, int count) {
+    add(index, count);
+  }
+
+  /** @return the count for the given cell (0 if empty) */
+  public int get(long index) {
+    int slot = slotFor(index, mask);
+    while (indexes[slot] != EMPTY) {
+      if (indexes[slot] == index) {
+        return counts[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+    return 0;
+  }
+
+  /** @return the number of non-empty cells */
+  public int size() {
+    return size;
+  }
+
+  /** @return the first used slot at or after the given one, -1 if none */
+  public int nextSlot(int from) {
+    for (int s = from; s < indexes.length; s++) {
+      if (indexes[s] != EMPTY) {
+        return s;
+      }
+    }
+    return -1;
+  }
+
+  /** @return the index of the cell stored in the given slot */
+  public long getIndex(int slot) {
+    return indexes[slot];
+  }
+
+  /** @return the count of the cell stored in the given slot */
+  public int getCount(int slot) {
+    return counts[slot];
+  }
+
+  /** Removes the cells whose count is 0, so that {@link #size()} only counts non-empty cells */
+  public void removeEmptyCells() {
+    int nbEmpty = 0;
+    for (int s = 0; s < indexes.length; s++) {
+      if (indexes[s] != EMPTY && counts[s] == 0) {
+        nbEmpty++;
+      }
+    }
+    if (nbEmpty > 0) {
+      rehash(indexes.length, true);
+    }
+  }
+
+  private void resize(int capacity) {
+    rehash(capacity, false);
+  }
+
+  private void rehash(int capacity, boolean skipEmptyCells) {
+    long[] oldIndexes = indexes;
+    int[] oldCounts = counts;
+    allocate(capacity);
+    for (int s = 0; s < oldIndexes.length; s++) {
+      if (oldIndexes[s] != EMPTY && !(skipEmptyCells && oldCounts[s] == 0)) {
+        int slot = slotFor(oldIndexes[s], mask);
+        while (indexes[slot] != EMPTY) {
+          slot = (slot + 1) & mask;
+        }
+        indexes[slot] = oldIndexes[s];
+        counts[slot] = oldCounts[s];
+        size++;
+      }
+    }
+  }
+}
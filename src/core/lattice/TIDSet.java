@@ -0,0 +1,219 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.lattice;
+
+import java.nio.LongBuffer;
+import java.util.BitSet;
+
+/**
+ * Set of transaction (row) identifiers, used by the {@link Lattice} to store
+ * the rows matching every value of every variable, and by the
+ * {@link LatticeNode}s to intersect them. TID sets are never modified once
+ * built: an intersection always returns a new set.
+ *
+ * @see DenseTIDSet
+ * @see CompressedTIDSet
+ */
+public abstract class TIDSet {
+
+  /** @return the number of rows in the set */
+  public abstract int cardinality();
+
+  /** @return true if the set does not contain any row */
+  public abstract boolean isEmpty();
+
+  /** @return true if the set contains the given row */
+  public abstract boolean get(int row);
+
+  /**
+   * @return the first row in the set that is greater or equal to the given
+   *         row, or -1 if there is none
+   */
+  public abstract int nextSetBit(int fromRow);
+
+  /** @return the intersection of this set with the given one */
+  public abstract TIDSet and(TIDSet other);
+
+  /**
+   * @return the number of rows in the intersection of this set with the given
+   *         one, without building the intersection
+   */
+  public abstract int andCardinality(TIDSet other);
+
+  /**
+   * @param weights
+   *            the weight of every row
+   * @return the sum of the weights of the rows in the set
+   */
+  public int weightedCardinality(int[] weights) {
+    int c = 0;
+    for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1)) {
+      c += weights[i];
+    }
+    return c;
+  }
+
+  /**
+   * @param weights
+   *            the weight of every row
+   * @return the sum of the weights of the rows in the intersection of this set
+   *         with the given one
+   */
+  public int andWeightedCardinality(TIDSet other, int[] weights) {
+    return and(other).weightedCardinality(weights);
+  }
+
+  /** @return an estimate of the memory used by this set */
+  public abstract long getSizeInBytes();
+
+  /** @return a copy of this set as a {@link BitSet} */
+  public BitSet toBitSet() {
+    BitSet set = new BitSet();
+    for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1)) {
+      set.set(i);
+    }
+    return set;
+  }
+
+  /**
+   * Number of rows in the intersection of the first length sets, with an early
+   * exit: the intersection stops as soon as the running result is empty. The
+   * sets should hence be given from the most selective one. When all the sets
+   * are dense (or mapped), they are intersected and counted in a single pass
+   * over their words ({@link WordKernels}), without any intermediate set.
+   *
+   * @param sets
+   *            the sets to intersect (at least one)
+   * @param length
+   *            the number of sets to intersect
+   * @param weights
+   *            the weight of every row, null if every row counts once
+   * @return the (weighted) cardinality of the intersection
+   */
+  public static int intersectionCardinality(TIDSet[] sets, int length, int[] weights) {
+    long[][] words = denseWords(sets, length);
+    if (words != null) {
+      // fused kernel: one pass over the words, without any intermediate set
+      return (weights == null) ? WordKernels.andCardinality(words, length) : WordKernels.andWeightedCardinality(words, length, weights);
+    }
+    LongBuffer[] buffers = wordBuffers(sets, length);
+    if (buffers != null) {
+      return (weights == null) ? WordKernels.andCardinality(buffers, length) : WordKernels.andWeightedCardinality(buffers, length, weights);
+    }
+    if (length == 1) {
+      return (weights == null) ? sets[0].cardinality() : sets[0].weightedCardinality(weights);
+    }
+    TIDSet running = sets[0];
+    int last = length - 1;
+    for (int j = 1; j < last; j++) {
+      running = running.and(sets[j]);
+      if (running.isEmpty()) {
+        return 0;
+      }
+    }
+    return (weights == null) ? running.andCardinality(sets[last]) : running.andWeightedCardinality(sets[last], weights);
+  }
+
+  /** @return the words of the first length sets if they are all dense, null otherwise */
+  private static long[][] denseWords(TIDSet[] sets, int length) {
+    long[][] words = new long[length][];
+    for (int j = 0; j < length; j++) {
+      if (!(sets[j] instanceof DenseTIDSet)) {
+        return null;
+      }
+      words[j] = ((DenseTIDSet) sets[j]).words;
+    }
+    return words;
+  }
+
+  /** @return the words of the first length sets if they are all dense or mapped, null otherwise */
+  private static LongBuffer[] wordBuffers(TIDSet[] sets, int length) {
+    LongBuffer[] buffers = new LongBuffer[length];
+    for (int j = 0; j < length; j++) {
+      buffers[j] = WordKernels.words(sets[j]);
+      if (buffers[j] == null) {
+        return null;
+      }
+    }
+    return buffers;
+  }
+
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+  // Factories
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+
+  /** @return a dense (one bit per row) copy of the given set */
+  public static TIDSet dense(BitSet set) {
+    return new DenseTIDSet(set);
+  }
+
+  /** @return a compressed copy of the given set */
+  public static TIDSet compressed(BitSet set) {
+    return new CompressedTIDSet(set);
+  }
+
+  /**
+   * Converts the TID sets of a dataset (for every value of every variable, as
+   * given to the {@link Lattice} constructor).
+   *
+   * @param convData
+   *            the TID sets of the dataset
+   * @param compressed
+   *            true for {@link CompressedTIDSet}s, false for
+   *            {@link DenseTIDSet}s
+   * @return the converted TID sets
+   */
+  public static TIDSet[][] convert(BitSet[][] convData, boolean compressed) {
+    return convert(convData, compressed, false);
+  }
+
+  /**
+   * Converts the TID sets of a dataset (@see #convert(BitSet[][], boolean)),
+   * possibly only keeping the "positive" set (value 1) of the binary
+   * variables: the set for value 0, usually almost full for sparse data such
+   * as bags of words, is then left null and the {@link Lattice} deduces its
+   * counts from the ones of value 1.
+   *
+   * @param convData
+   *            the TID sets of the dataset
+   * @param compressed
+   *            true for {@link CompressedTIDSet}s, false for
+   *            {@link DenseTIDSet}s
+   * @param positiveOnly
+   *            true to only keep the set for value 1 of the binary variables
+   * @return the converted TID sets
+   */
+  public static TIDSet[][] convert(BitSet[][] convData, boolean compressed, boolean positiveOnly) {
+    TIDSet[][] sets = new TIDSet[convData.length][];
+    for (int a = 0; a < convData.length; a++) {
+      sets[a] = new TIDSet[convData[a].length];
+      for (int v = 0; v < convData[a].length; v++) {
+        if (positiveOnly && v == 0 && convData[a].length == 2) {
+          continue;
+        }
+        sets[a][v] = compressed ? compressed(convData[a][v]) : dense(convData[a][v]);
+      }
+    }
+    return sets;
+  }
+
+  @Override
+  public String toString() {
+    return toBitSet().toString();
+  }
+}
@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.lattice;
+
+import java.nio.LongBuffer;
+
+/**
+ * Allocation-free kernels over the words of dense TID sets (same layout as
+ * {@link DenseTIDSet}): the intersection of any number of sets is counted in a
+ * single pass over the words, without materialising any intermediate set.
+ * The words are either arrays on the heap or buffers, for the sets mapped
+ * from a {@link ColumnFile} ({@link MappedTIDSet}); the buffers are only read
+ * with absolute gets, so they can be shared between threads.
+ */
+final class WordKernels {
+
+  private WordKernels() {
+  }
+
+  /** @return the number of words common to the first k arrays */
+  private static int minLength(long[][] sets, int k) {
+    int n = sets[0].length;
+    for (int j = 1; j < k; j++) {
+      n = Math.min(n, sets[j].length);
+    }
+    return n;
+  }
+
+  /**
+   * @param sets
+   *            the words of the sets
+   * @param k
+   *            the number of sets to intersect (at least one)
+   * @return the number of rows in the intersection of the first k sets
+   */
+  static int andCardinality(long[][] sets, int k) {
+    int n = minLength(sets, k);
+    int c = 0;
+    switch (k) {
+    case 1:
+      for (int i = 0; i < n; i++) { c += Long.bitCount(sets[0][i]); }
+      return c;
+    case 2: {
+      long[] s0 = sets[0], s1 = sets[1];
+      for (int i = 0; i < n; i++) { c += Long.bitCount(s0[i] & s1[i]); }
+      return c;
+    }
+    case 3: {
+      long[] s0 = sets[0], s1 = sets[1], s2 = sets[2];
+      for (int i = 0; i < n; i++) { c += Long.bitCount(s0[i] & s1[i] & s2[i]); }
+      return c;
+    }
+    default:
+      for (int i = 0; i < n; i++) {
+        // the rarest sets come first: most words are cleared by the first ones
+        long word = sets[0][i] & sets[1][i];
+        for (int j = 2; j < k && word != 0L; j++) { word &= sets[j][i]; }
+        c += Long.bitCount(word);
+      }
+      return c;
+    }
+  }
+
+  /**
+   * Weighted version of {@link #andCardinality(long[][], int)}
+   *
+   * @return the sum of the weights of the rows in the intersection of the
+   *         first k sets
+   */
+  static int andWeightedCardinality(long[][] sets, int k, int[] weights) {
+    int n = minLength(sets, k);
+    int c = 0;
+    for (int i = 0; i < n; i++) {
+      long word = sets[0][i];
+      for (int j = 1; j < k && word != 0L; j++) { word &= sets[j][i]; }
+      c += sumWeights(word, i << 6, weights);
+    }
+    return c;
+  }
+
+  /**
+   * Writes the intersection of two sets in a buffer; the words of the buffer
+   * beyond the intersection are cleared.
+   *
+   * @param result
+   *            the buffer, at least as long as the shortest set
+   * @return the number of rows in the intersection (counted in the same pass)
+   */
+  static int andInto(long[] set1, long[] set2, long[] result) {
+    int n = Math.min(set1.length, set2.length);
+    int c = 0;
+    for (int i = 0; i < n; i++) {
+      long word = set1[i] & set2[i];
+      result[i] = word;
+      c += Long.bitCount(word);
+    }
+    for (int i = n; i < result.length; i++) {
+      result[i] = 0L;
+    }
+    return c;
+  }
+
+  /**
+   * @return the words of a dense or mapped set (without copying them), null
+   *         for any other representation
+   */
+  static LongBuffer words(TIDSet set) {
+    if (set instanceof DenseTIDSet) {
+      return LongBuffer.wrap(((DenseTIDSet) set).words);
+    } else if (set instanceof MappedTIDSet) {
+      return ((MappedTIDSet) set).words;
+    }
+    return null;
+  }
+
+  /** @return the number of words common to the first k buffers */
+  private static int minLength(LongBuffer[] sets, int k) {
+    int n = sets[0].capacity();
+    for (int j = 1; j < k; j++) {
+      n = Math.min(n, sets[j].capacity());
+    }
+    return n;
+  }
+
+  /** Version of {@link #andCardinality(long[][], int)} for words in buffers */
+  static int andCardinality(LongBuffer[] sets, int k) {
+    int n = minLength(sets, k);
+    int c = 0;
+    for (int i = 0; i < n; i++) {
+      long word = sets[0].get(i);
+      for (int j = 1; j < k && word != 0L; j++) { word &= sets[j].get(i); }
+      c += Long.bitCount(word);
+    }
+    return c;
+  }
+
+  /** Version of {@link #andWeightedCardinality(long[][], int, int[])} for words in buffers */
+  static int andWeightedCardinality(LongBuffer[] sets, int k, int[] weights) {
+    int n = minLength(sets, k);
+    int c = 0;
+    for (int i = 0; i < n; i++) {
+      long word = sets[0].get(i);
+      for (int j = 1; j < k && word != 0L; j++) { word &= sets[j].get(i); }
+      c += sumWeights(word, i << 6, weights);
+    }
+    return c;
+  }
+
+  /** Version of {@link #andInto(long[], long[], long[])} for words in buffers */
+  static int andInto(LongBuffer set1, LongBuffer set2, long[] result) {
+    int n = Math.min(set1.capacity(), set2.capacity());
+    int c = 0;
+    for (int i = 0; i < n; i++) {
+      long word = set1.get(i) & set2.get(i);
+      result[i] = word;
+      c += Long.bitCount(word);
+    }
+    for (int i = n; i < result.length; i++) {
+      result[i] = 0L;
+    }
+    return c;
+  }
+
+  /** @return the sum of the weights of the rows set in the given word */
+  static int sumWeights(long word, int firstRow, int[] weights) {
+    int c = 0;
+    while (word != 0L) {
+      c += weights[firstRow + Long.numberOfTrailingZeros(word)];
+      word &= word - 1L;
+    }
+    return c;
+  }
+}
@@ -301,6 +301,9 @@ public class DecomposableModel {
     Sabuaub.set(a);
     Sabuaub.set(b);
 
+    // counts the table of Sab+a+b once for the 4 entropies
+    computer.computeEntropies(Sab, a, b);
+
     Double entropy = 0.0;
     Double tmp;
 
@@ -1101,6 +1104,9 @@ public class DecomposableModel {
     Sabuaub.set(a);
     Sabuaub.set(b);
 
+    // counts the table of Sab+a+b once for the 4 entropies
+    computer.computeEntropies(Sab, a, b);
+
     Double entropy = 0.0;
     Double tmp;
 
@@ -1165,6 +1171,8 @@ public class DecomposableModel {
 
     lengthPositionData = 0.0;
 
+    // counts the table of Sab+a+b once for the 4 lengths
+    computer.computeLengthsData(Sab, a, b);
     lengthPositionData += computer.computeLengthData(Sab);
     lengthPositionData -= computer.computeLengthData(Sabua);
     lengthPositionData -= computer.computeLengthData(Sabub);
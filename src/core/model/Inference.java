@@ -30,6 +30,7 @@ import java.util.Map;
 
 import core.lattice.Lattice;
 import core.lattice.LatticeNode;
+import core.lattice.SparseTable;
 
 import org.eclipse.recommenders.jayes.BayesNet;
 import org.eclipse.recommenders.jayes.BayesNode;
@@ -92,6 +93,8 @@ public class Inference {
 
     public void setProbabilities(Lattice lattice) {
 
+	// reused for the dense matrices of all the nodes
+	int[] buffer = null;
 	for (Integer nodeID : jnodes.keySet()) {
 	    BayesNode n = jnodes.get(nodeID);
 	    // System.out.println("setting CPT for "+n.getName());
@@ -133,40 +136,51 @@ public class Inference {
 		fromNodeIDToPositionInSortedTable.put(variablesNumbers[i], i);
 	    }
 
+	    // dense or sparse, depending on the number of cells of the node
+	    int[] matrix = null;
+	    SparseTable sparseMatrix = null;
+	    if (latticeNode.isSparse()) {
+		sparseMatrix = latticeNode.getSparseMatrix();
+	    } else {
+		buffer = latticeNode.getMatrix(buffer);
+		matrix = buffer;
+	    }
 	    int[] counts = new int[nbRowsInCPT * n.getOutcomeCount()];
 	    int[] indexes4lattice = new int[parentsAndChild.size()];
 	    int[] indexes4Jayes = new int[parentsAndChild.size()];
+	    int[] dims4Jayes = new int[parentsAndChild.size()];
+	    int[] positionsInLattice = new int[parentsAndChild.size()];
+	    for (int i = 0; i < parentsAndChild.size(); i++) {
+		BayesNode nodeInPositionI = parentsAndChild.get(i);
+		dims4Jayes[i] = nodeInPositionI.getOutcomeCount();
+		positionsInLattice[i] = fromNodeIDToPositionInSortedTable.get(nodesNumber.get(nodeInPositionI));
+	    }
 	    // System.out.println(counts.length +" cases");
 	    // System.out.println("numbers for lattice "+Arrays.toString(variablesNumbers));
 
 	    for (int c = 0; c < counts.length; c++) {
 		// System.out.println("case "+c);
-		int index = c;
-		// find indexes
-		for (int i = indexes4Jayes.length - 1; i > 0; i--) {
-		    BayesNode associatedNode = parentsAndChild.get(i);
-		    int dim = associatedNode.getOutcomeCount();
-		    indexes4Jayes[i] = index % dim;
-		    index /= dim;
-		}
-		indexes4Jayes[0] = index;
+		// indexes4Jayes are the indexes of the case c (odometer, last node first)
 
 		// System.out.println("indexes jayes = "+Arrays.toString(indexes4Jayes));
 
 		for (int i = 0; i < indexes4Jayes.length; i++) {
-		    BayesNode nodeInPositionI = parentsAndChild.get(i);
-		    // System.out.println(nodeInPositionI);
-		    // System.out.println(fromNodeIDToPositionInSortedTable);
-		    int nodeInPositionIID = nodesNumber.get(nodeInPositionI);
-		    int indexInSortedTable = fromNodeIDToPositionInSortedTable
-			    .get(nodeInPositionIID);
-		    indexes4lattice[indexInSortedTable] = indexes4Jayes[i];
+		    indexes4lattice[positionsInLattice[i]] = indexes4Jayes[i];
 		}
 
 		// System.out.println("indexes lattice = "+Arrays.toString(indexes4lattice));
 
-		int count = latticeNode.getMatrixCell(indexes4lattice);
+		int indexInLattice = latticeNode.getIndexTooBig(indexes4lattice);
+		int count = (matrix != null) ? matrix[indexInLattice] : sparseMatrix.get(indexInLattice);
 		counts[c] = count;
+
+		for (int i = indexes4Jayes.length - 1; i >= 0; i--) {
+		    indexes4Jayes[i]++;
+		    if (indexes4Jayes[i] < dims4Jayes[i]) {
+			break;
+		    }
+		    indexes4Jayes[i] = 0;
+		}
 	    }
 	    // System.out.println(Arrays.toString(counts));
 	    // System.out.println("total="+sumAllCounts);
@@ -258,6 +272,8 @@ public class Inference {
 	    parentsAndChild.add(n);
 	}
 
+	// reused for the dense matrices of all the nodes
+	int[] buffer = null;
 	for (Integer nodeID : jnodes.keySet()) {
 	    BayesNode n = jnodes.get(nodeID);
 	    List<BayesNode> parents = n.getParents();
@@ -300,38 +316,49 @@ public class Inference {
 		fromNodeIDToPositionInSortedTable.put(variablesNumbers[i], i);
 	    }
 
+	    // dense or sparse, depending on the number of cells of the node
+	    int[] matrix = null;
+	    SparseTable sparseMatrix = null;
+	    if (latticeNode.isSparse()) {
+		sparseMatrix = latticeNode.getSparseMatrix();
+	    } else {
+		buffer = latticeNode.getMatrix(buffer);
+		matrix = buffer;
+	    }
 	    int[] counts = new int[nbRowsInCPT * n.getOutcomeCount()];
 	    int[] indexes4lattice = new int[parentsAndChild.size()];
 	    int[] indexes4Jayes = new int[parentsAndChild.size()];
+	    int[] dims4Jayes = new int[parentsAndChild.size()];
+	    int[] positionsInLattice = new int[parentsAndChild.size()];
+	    for (int i = 0; i < parentsAndChild.size(); i++) {
+		BayesNode nodeInPositionI = parentsAndChild.get(i);
+		dims4Jayes[i] = nodeInPositionI.getOutcomeCount();
+		positionsInLattice[i] = fromNodeIDToPositionInSortedTable.get(nodesNumber.get(nodeInPositionI));
+	    }
 	    // System.out.println(counts.length +" cases");
 	    // System.out.println("numbers for lattice "+Arrays.toString(variablesNumbers));
 
 	    for (int c = 0; c < counts.length; c++) {
 		// System.out.println("case "+c);
-		int index = c;
-		// find indexes
-		for (int i = indexes4Jayes.length - 1; i > 0; i--) {
-		    BayesNode associatedNode = parentsAndChild.get(i);
-		    int dim = associatedNode.getOutcomeCount();
-		    indexes4Jayes[i] = index % dim;
-		    index /= dim;
-		}
-		indexes4Jayes[0] = index;
+		// indexes4Jayes are the indexes of the case c (odometer, last node first)
 
 		for (int i = 0; i < indexes4Jayes.length; i++) {
-		    BayesNode nodeInPositionI = parentsAndChild.get(i);
-		    // System.out.println(nodeInPositionI);
-		    // System.out.println(fromNodeIDToPositionInSortedTable);
-		    int nodeInPositionIID = nodesNumber.get(nodeInPositionI);
-		    int indexInSortedTable = fromNodeIDToPositionInSortedTable
-			    .get(nodeInPositionIID);
-		    indexes4lattice[indexInSortedTable] = indexes4Jayes[i];
+		    indexes4lattice[positionsInLattice[i]] = indexes4Jayes[i];
 		}
 
 		// System.out.println("indexes lattice = "+Arrays.toString(indexes4lattice));
 
-		int count = latticeNode.getMatrixCell(indexes4lattice);
+		int indexInLattice = latticeNode.getIndexTooBig(indexes4lattice);
+		int count = (matrix != null) ? matrix[indexInLattice] : sparseMatrix.get(indexInLattice);
 		counts[c] = count;
+
+		for (int i = indexes4Jayes.length - 1; i >= 0; i--) {
+		    indexes4Jayes[i]++;
+		    if (indexes4Jayes[i] < dims4Jayes[i]) {
+			break;
+		    }
+		    indexes4Jayes[i] = 0;
+		}
 	    }
 	    // System.out.println(Arrays.toString(counts));
 	    // System.out.println("total="+sumAllCounts);
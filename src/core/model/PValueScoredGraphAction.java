@@ -26,6 +26,9 @@ package core.model;
 public class PValueScoredGraphAction extends ScoredGraphAction {
   protected long nDF;
   protected double entropy;
+  /** bounds of the confidence interval of the p-value when it is estimated on a sample of the rows */
+  protected double pValueLow, pValueHigh;
+  protected boolean approximate = false;
 
   public PValueScoredGraphAction(ActionType type, int v1, int v2, double score, long nDF, double entropy) {
     super(type, v1, v2, score);
@@ -39,6 +42,17 @@ public class PValueScoredGraphAction extends ScoredGraphAction {
     this.entropy = entropy;
   }
 
+  /**
+   * Action whose p-value has been estimated on a sample of the rows, with the
+   * bounds of its confidence interval.
+   */
+  public PValueScoredGraphAction(ActionType type, int v1, int v2, double score, long nDF, double entropy, double pValueLow, double pValueHigh) {
+    this(type, v1, v2, score, nDF, entropy);
+    this.pValueLow = pValueLow;
+    this.pValueHigh = pValueHigh;
+    this.approximate = true;
+  }
+
   @Override
   public int compareTo(GraphAction o) {
     if (o instanceof PValueScoredGraphAction) {
@@ -65,4 +79,13 @@ public class PValueScoredGraphAction extends ScoredGraphAction {
 
   public long getNDF(){ return nDF; }
 
+  /** @return true if the p-value has been estimated on a sample of the rows */
+  public boolean isApproximate(){ return approximate; }
+
+  /** @return the lower bound of the confidence interval of the p-value (the p-value itself when exact) */
+  public double getPValueLow(){ return approximate ? pValueLow : score; }
+
+  /** @return the upper bound of the confidence interval of the p-value (the p-value itself when exact) */
+  public double getPValueHigh(){ return approximate ? pValueHigh : score; }
+
 }
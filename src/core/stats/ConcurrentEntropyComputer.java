@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.stats;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import core.lattice.Lattice;
+
+/**
+ * Entropy computer working with a pool of threads, e.g. to score many
+ * candidate edges in parallel. Like all the computers it can be called from
+ * several threads at once: the tables are counted by the
+ * {@link StatisticsService} of the lattice, which counts them outside of its
+ * lock and counts a table only once when several threads ask for it at the
+ * same time (the others wait for the result of the first one).
+ */
+public class ConcurrentEntropyComputer extends EntropyComputer {
+  private final int nbThreads;
+  private final ExecutorService executor;
+
+  /**
+   * @param lattice
+   *            associated lattice
+   * @param nbThreads
+   *            the number of threads computing the entropies
+   */
+  public ConcurrentEntropyComputer(Lattice lattice, int nbThreads) {
+    super(lattice);
+    this.nbThreads = Math.max(1, nbThreads);
+    final AtomicInteger nbCreated = new AtomicInteger();
+    this.executor = Executors.newFixedThreadPool(this.nbThreads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "entropy-computer-" + nbCreated.getAndIncrement());
+        // the pool does not keep the JVM alive
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Computes the entropy of a set of variables in the pool
+   *
+   * @param clique
+   *            the set of variables (not to be modified until the entropy is
+   *            computed)
+   * @return the future entropy
+   */
+  public Future<Double> submit(final BitSet clique) {
+    return executor.submit(new Callable<Double>() {
+      @Override
+      public Double call() {
+        return computeEntropy(clique);
+      }
+    });
+  }
+
+  /**
+   * Computes the entropies of several sets of variables in parallel
+   *
+   * @param cliques
+   *            the sets of variables
+   * @return their entropies, in the same order
+   */
+  public double[] computeEntropies(List<BitSet> cliques) {
+    List<Future<Double>> futures = new ArrayList<Future<Double>>(cliques.size());
+    for (BitSet clique : cliques) {
+      futures.add(submit(clique));
+    }
+    double[] entropies = new double[cliques.size()];
+    try {
+      for (int i = 0; i < entropies.length; i++) {
+        entropies[i] = futures.get(i).get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while computing the entropies", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+    return entropies;
+  }
+
+  /** @return the number of threads computing the entropies */
+  public int getNbThreads() {
+    return nbThreads;
+  }
+
+  /** Stops the threads of the pool once the submitted entropies are computed */
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  public Object clone() {
+    return new ConcurrentEntropyComputer(new Lattice(this.lattice), nbThreads);
+  }
+}
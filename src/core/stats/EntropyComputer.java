@@ -17,23 +17,36 @@
  ******************************************************************************/
 package core.stats;
 
-import static org.apache.commons.math3.util.FastMath.log;
-
 import java.util.BitSet;
-import java.util.HashMap;
 
 import core.lattice.Lattice;
-import core.lattice.LatticeNode;
+import core.model.DecomposableModel;
+import core.tools.StripedCounter;
 
 /**
  * This class aims at computing multiple entropies between different sets of
  * variables. This class uses different memoizations and memorizations
  * techniques to retrieve results very quickly.
+ * The tables are counted and cached by the {@link StatisticsService} of the
+ * lattice, shared with the other computers working on the same lattice; the
+ * computer can be called from several threads (@see ConcurrentEntropyComputer).
  */
 public class EntropyComputer {
-  public static long nbCellsEverParsed;
-  HashMap<BitSet, Double> lookup;
-  double[] partialEntropy;
+  /** cells read by all the computers since the last one was created */
+  private static final StripedCounter nbCellsParsedByAll = new StripedCounter();
+  /** cells read to compute the entropies asked for to this computer */
+  final StripedCounter nbCellsParsed = new StripedCounter(nbCellsParsedByAll);
+  /**
+   * number of cells read by all the computers since the last one was created
+   * (updated after every computation); the tables a computer finds in the
+   * statistics service shared by the computers of a lattice cost nothing, so a
+   * table is only counted by the first computer to need it
+   * 
+   * @deprecated shared by all the computers; use {@link #getNbCellsParsed()}
+   */
+  @Deprecated
+  public static volatile long nbCellsEverParsed;
+  StatisticsService statistics;
 
   Lattice lattice;
   int nbInstances;
@@ -48,16 +61,11 @@ public class EntropyComputer {
    *            @deprecated
    */
   public EntropyComputer(int nbInstances, Lattice lattice) {
-    this.lookup = new HashMap<BitSet, Double>();
     this.lattice = lattice;
     this.nbInstances = nbInstances;
-    lookup.put(new BitSet(lattice.getNbVariables()), 0.0);
-    this.partialEntropy = new double[this.nbInstances + 1];
-    double lnN = log(nbInstances);
-    partialEntropy[0] = 0.0;
-    for (int i = 1; i < partialEntropy.length; i++) {
-      partialEntropy[i] = i * (log(i) - lnN);
-    }
+    this.statistics = (nbInstances == lattice.getNbInstances()) ? StatisticsService.forLattice(lattice)
+        : new StatisticsService(lattice, nbInstances);
+    nbCellsParsedByAll.reset();
     nbCellsEverParsed = 0;
   }
 
@@ -68,16 +76,10 @@ public class EntropyComputer {
    *            associated lattice
    */
   public EntropyComputer(Lattice lattice) {
-    this.lookup = new HashMap<BitSet, Double>();
     this.lattice = lattice;
     this.nbInstances = this.lattice.getNbInstances();
-    lookup.put(new BitSet(lattice.getNbVariables()), 0.0);
-    this.partialEntropy = new double[this.nbInstances + 1];
-    double lnN = log(nbInstances);
-    partialEntropy[0] = 0.0;
-    for (int i = 1; i < partialEntropy.length; i++) {
-      partialEntropy[i] = i * (log(i) - lnN);
-    }
+    this.statistics = StatisticsService.forLattice(lattice);
+    nbCellsParsedByAll.reset();
     nbCellsEverParsed = 0;
   }
 
@@ -89,30 +91,49 @@ public class EntropyComputer {
    * @return the entropy
    */
   public Double computeEntropy(BitSet clique) {
-    Double computedEntropy = lookup.get(clique);
-    if (computedEntropy != null) {
-      //			System.out.println("cached entropy for clique "+clique+":"+clique.hashCode());
-      return computedEntropy;
-    }
-    //		System.out.println("Getting entropy for clique "+clique+":"+clique.hashCode());
-    //		System.out.println("computing entropy for clique "+clique);
-
-    double entropy = 0.0;
-    LatticeNode node = lattice.getNode(clique);
-    int nbCells = node.getNbCells();
-    nbCellsEverParsed += nbCells;
-    //		 System.out.println("matrix:"+Arrays.toString(matrix));
-    for (int i = 0; i < nbCells; i++) {
-      int O = node.getMatrixCell(i);
-      entropy += partialEntropy[O];
-    }
-    entropy /= nbInstances;
-    entropy *= -1.0;
-    //		System.out.println("caching "+clique+"("+clique.hashCode()+"):"+entropy);
-    lookup.put(clique, entropy);
+    double entropy = statistics.getEntropy(clique, nbCellsParsed);
+    nbCellsEverParsed = nbCellsParsedByAll.sum();
     return entropy;
   }
 
+  /**
+   * Computes and caches the entropies of Sab, Sab+a, Sab+b and Sab+a+b, which
+   * are needed to score the addition of the edge (a,b), from a single count of
+   * the table of Sab+a+b (@see StatisticsService#computeFamily(BitSet, int, int)).
+   * 
+   * @param Sab
+   *            the separator (minimal) of a and b
+   * @param a
+   *            the first vertex of the edge
+   * @param b
+   *            the second vertex of the edge
+   */
+  public void computeEntropies(BitSet Sab, int a, int b) {
+    statistics.computeFamily(Sab, a, b, nbCellsParsed);
+    nbCellsEverParsed = nbCellsParsedByAll.sum();
+  }
+
+  /**
+   * Computes and caches the entropies of all the single variables and of all
+   * the pairs of variables, the pairs being counted in parallel (@see
+   * StatisticsService#computePairs(int)).
+   * 
+   * @param nbThreads
+   *            the number of threads counting the pairs
+   */
+  public void computePairwiseEntropies(int nbThreads) {
+    statistics.computePairs(nbThreads, nbCellsParsed);
+    nbCellsEverParsed = nbCellsParsedByAll.sum();
+  }
+
+  /**
+   * Keeps the entropies of the cliques and separators of the model in the
+   * cache when it is bounded (@see StatisticsService#pinModel(DecomposableModel)).
+   */
+  public void pinModel(DecomposableModel model) {
+    statistics.pinModel(model);
+  }
+
   /**
    * 
    * @return the number of lines in the database
@@ -128,8 +149,21 @@ public class EntropyComputer {
     return lattice.getNbVariables();
   }
 
+  /**
+   * @return the number of cells read to compute the entropies asked for to
+   *         this computer (the ones found in the shared cache cost nothing)
+   */
+  public long getNbCellsParsed() {
+    return nbCellsParsed.sum();
+  }
+
   public int getSizeLookup(){
-    return lookup.size();
+    return statistics.size();
+  }
+
+  /** @return the statistics service the entropies are read from */
+  public StatisticsService getStatisticsService(){
+    return statistics;
   }
 
   public Object clone(){
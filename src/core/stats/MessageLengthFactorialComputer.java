@@ -18,10 +18,10 @@
 package core.stats;
 
 import java.util.BitSet;
-import java.util.HashMap;
 
 import core.lattice.Lattice;
-import core.lattice.LatticeNode;
+import core.model.DecomposableModel;
+import core.tools.StripedCounter;
 
 import org.apache.commons.math3.util.FastMath;
 
@@ -30,13 +30,23 @@ import org.apache.commons.math3.util.FastMath;
  * associated with a clique of variables, given that the frequencies have know
  * by the receiver. See paper
  * "A statistically efficient and scalable method for log-linear analysis of high-dimensional data, ICDM 2014"
+ * The tables are counted and cached by the {@link StatisticsService} of the
+ * lattice, shared with the other computers working on the same lattice.
  * 
  * @see http://www.tiny-clues.eu/Research/
  * @author Dr Francois Petitjean
  */
 public class MessageLengthFactorialComputer {
-  public long nbCellsEverParsed;
-  HashMap<BitSet, Double> lookup;
+  /** cells read to compute the lengths asked for to this computer */
+  final StripedCounter nbCellsParsed = new StripedCounter();
+  /**
+   * copy of {@link #getNbCellsParsed()}, updated after every computation
+   * 
+   * @deprecated use {@link #getNbCellsParsed()}
+   */
+  @Deprecated
+  public volatile long nbCellsEverParsed;
+  StatisticsService statistics;
   double[] logs;
   double[] logFactorials;
 
@@ -46,9 +56,10 @@ public class MessageLengthFactorialComputer {
 
   @Deprecated
   public MessageLengthFactorialComputer(int nbInstances, Lattice lattice) {
-    this.lookup = new HashMap<BitSet, Double>();
     this.lattice = lattice;
     this.nbInstances = nbInstances;
+    this.statistics = (nbInstances == lattice.getNbInstances()) ? StatisticsService.forLattice(lattice)
+        : new StatisticsService(lattice, nbInstances);
 
     int nbFactorials = this.nbInstances + 2;
     int nbVariables = lattice.getNbVariables();
@@ -69,16 +80,12 @@ public class MessageLengthFactorialComputer {
     for (int i = 2; i < logFactorials.length; i++) {
       logFactorials[i] = logFactorials[i - 1] + logs[i];
     }
-    nbCellsEverParsed = 0;
-
-    lookup.put(new BitSet(lattice.getNbVariables()), 0.0);
-
   }
 
   public MessageLengthFactorialComputer(Lattice lattice) {
-    this.lookup = new HashMap<BitSet, Double>();
     this.lattice = lattice;
     this.nbInstances = this.lattice.getNbInstances();
+    this.statistics = StatisticsService.forLattice(lattice);
 
     int nbFactorials = this.nbInstances + 2;
     int nbVariables = lattice.getNbVariables();
@@ -99,43 +106,63 @@ public class MessageLengthFactorialComputer {
     for (int i = 2; i < logFactorials.length; i++) {
       logFactorials[i] = logFactorials[i - 1] + logs[i];
     }
-    nbCellsEverParsed = 0;
-
-    lookup.put(new BitSet(lattice.getNbVariables()), 0.0);
-
   }
 
   public double computeLengthData(BitSet clique) {
-    Double computedLength = lookup.get(clique);
-    if (computedLength != null) {
-      // System.out.println("sending "+clique+" costs "+computedLength+" nits");
-      return computedLength;
-    }
-
-    LatticeNode node = lattice.getNode(clique);
-    int nbCells = node.getNbCells();
-    nbCellsEverParsed += nbCells;
-
-    double length = 0.0;
-    // stating the position in data
-    length += logFactorials[nbInstances];
-    for (int i = 0; i < nbCells; i++) {
-      int O = node.getMatrixCell(i);
-      length -= logFactorials[O];
-    }
-    lookup.put(clique, length);
+    double length = statistics.getLengthData(clique, nbCellsParsed);
+    nbCellsEverParsed = nbCellsParsed.sum();
     // System.out.println("sending "+clique+" costs "+length+" nits");
     return length;
   }
 
+  /**
+   * Computes and caches the lengths for Sab, Sab+a, Sab+b and Sab+a+b from a
+   * single count of the table of Sab+a+b; the three others are marginals of it.
+   * 
+   * @see EntropyComputer#computeEntropies(BitSet, int, int)
+   */
+  public void computeLengthsData(BitSet Sab, int a, int b) {
+    statistics.computeFamily(Sab, a, b, nbCellsParsed);
+    nbCellsEverParsed = nbCellsParsed.sum();
+  }
+
+  /**
+   * Computes and caches the lengths of all the single variables and of all the
+   * pairs of variables, the pairs being counted in parallel.
+   * 
+   * @see EntropyComputer#computePairwiseEntropies(int)
+   */
+  public void computePairwiseLengthsData(int nbThreads) {
+    statistics.computePairs(nbThreads, nbCellsParsed);
+    nbCellsEverParsed = nbCellsParsed.sum();
+  }
+
   public int getNbInstances() {
     return nbInstances;
   }
 
+  /** @return the number of cells read to compute the lengths asked for to this computer */
+  public long getNbCellsParsed() {
+    return nbCellsParsed.sum();
+  }
+
   public int getNbVariables() {
     return lattice.getNbVariables();
   }
 
+  /**
+   * Keeps the lengths of the cliques and separators of the model in the cache
+   * when it is bounded (@see StatisticsService#pinModel(DecomposableModel)).
+   */
+  public void pinModel(DecomposableModel model) {
+    statistics.pinModel(model);
+  }
+
+  /** @return the statistics service the lengths are read from */
+  public StatisticsService getStatisticsService() {
+    return statistics;
+  }
+
   public double[] getLogFactorials() {
     return logFactorials;
   }
@@ -66,7 +66,20 @@ public class MyPriorityQueue extends PriorityQueue<ScoredGraphAction> {
     toDelete.add(new Couple<Integer>(a, b));
   }
 
+  /**
+   * Puts back an action that has been polled, with a new score (e.g., after
+   * checking it with exact counts).
+   */
+  public void offerRescored(ScoredGraphAction scoredEdge) {
+    int a = scoredEdge.getV1();
+    int b = scoredEdge.getV2();
+    actionsByEdge[a][b] = scoredEdge;
+    actionsByEdge[b][a] = scoredEdge;
+    this.offer(scoredEdge);
+  }
+
   public void processStoredModifications() {
+    scorer.pinModel(model);
     int nbScoredEdges = 0;
     for (Couple<Integer> c : toDelete) {
       int a = c.getV1();
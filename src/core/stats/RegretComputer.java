@@ -19,71 +19,135 @@
 package core.stats;
 
 import core.lattice.Lattice;
-import core.lattice.LatticeNode;
 import demo.Run;
 
+import java.util.Arrays;
 import java.util.BitSet;
-import java.util.HashMap;
 
 import static org.apache.commons.math3.util.FastMath.log;
 
 
+/**
+ * Computes the regret (log of the parametric complexity of the multinomial
+ * distribution) of the tables of the cliques, for the QNML score. The regret
+ * only depends on the number of instances N and on the number of cells K of
+ * the table:
+ * - for up to {@link #MAX_EXACT_CELLS} cells it is computed exactly with the
+ *   recurrence of Kontkanen and Myllymaki, C(N,K) = C(N,K-1) + N/(K-2) C(N,K-2),
+ *   the table of the values being extended as larger tables are asked for;
+ * - for more cells, it is given by the asymptotic expansion of Szpankowski and
+ *   Weinberger for K = alpha N ("Minimax pointwise redundancy for memoryless
+ *   models over large alphabets", 2012), whose error decreases as 1/K (about
+ *   3e-6 nits at 2^16 cells, for any N).
+ * C(N,2) is summed exactly for small N, and given by its asymptotic expansion
+ * (Szpankowski, 1998) otherwise, so that creating the computer costs O(1).
+ */
 public class RegretComputer {
 
-    public static long nbCellsEverParsed;
+    /** largest number of cells whose regret is computed with the recurrence */
+    static final int MAX_EXACT_CELLS = 1 << 16;
+    /** largest number of instances for which C(N,2) is summed exactly */
+    static final int MAX_EXACT_INSTANCES_C2 = 1000;
 
-    HashMap<BitSet, Double> lookup;
-    double[] reg;
+    StatisticsService statistics;
+    /** logreg[k] = log C(N,k), for k < nbExact */
     double[] logreg;
+    int nbExact;
 
     Lattice lattice;
     int nbInstances;
 
     public RegretComputer(Lattice lattice) {
-        this.lookup = new HashMap<BitSet, Double>();
         this.lattice = lattice;
         this.nbInstances = this.lattice.getNbInstances();
-        lookup.put(new BitSet(lattice.getNbVariables()), 0.0);
-        int dim = (int)Math.pow(2.,20.);
-        this.reg = new double[dim];
-        this.logreg = new double[dim];
+        this.statistics = StatisticsService.forLattice(lattice);
+        this.logreg = new double[64];
 
-        reg[1] = 1.0;
         logreg[1] = 0.0;
+        logreg[2] = logRegret2(nbInstances);
+        nbExact = 3;
+    }
 
-        double c = nbInstances*(nbInstances-1.)/2.;
-        for(int r = 0; r <= nbInstances; r++){
-            reg[2] += c * Math.pow(1.0*r/nbInstances, r) * Math.pow((1.0*nbInstances-r)/nbInstances, nbInstances-r);
+    /** @return log C(N,2) */
+    static double logRegret2(int n) {
+        if (n > MAX_EXACT_INSTANCES_C2) {
+            double sqrtN = Math.sqrt(n);
+            double sqrt2Pi = Math.sqrt(2.0 * Math.PI);
+            return log(Math.sqrt(Math.PI * n / 2.0) + 2.0 / 3.0 + sqrt2Pi / (24.0 * sqrtN) - 4.0 / (135.0 * n)
+                    + sqrt2Pi / (576.0 * n * sqrtN) + 8.0 / (2835.0 * n * n));
         }
+        // sum over r of binomial(n,r) (r/n)^r ((n-r)/n)^(n-r), in log space
+        double[] logFactorials = new double[n + 1];
+        for (int i = 2; i <= n; i++) {
+            logFactorials[i] = logFactorials[i - 1] + log(i);
+        }
+        double lnN = log(n);
+        double[] logTerms = new double[n + 1];
+        double max = Double.NEGATIVE_INFINITY;
+        for (int r = 0; r <= n; r++) {
+            double t = logFactorials[n] - logFactorials[r] - logFactorials[n - r];
+            if (r > 0) {
+                t += r * (log(r) - lnN);
+            }
+            if (r < n) {
+                t += (n - r) * (log(n - r) - lnN);
+            }
+            logTerms[r] = t;
+            max = Math.max(max, t);
+        }
+        double sum = 0.0;
+        for (int r = 0; r <= n; r++) {
+            sum += Math.exp(logTerms[r] - max);
+        }
+        return max + log(sum);
+    }
 
-        logreg[2] = Math.log(reg[2]);
-
+    /** @return log C(N,K) for K = alpha N, alpha = nbCells/N */
+    static double logRegretAsymptotic(int n, long nbCells) {
+        double alpha = (double) nbCells / n;
+        double c = 0.5 + 0.5 * Math.sqrt(1.0 + 4.0 / alpha);
+        double a = c + 2.0 / alpha;
+        double logB = log(alpha) + (alpha + 2.0) * log(c) - 1.0 / c;
+        return n * logB - 0.5 * log(a);
+    }
 
-        for(int k = 3; k < reg.length; k++){
-            double a = Math.max(logreg[k-1], logreg[k-2]);
-            logreg[k] = a + Math.log(Math.exp(logreg[k-1] - a) + 1.0 * nbInstances/k*Math.exp(logreg[k-2] - a));
+    /** Extends the exact values up to k (included) */
+    private void extendTo(int k) {
+        if (k >= logreg.length) {
+            int length = logreg.length;
+            while (length <= k) {
+                length *= 2;
+            }
+            logreg = Arrays.copyOf(logreg, Math.min(length, MAX_EXACT_CELLS + 1));
+        }
+        for (; nbExact <= k; nbExact++) {
+            int j = nbExact;
+            double a = Math.max(logreg[j-1], logreg[j-2]);
+            logreg[j] = a + Math.log(Math.exp(logreg[j-1] - a) + 1.0 * nbInstances/(j-2)*Math.exp(logreg[j-2] - a));
         }
-
     }
 
     public Double computeRegret(BitSet clique){
-        Double computedRegret = lookup.get(clique);
-        if (computedRegret != null) {
-            return computedRegret;
+        if (clique.isEmpty()) {
+            return 0.0;
         }
-
-        LatticeNode node = lattice.getNode(clique);
-        int nbCells = node.getNbCells();
-
-        double regret = getLogRegret(nbCells);
-
-        lookup.put(clique, regret);
-        return regret;
+        // the regret only depends on the number of cells: no table to count
+        long nbCells = statistics.getNbCells(clique);
+        if (nbCells == Long.MAX_VALUE) {
+            throw new ArithmeticException(clique + " has too many cells");
+        }
+        return getLogRegret(nbCells);
     }
 
-    protected double getLogRegret(int u){
+    protected synchronized double getLogRegret(long u){
         if(u==0) throw new RuntimeException("Should not call getRegret with 0 outcomes");
-        return logreg[u];
+        if (u > MAX_EXACT_CELLS) {
+            return logRegretAsymptotic(nbInstances, u);
+        }
+        if (u >= nbExact) {
+            extendTo((int) u);
+        }
+        return logreg[(int) u];
     }
 
     public int getNbInstances(){
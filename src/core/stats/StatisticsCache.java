@@ -0,0 +1,521 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.stats;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import core.stats.StatisticsService.TableStatistics;
+
+/**
+ * Map from sets of variables to the statistics of their tables, stored in flat
+ * primitive arrays rather than in a {@code HashMap<BitSet, ...>}: a set is
+ * stored as its sorted variable ids in a shared pool of ints, the statistics in
+ * one array per statistic, and the sets are found by open addressing (linear
+ * probing) on a table of entry numbers. An entry thus costs a few tens of bytes
+ * plus 4 bytes per variable, instead of a map entry, a BitSet (sized to the
+ * largest variable) and a boxed value.
+ * The entries are numbered in the order they are added:
+ * <pre>
+ * int entry = cache.find(variables);
+ * if (entry >= 0) {
+ *   double entropy = cache.getEntropy(entry);
+ * }
+ * </pre>
+ * The cache is unbounded unless a capacity is set (@see #setCapacity(int)):
+ * entries are then evicted to make room for new ones, as in W-TinyLFU, from
+ * the frequencies of the accesses kept in a small count-min sketch (halved
+ * periodically so that old accesses fade out). The victim is the least
+ * frequent of a few entries sampled at random, the last entries added (a small
+ * window: they are usually about to be read, e.g. the marginals computed along
+ * with a table; it is shrunk to capacity - 1 entries for tiny capacities, so
+ * that there is always an entry to evict) and the pinned entries (e.g. the
+ * cliques and separators of the current model) being never evicted. Entries
+ * are always admitted.
+ * Not thread-safe (@see StatisticsService, which synchronizes on itself).
+ */
+public class StatisticsCache {
+
+  /** slot -> entry + 1 (0 for an empty slot) */
+  private int[] slots;
+  private int mask;
+
+  // one value per entry
+  private int[] hashes;
+  private int[] keyOffsets;
+  private int[] keyLengths;
+  private double[] entropies;
+  private double[] lengthsData;
+  private long[] nbCells;
+  private long[] nbNonEmptyCells;
+  private int size;
+
+  /** the sorted variable ids of all the sets, one after the other */
+  private int[] keys;
+  private int keysLength;
+  /** number of ints of keys belonging to evicted entries */
+  private int keysGarbage;
+
+  private static final int WINDOW = 16;
+  private static final int SAMPLE = 8;
+
+  /** maximal number of entries (can only be exceeded by pinned entries) */
+  private int capacity = Integer.MAX_VALUE;
+  private boolean[] pinned;
+  /** the last entries added (-1 if none), never evicted */
+  private final int[] window = new int[WINDOW];
+  /** number of entries of the window in use, at most capacity - 1 */
+  private int windowSize = WINDOW;
+  private int windowPosition;
+  /** 4-bit counters of the frequency sketch, null when unbounded */
+  private byte[] frequencies;
+  private int nbIncrements;
+  private int random = 0x2545F491;
+  private long nbEvictions;
+
+  public StatisticsCache() {
+    this(16);
+  }
+
+  /**
+   * @param expectedSize
+   *            the expected number of sets of variables
+   */
+  public StatisticsCache(int expectedSize) {
+    int capacity = 16;
+    while (capacity < 2 * expectedSize) {
+      capacity <<= 1;
+    }
+    this.slots = new int[capacity];
+    this.mask = capacity - 1;
+    int nbEntries = Math.max(8, expectedSize);
+    this.hashes = new int[nbEntries];
+    this.keyOffsets = new int[nbEntries];
+    this.keyLengths = new int[nbEntries];
+    this.entropies = new double[nbEntries];
+    this.lengthsData = new double[nbEntries];
+    this.nbCells = new long[nbEntries];
+    this.nbNonEmptyCells = new long[nbEntries];
+    this.pinned = new boolean[nbEntries];
+    this.keys = new int[4 * nbEntries];
+    this.size = 0;
+    Arrays.fill(window, -1);
+  }
+
+  private static int hash(BitSet variables) {
+    int h = 0;
+    for (int i = variables.nextSetBit(0); i >= 0; i = variables.nextSetBit(i + 1)) {
+      h = (h + i + 1) * 0x9E3779B9;
+      h ^= h >>> 16;
+    }
+    h ^= h >>> 15;
+    h *= 0x85EBCA6B;
+    h ^= h >>> 13;
+    return h;
+  }
+
+  private boolean keyEquals(int entry, BitSet variables) {
+    int offset = keyOffsets[entry];
+    int end = offset + keyLengths[entry];
+    int i = variables.nextSetBit(0);
+    for (int k = offset; k < end; k++) {
+      if (i != keys[k]) {
+        return false;
+      }
+      i = variables.nextSetBit(i + 1);
+    }
+    return i < 0;
+  }
+
+  /** @return the slot holding the set, or the empty slot where it would go */
+  private int slotOf(BitSet variables, int h) {
+    int slot = h & mask;
+    while (slots[slot] != 0) {
+      int entry = slots[slot] - 1;
+      if (hashes[entry] == h && keyEquals(entry, variables)) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /**
+   * @return the entry of the set of variables, -1 if it is not in the cache
+   */
+  public int find(BitSet variables) {
+    int h = hash(variables);
+    int entry = slots[slotOf(variables, h)] - 1;
+    if (entry >= 0) {
+      recordAccess(h);
+    }
+    return entry;
+  }
+
+  public boolean containsKey(BitSet variables) {
+    return find(variables) >= 0;
+  }
+
+  /**
+   * @return the statistics of the set of variables, null if it is not in the
+   *         cache
+   */
+  public TableStatistics get(BitSet variables) {
+    int entry = find(variables);
+    if (entry < 0) {
+      return null;
+    }
+    return new TableStatistics(entropies[entry], lengthsData[entry], nbCells[entry], nbNonEmptyCells[entry]);
+  }
+
+  /**
+   * Stores the statistics of a set of variables (replacing the previous ones if
+   * the set is already in the cache); the set is copied.
+   *
+   * @return the entry of the set
+   */
+  public int put(BitSet variables, TableStatistics statistics) {
+    int h = hash(variables);
+    int slot = slotOf(variables, h);
+    int entry = slots[slot] - 1;
+    if (entry < 0) {
+      recordAccess(h);
+      if (size >= capacity && evict()) {
+        // the slots have moved
+        slot = slotOf(variables, h);
+      }
+      entry = addEntry(variables, h);
+      slots[slot] = entry + 1;
+      if (windowSize > 0) {
+        window[windowPosition] = entry;
+        windowPosition = (windowPosition + 1) % windowSize;
+      }
+      if (2 * size > slots.length) {
+        resize(2 * slots.length);
+      }
+    }
+    entropies[entry] = statistics.entropy;
+    lengthsData[entry] = statistics.lengthData;
+    nbCells[entry] = statistics.nbCells;
+    nbNonEmptyCells[entry] = statistics.nbNonEmptyCells;
+    return entry;
+  }
+
+  private int addEntry(BitSet variables, int h) {
+    if (size == hashes.length) {
+      int nbEntries = 2 * size;
+      hashes = Arrays.copyOf(hashes, nbEntries);
+      keyOffsets = Arrays.copyOf(keyOffsets, nbEntries);
+      keyLengths = Arrays.copyOf(keyLengths, nbEntries);
+      entropies = Arrays.copyOf(entropies, nbEntries);
+      lengthsData = Arrays.copyOf(lengthsData, nbEntries);
+      nbCells = Arrays.copyOf(nbCells, nbEntries);
+      nbNonEmptyCells = Arrays.copyOf(nbNonEmptyCells, nbEntries);
+      pinned = Arrays.copyOf(pinned, nbEntries);
+    }
+    int length = variables.cardinality();
+    if (keysLength + length > keys.length) {
+      keys = Arrays.copyOf(keys, Math.max(2 * keys.length, keysLength + length));
+    }
+    int entry = size++;
+    hashes[entry] = h;
+    pinned[entry] = false;
+    keyOffsets[entry] = keysLength;
+    keyLengths[entry] = length;
+    for (int i = variables.nextSetBit(0); i >= 0; i = variables.nextSetBit(i + 1)) {
+      keys[keysLength++] = i;
+    }
+    return entry;
+  }
+
+  private void resize(int capacity) {
+    slots = new int[capacity];
+    mask = capacity - 1;
+    for (int entry = 0; entry < size; entry++) {
+      int slot = hashes[entry] & mask;
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = entry + 1;
+    }
+  }
+
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+  // Eviction
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+
+  /**
+   * Bounds the number of entries, evicting the ones in excess (only pinned
+   * entries can make the cache exceed its capacity)
+   *
+   * @param capacity
+   *            the maximal number of entries (Integer.MAX_VALUE for an
+   *            unbounded cache, the default)
+   */
+  public void setCapacity(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("The capacity must be positive: " + capacity);
+    }
+    this.capacity = capacity;
+    int newWindowSize = (int) Math.min(WINDOW, capacity - 1L);
+    if (newWindowSize != windowSize) {
+      // the entries protected by the window are then not the last ones added
+      Arrays.fill(window, -1);
+      windowSize = newWindowSize;
+      windowPosition = 0;
+    }
+    if (capacity == Integer.MAX_VALUE) {
+      frequencies = null;
+      return;
+    }
+    int length = 64;
+    while (length < 2 * capacity && length < (1 << 30)) {
+      length <<= 1;
+    }
+    // two 4-bit counters per byte
+    frequencies = new byte[length / 2];
+    nbIncrements = 0;
+    trim();
+  }
+
+  /**
+   * Evicts the entries in excess of the capacity, e.g. once entries that were
+   * pinned beyond it are unpinned
+   */
+  public void trim() {
+    while (size > capacity && evict()) {
+      // evicting
+    }
+  }
+
+  /** @return the maximal number of entries */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /** Pins (or unpins) the set of variables if it is in the cache */
+  public void setPinned(BitSet variables, boolean pin) {
+    int entry = slots[slotOf(variables, hash(variables))] - 1;
+    if (entry >= 0) {
+      pinned[entry] = pin;
+    }
+  }
+
+  /** Unpins all the entries */
+  public void unpinAll() {
+    Arrays.fill(pinned, 0, size, false);
+  }
+
+  /**
+   * @return true if the set of variables is not in the cache but has been
+   *         accessed recently, i.e. if it has been evicted (estimated from the
+   *         frequency sketch, always false for an unbounded cache)
+   */
+  public boolean wasEvicted(BitSet variables) {
+    if (frequencies == null) {
+      return false;
+    }
+    int h = hash(variables);
+    return slots[slotOf(variables, h)] == 0 && frequency(h) > 0;
+  }
+
+  /** @return the number of entries evicted so far */
+  public long getNbEvictions() {
+    return nbEvictions;
+  }
+
+  private int counterIndex(int h, int i) {
+    int g = (h + i * 0x6B43A9B5) * 0x9E3779B9;
+    return (g ^ (g >>> 15)) & (2 * frequencies.length - 1);
+  }
+
+  private int counter(int index) {
+    return (frequencies[index >>> 1] >>> ((index & 1) << 2)) & 0xF;
+  }
+
+  private int frequency(int h) {
+    int min = 15;
+    for (int i = 0; i < 4; i++) {
+      min = Math.min(min, counter(counterIndex(h, i)));
+    }
+    return min;
+  }
+
+  /** Increments the smallest counters of the set (conservative update) */
+  private void recordAccess(int h) {
+    if (frequencies == null) {
+      return;
+    }
+    int min = frequency(h);
+    if (min == 15) {
+      return;
+    }
+    for (int i = 0; i < 4; i++) {
+      int index = counterIndex(h, i);
+      if (counter(index) == min) {
+        frequencies[index >>> 1] += (byte) (1 << ((index & 1) << 2));
+      }
+    }
+    if (++nbIncrements >= 10 * Math.min(capacity, frequencies.length)) {
+      // ageing: halves all the counters
+      for (int i = 0; i < frequencies.length; i++) {
+        frequencies[i] = (byte) ((frequencies[i] >>> 1) & 0x77);
+      }
+      nbIncrements /= 2;
+    }
+  }
+
+  private boolean isEvictable(int entry) {
+    if (pinned[entry]) {
+      return false;
+    }
+    for (int i = 0; i < windowSize; i++) {
+      if (window[i] == entry) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Evicts the least frequent of a few entries sampled at random
+   *
+   * @return false if no entry could be evicted
+   */
+  private boolean evict() {
+    int victim = -1;
+    int victimFrequency = Integer.MAX_VALUE;
+    for (int i = 0; i < 4 * SAMPLE && (i < SAMPLE || victim < 0); i++) {
+      random ^= random << 13;
+      random ^= random >>> 17;
+      random ^= random << 5;
+      int entry = (random & 0x7FFFFFFF) % size;
+      if (isEvictable(entry)) {
+        int f = (frequencies == null) ? 0 : frequency(hashes[entry]);
+        if (f < victimFrequency) {
+          victim = entry;
+          victimFrequency = f;
+        }
+      }
+    }
+    for (int entry = 0; victim < 0 && entry < size; entry++) {
+      if (isEvictable(entry)) {
+        victim = entry;
+      }
+    }
+    if (victim < 0) {
+      return false;
+    }
+    remove(victim);
+    nbEvictions++;
+    return true;
+  }
+
+  private int slotOfEntry(int entry) {
+    int slot = hashes[entry] & mask;
+    while (slots[slot] != entry + 1) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /** Removes an entry, the last entry taking its number */
+  private void remove(int entry) {
+    // backward shift deletion, so that no probing sequence is broken
+    int hole = slotOfEntry(entry);
+    for (int slot = (hole + 1) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+      int home = hashes[slots[slot] - 1] & mask;
+      if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+        slots[hole] = slots[slot];
+        hole = slot;
+      }
+    }
+    slots[hole] = 0;
+    keysGarbage += keyLengths[entry];
+
+    int last = size - 1;
+    if (entry != last) {
+      slots[slotOfEntry(last)] = entry + 1;
+      hashes[entry] = hashes[last];
+      keyOffsets[entry] = keyOffsets[last];
+      keyLengths[entry] = keyLengths[last];
+      entropies[entry] = entropies[last];
+      lengthsData[entry] = lengthsData[last];
+      nbCells[entry] = nbCells[last];
+      nbNonEmptyCells[entry] = nbNonEmptyCells[last];
+      pinned[entry] = pinned[last];
+      for (int i = 0; i < windowSize; i++) {
+        if (window[i] == last) {
+          window[i] = entry;
+        }
+      }
+    }
+    size--;
+    if (2 * keysGarbage > keysLength) {
+      compactKeys();
+    }
+  }
+
+  private void compactKeys() {
+    int[] compacted = new int[Math.max(16, 2 * (keysLength - keysGarbage))];
+    int length = 0;
+    for (int entry = 0; entry < size; entry++) {
+      System.arraycopy(keys, keyOffsets[entry], compacted, length, keyLengths[entry]);
+      keyOffsets[entry] = length;
+      length += keyLengths[entry];
+    }
+    keys = compacted;
+    keysLength = length;
+    keysGarbage = 0;
+  }
+
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+  // Getters
+  // --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- --- ---
+
+  /** @return the number of sets of variables in the cache */
+  public int size() {
+    return size;
+  }
+
+  /** @return the entropy of the given entry */
+  public double getEntropy(int entry) {
+    return entropies[entry];
+  }
+
+  /** @return the length of the data of the given entry */
+  public double getLengthData(int entry) {
+    return lengthsData[entry];
+  }
+
+  /** @return the number of cells of the given entry */
+  public long getNbCells(int entry) {
+    return nbCells[entry];
+  }
+
+  /** @return the number of non-empty cells of the given entry */
+  public long getNbNonEmptyCells(int entry) {
+    return nbNonEmptyCells[entry];
+  }
+
+  /** @return the number of bytes used by the cache (approximately) */
+  public long getSizeInBytes() {
+    long sketch = (frequencies == null) ? 0L : frequencies.length;
+    return 4L * slots.length + 41L * hashes.length + 4L * keys.length + sketch;
+  }
+}
@@ -0,0 +1,708 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.stats;
+
+import static org.apache.commons.math3.util.FastMath.log;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.math3.util.FastMath;
+
+import core.lattice.CellConsumer;
+import core.lattice.Lattice;
+import core.lattice.LatticeNode;
+import core.lattice.PairwiseTables;
+import core.lattice.SparseTable;
+import core.model.DecomposableModel;
+import core.tools.StripedCounter;
+
+/**
+ * Statistics of the tables of counts of a lattice, shared by all the
+ * computers working on it ({@link EntropyComputer},
+ * {@link MessageLengthFactorialComputer}, {@link RegretComputer}): the table of
+ * a set of variables is counted once, and its entropy, its message length and
+ * its numbers of cells and of non-empty cells are all derived in the same pass
+ * over the counts. Running several scorers on the same data thus never counts
+ * a table twice.
+ * There is one service per lattice (@see #forLattice(Lattice)), kept as long
+ * as the lattice is in use. The cache of the statistics is unbounded by
+ * default; it can be bounded with {@link #setCapacity(int)} for long
+ * explorations (@see StatisticsCache for the eviction policy), in which case
+ * the sets of variables of the current model should be pinned
+ * ({@link #pin(Collection)}).
+ * The service is thread-safe: the tables are counted outside of its lock, and
+ * a table asked for by several threads at the same time is counted only once.
+ */
+public class StatisticsService {
+
+  /** the services of the lattices in use (the lattices are weakly referenced) */
+  private static final Map<Lattice, StatisticsService> services = new WeakHashMap<Lattice, StatisticsService>();
+
+  /**
+   * Statistics of the table of counts of one set of variables
+   */
+  public static final class TableStatistics {
+    final double entropy;
+    final double lengthData;
+    final long nbCells;
+    final long nbNonEmptyCells;
+
+    TableStatistics(double entropy, double lengthData, long nbCells, long nbNonEmptyCells) {
+      this.entropy = entropy;
+      this.lengthData = lengthData;
+      this.nbCells = nbCells;
+      this.nbNonEmptyCells = nbNonEmptyCells;
+    }
+
+    /** @return the entropy of the distribution given by the counts */
+    public double getEntropy() {
+      return entropy;
+    }
+
+    /** @return the length of the message stating the data given the counts (log of the multinomial coefficient) */
+    public double getLengthData() {
+      return lengthData;
+    }
+
+    /** @return the number of cells of the table */
+    public long getNbCells() {
+      return nbCells;
+    }
+
+    /** @return the number of cells of the table with at least one instance */
+    public long getNbNonEmptyCells() {
+      return nbNonEmptyCells;
+    }
+  }
+
+  /**
+   * the lattice, weakly referenced so that the service does not keep it (and
+   * itself) in {@link #services}; the computers using the service hold it
+   */
+  private final WeakReference<Lattice> latticeReference;
+  int nbInstances;
+  double[] partialEntropy;
+  double[] logFactorials;
+  StatisticsCache lookup;
+  final StripedCounter nbCellsParsed = new StripedCounter();
+  long nbHits;
+  long nbMisses;
+  /** cells read to count again tables that had been evicted */
+  long nbCellsRecounted;
+  /** always in the lookup (and pinned) */
+  private final BitSet emptySet;
+
+  /**
+   * the tables being counted: a table asked for by several threads at the same
+   * time is counted by the first one, the others waiting for its result
+   */
+  private final HashMap<BitSet, FutureTask<TableStatistics>> inFlight = new HashMap<BitSet, FutureTask<TableStatistics>>();
+
+  /** reused for the dense matrices, so that counting does not allocate them (one per thread) */
+  private final ThreadLocal<int[]> buffers = new ThreadLocal<int[]>();
+
+  /** Sums the statistics of the cells streamed by a node */
+  private final class CellSums implements CellConsumer {
+    double sumPartialEntropies;
+    double sumLogFactorials;
+    long nbNonEmptyCells;
+
+    @Override
+    public void accept(long index, int count) {
+      sumPartialEntropies += partialEntropy[count];
+      sumLogFactorials += logFactorials[count];
+      nbNonEmptyCells++;
+    }
+  }
+
+  /**
+   * @param lattice
+   *            the lattice holding the data
+   * @return the service shared by all the computers working on this lattice
+   */
+  public static StatisticsService forLattice(Lattice lattice) {
+    synchronized (services) {
+      StatisticsService service = services.get(lattice);
+      if (service == null) {
+        service = new StatisticsService(lattice, lattice.getNbInstances());
+        services.put(lattice, service);
+      }
+      return service;
+    }
+  }
+
+  /**
+   * Service that is not shared (for computers normalising by a number of
+   * instances that is not the one of the lattice)
+   */
+  StatisticsService(Lattice lattice, int nbInstances) {
+    this.latticeReference = new WeakReference<Lattice>(lattice);
+    this.nbInstances = nbInstances;
+    this.lookup = new StatisticsCache();
+
+    this.partialEntropy = new double[nbInstances + 1];
+    double lnN = log(nbInstances);
+    partialEntropy[0] = 0.0;
+    for (int i = 1; i < partialEntropy.length; i++) {
+      partialEntropy[i] = i * (log(i) - lnN);
+    }
+
+    this.logFactorials = new double[nbInstances + 2];
+    logFactorials[0] = FastMath.log(1);
+    logFactorials[1] = FastMath.log(1);
+    for (int i = 2; i < logFactorials.length; i++) {
+      logFactorials[i] = logFactorials[i - 1] + FastMath.log(i);
+    }
+
+    this.emptySet = new BitSet(lattice.getNbVariables());
+    lookup.put(emptySet, new TableStatistics(0.0, 0.0, 1L, 1L));
+    lookup.setPinned(emptySet, true);
+  }
+
+  /**
+   * @param variables
+   *            a set of variables
+   * @return the statistics of the table of the set of variables, counted only
+   *         if they are not known yet
+   */
+  public TableStatistics getStatistics(BitSet variables) {
+    return getStatistics(variables, null);
+  }
+
+  /**
+   * @param nbCellsParsedBy
+   *            counter of the cells read for the caller, can be null
+   */
+  TableStatistics getStatistics(BitSet variables, StripedCounter nbCellsParsedBy) {
+    synchronized (this) {
+      TableStatistics statistics = lookup.get(variables);
+      if (statistics != null) {
+        nbHits++;
+        return statistics;
+      }
+    }
+    return fetch(variables, nbCellsParsedBy);
+  }
+
+  /**
+   * Same as getStatistics(variables).getEntropy(), without creating the
+   * statistics when they are known
+   */
+  public double getEntropy(BitSet variables) {
+    return getEntropy(variables, null);
+  }
+
+  double getEntropy(BitSet variables, StripedCounter nbCellsParsedBy) {
+    synchronized (this) {
+      int entry = lookup.find(variables);
+      if (entry >= 0) {
+        nbHits++;
+        return lookup.getEntropy(entry);
+      }
+    }
+    return fetch(variables, nbCellsParsedBy).getEntropy();
+  }
+
+  /**
+   * Same as getStatistics(variables).getLengthData(), without creating the
+   * statistics when they are known
+   */
+  public double getLengthData(BitSet variables) {
+    return getLengthData(variables, null);
+  }
+
+  double getLengthData(BitSet variables, StripedCounter nbCellsParsedBy) {
+    synchronized (this) {
+      int entry = lookup.find(variables);
+      if (entry >= 0) {
+        nbHits++;
+        return lookup.getLengthData(entry);
+      }
+    }
+    return fetch(variables, nbCellsParsedBy).getLengthData();
+  }
+
+  /**
+   * Gets the statistics of a set of variables that was not in the lookup
+   * (it may have been added since): the table is counted, unless another
+   * thread is already counting it.
+   */
+  private TableStatistics fetch(final BitSet variables, final StripedCounter nbCellsParsedBy) {
+    final BitSet key = (BitSet) variables.clone();
+    return submit(key, new Callable<TableStatistics>() {
+      @Override
+      public TableStatistics call() {
+        return count(key, nbCellsParsedBy);
+      }
+    });
+  }
+
+  /**
+   * The computeIfAbsent of the statistics: runs the counting task for the key
+   * in the calling thread, unless the key is known (the statistics are then
+   * returned) or being counted by another thread (its result is then awaited).
+   */
+  private TableStatistics submit(BitSet key, Callable<TableStatistics> counting) {
+    FutureTask<TableStatistics> task;
+    boolean owner = false;
+    synchronized (this) {
+      TableStatistics statistics = lookup.get(key);
+      if (statistics != null) {
+        nbHits++;
+        return statistics;
+      }
+      task = inFlight.get(key);
+      if (task == null) {
+        task = new FutureTask<TableStatistics>(counting);
+        inFlight.put(key, task);
+        owner = true;
+        nbMisses++;
+      } else {
+        nbHits++;
+      }
+    }
+    if (owner) {
+      try {
+        task.run();
+      } finally {
+        synchronized (this) {
+          inFlight.remove(key);
+        }
+      }
+    }
+    return await(task);
+  }
+
+  private static TableStatistics await(FutureTask<TableStatistics> task) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return task.get();
+        } catch (InterruptedException e) {
+          // the count is not ours to cancel: wait for it anyway
+          interrupted = true;
+        }
+      }
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** Counts the table of a set of variables, outside of the lock of the service */
+  private TableStatistics count(BitSet variables, StripedCounter nbCellsParsedBy) {
+    boolean evicted;
+    synchronized (this) {
+      evicted = lookup.wasEvicted(variables);
+    }
+    TableStatistics statistics;
+    long parsed;
+    LatticeNode node = getLattice().getNode(variables);
+    if (node.isSparse()) {
+      CellSums sums = new CellSums();
+      node.forEachCell(sums);
+      parsed = sums.nbNonEmptyCells;
+      statistics = new TableStatistics(-sums.sumPartialEntropies / nbInstances, logFactorials[nbInstances] - sums.sumLogFactorials,
+          node.getNbCellsLong(), sums.nbNonEmptyCells);
+    } else {
+      parsed = node.getNbCells();
+      int[] buffer = node.getMatrix(buffers.get());
+      buffers.set(buffer);
+      statistics = statisticsOf(buffer, node.getNbCells());
+    }
+    addParsed(parsed, nbCellsParsedBy);
+    synchronized (this) {
+      if (evicted) {
+        nbCellsRecounted += parsed;
+      }
+      lookup.put(variables, statistics);
+    }
+    return statistics;
+  }
+
+  private void addParsed(long parsed, StripedCounter nbCellsParsedBy) {
+    nbCellsParsed.add(parsed);
+    if (nbCellsParsedBy != null) {
+      nbCellsParsedBy.add(parsed);
+    }
+  }
+
+  /**
+   * Computes and caches the statistics of Sab, Sab+a, Sab+b and Sab+a+b, which
+   * are needed to score the addition of the edge (a,b). Only the table of
+   * Sab+a+b is counted; the three others are exact marginals of it and are
+   * obtained by summing over a, b, or both.
+   *
+   * @param Sab
+   *            the separator (minimal) of a and b
+   * @param a
+   *            the first vertex of the edge
+   * @param b
+   *            the second vertex of the edge
+   */
+  public void computeFamily(BitSet Sab, int a, int b) {
+    computeFamily(Sab, a, b, null);
+  }
+
+  void computeFamily(BitSet Sab, final int a, final int b, final StripedCounter nbCellsParsedBy) {
+    final BitSet Sabuaub = (BitSet) Sab.clone();
+    Sabuaub.set(a);
+    Sabuaub.set(b);
+    synchronized (this) {
+      if (lookup.containsKey(Sabuaub)) {
+        // the largest table is not needed; the others are counted on their own
+        nbHits++;
+        return;
+      }
+    }
+    final BitSet separator = (BitSet) Sab.clone();
+    submit(Sabuaub, new Callable<TableStatistics>() {
+      @Override
+      public TableStatistics call() {
+        return countFamily(separator, a, b, Sabuaub, nbCellsParsedBy);
+      }
+    });
+  }
+
+  /**
+   * Counts the table of Sab+a+b and derives the marginals that are not known
+   * yet, outside of the lock of the service
+   *
+   * @return the statistics of Sab+a+b
+   */
+  private TableStatistics countFamily(BitSet Sab, int a, int b, BitSet Sabuaub, StripedCounter nbCellsParsedBy) {
+    BitSet Sabua = (BitSet) Sab.clone();
+    Sabua.set(a);
+    BitSet Sabub = (BitSet) Sab.clone();
+    Sabub.set(b);
+    boolean evicted, needSabua, needSabub, needSab;
+    synchronized (this) {
+      evicted = lookup.wasEvicted(Sabuaub);
+      needSabua = !lookup.containsKey(Sabua);
+      needSabub = !lookup.containsKey(Sabub);
+      // (never needed for an empty Sab, the empty set is always in the lookup)
+      needSab = !lookup.containsKey(Sab);
+    }
+    TableStatistics statistics, statisticsSabua = null, statisticsSabub = null, statisticsSab = null;
+    long parsed;
+
+    Lattice lattice = getLattice();
+    LatticeNode node = lattice.getNode(Sabuaub);
+    if (node.isSparse()) {
+      SparseTable table = node.getSparseMatrix();
+      parsed = table.size();
+      statistics = statisticsOf(table, node.getNbCellsLong());
+      // (the sizes of the marginals come from the dimensions: no node is built just for them)
+      SparseTable tableSabua = node.marginalise(table, b);
+      if (needSabua) {
+        statisticsSabua = statisticsOf(tableSabua, getNbCells(Sabua));
+      }
+      if (needSabub) {
+        statisticsSabub = statisticsOf(node.marginalise(table, a), getNbCells(Sabub));
+      }
+      if (needSab) {
+        SparseTable tableSab = lattice.getNode(Sabua).marginalise(tableSabua, a);
+        statisticsSab = statisticsOf(tableSab, getNbCells(Sab));
+      }
+    } else {
+      parsed = node.getNbCells();
+      int[] buffer = node.getMatrix(buffers.get());
+      buffers.set(buffer);
+      statistics = statisticsOf(buffer, node.getNbCells());
+
+      // the marginals are in the layout of the corresponding parent nodes
+      int[] matrixSabua = node.marginalise(buffer, b);
+      if (needSabua) {
+        statisticsSabua = statisticsOf(matrixSabua, matrixSabua.length);
+      }
+      if (needSabub) {
+        int[] matrixSabub = node.marginalise(buffer, a);
+        statisticsSabub = statisticsOf(matrixSabub, matrixSabub.length);
+      }
+      if (needSab) {
+        int[] matrixSab = lattice.getNode(Sabua).marginalise(matrixSabua, a);
+        statisticsSab = statisticsOf(matrixSab, matrixSab.length);
+      }
+    }
+    addParsed(parsed, nbCellsParsedBy);
+    synchronized (this) {
+      if (evicted) {
+        nbCellsRecounted += parsed;
+      }
+      lookup.put(Sabuaub, statistics);
+      if (statisticsSabua != null && !lookup.containsKey(Sabua)) {
+        lookup.put(Sabua, statisticsSabua);
+      }
+      if (statisticsSabub != null && !lookup.containsKey(Sabub)) {
+        lookup.put(Sabub, statisticsSabub);
+      }
+      if (statisticsSab != null && !lookup.containsKey(Sab)) {
+        lookup.put(Sab, statisticsSab);
+      }
+    }
+    return statistics;
+  }
+
+  /**
+   * Computes and caches the statistics of all the single variables and of all
+   * the pairs of variables, the pairs being counted in parallel (@see
+   * PairwiseTables); this is what the first step of the exploration, which
+   * scores every pair, needs. When the cache is bounded, these statistics are
+   * pinned until the next call to {@link #pin(Collection)} (i.e. until the
+   * first step has scored the pairs and its model gets pinned), even if there
+   * are more pairs than the capacity: they would otherwise evict each other
+   * before being used.
+   *
+   * @param nbThreads
+   *            the number of threads counting the pairs
+   */
+  public void computePairs(int nbThreads) {
+    computePairs(nbThreads, null);
+  }
+
+  void computePairs(int nbThreads, final StripedCounter nbCellsParsedBy) {
+    final Lattice lattice = getLattice();
+    final int nbVariables = lattice.getNbVariables();
+    for (int a = 0; a < nbVariables; a++) {
+      BitSet single = new BitSet(nbVariables);
+      single.set(a);
+      getStatistics(single, nbCellsParsedBy);
+      pinUntilNextModel(single);
+    }
+    if (hasAllPairs(lattice, nbVariables)) {
+      // e.g. already computed for another scorer working on the same lattice
+      return;
+    }
+    PairwiseTables.computeAll(lattice, nbThreads, new PairwiseTables.PairConsumer() {
+      @Override
+      public void accept(int a, int b, int[] matrix) {
+        int nbCells = lattice.getSingleNodes()[a].getNbCells() * lattice.getSingleNodes()[b].getNbCells();
+        TableStatistics statistics = statisticsOf(matrix, nbCells);
+        BitSet pair = new BitSet(nbVariables);
+        pair.set(a);
+        pair.set(b);
+        addParsed(nbCells, nbCellsParsedBy);
+        synchronized (StatisticsService.this) {
+          lookup.put(pair, statistics);
+          pinUntilNextModel(pair);
+        }
+      }
+    });
+  }
+
+  /** Pins a set of variables whose statistics are cached, if the cache is bounded (@see #computePairs(int)) */
+  private synchronized void pinUntilNextModel(BitSet variables) {
+    if (lookup.getCapacity() != Integer.MAX_VALUE) {
+      lookup.setPinned(variables, true);
+    }
+  }
+
+  /**
+   * @return true if the statistics of all the pairs computed by
+   *         {@link PairwiseTables} are cached (the sparse pairs it skips are
+   *         only computed when asked for)
+   */
+  private synchronized boolean hasAllPairs(Lattice lattice, int nbVariables) {
+    BitSet pair = new BitSet(nbVariables);
+    for (int a = 0; a < nbVariables; a++) {
+      pair.set(a);
+      for (int b = a + 1; b < nbVariables; b++) {
+        if (!PairwiseTables.isComputed(lattice, a, b)) {
+          continue;
+        }
+        pair.set(b);
+        boolean known = lookup.containsKey(pair);
+        pair.clear(b);
+        if (!known) {
+          return false;
+        }
+      }
+      pair.clear(a);
+    }
+    return true;
+  }
+
+  /**
+   * @return the number of cells of the table of a set of variables (saturates
+   *         at Long.MAX_VALUE), without counting it
+   */
+  public long getNbCells(BitSet variables) {
+    int[] dims = getLattice().getnbValuesForAttribute();
+    long nbCells = 1L;
+    for (int i = variables.nextSetBit(0); i >= 0; i = variables.nextSetBit(i + 1)) {
+      if (nbCells > Long.MAX_VALUE / dims[i]) {
+        return Long.MAX_VALUE;
+      }
+      nbCells *= dims[i];
+    }
+    return nbCells;
+  }
+
+  /**
+   * @param matrix
+   *            a matrix of counts (@see {@link LatticeNode#getMatrix()}) in its
+   *            first nbCells cells
+   */
+  private TableStatistics statisticsOf(int[] matrix, int nbCells) {
+    double entropy = 0.0;
+    // stating the position in data
+    double length = logFactorials[nbInstances];
+    long nbNonEmptyCells = 0L;
+    for (int i = 0; i < nbCells; i++) {
+      int count = matrix[i];
+      entropy += partialEntropy[count];
+      length -= logFactorials[count];
+      if (count != 0) {
+        nbNonEmptyCells++;
+      }
+    }
+    entropy /= nbInstances;
+    entropy *= -1.0;
+    return new TableStatistics(entropy, length, nbCells, nbNonEmptyCells);
+  }
+
+  /**
+   * @param table
+   *            a sparse matrix of counts (@see {@link LatticeNode#getSparseMatrix()})
+   */
+  private TableStatistics statisticsOf(SparseTable table, long nbCells) {
+    double entropy = 0.0;
+    // (empty cells have log(0!) = 0)
+    double length = logFactorials[nbInstances];
+    long nbNonEmptyCells = 0L;
+    for (int s = table.nextSlot(0); s >= 0; s = table.nextSlot(s + 1)) {
+      int count = table.getCount(s);
+      entropy += partialEntropy[count];
+      length -= logFactorials[count];
+      if (count != 0) {
+        nbNonEmptyCells++;
+      }
+    }
+    entropy /= nbInstances;
+    entropy *= -1.0;
+    return new TableStatistics(entropy, length, nbCells, nbNonEmptyCells);
+  }
+
+  /** @return the number of instances the statistics are computed for */
+  public int getNbInstances() {
+    return nbInstances;
+  }
+
+  /** @return the lattice the tables are counted from */
+  public Lattice getLattice() {
+    return latticeReference.get();
+  }
+
+  /**
+   * Bounds the number of sets of variables whose statistics are kept (@see
+   * StatisticsCache#setCapacity(int))
+   *
+   * @param capacity
+   *            the maximal number of sets (Integer.MAX_VALUE for no bound, the
+   *            default)
+   */
+  public synchronized void setCapacity(int capacity) {
+    lookup.setCapacity(capacity);
+  }
+
+  /** @return the maximal number of sets of variables whose statistics are kept */
+  public synchronized int getCapacity() {
+    return lookup.getCapacity();
+  }
+
+  /**
+   * Pins the given sets of variables, which are then never evicted, and unpins
+   * the ones pinned before (typically: the cliques and separators of the
+   * current model). Only the sets whose statistics are known are pinned.
+   */
+  public synchronized void pin(Collection<BitSet> sets) {
+    lookup.unpinAll();
+    lookup.setPinned(emptySet, true);
+    for (BitSet set : sets) {
+      lookup.setPinned(set, true);
+    }
+    // the entries pinned until now may have exceeded the capacity
+    lookup.trim();
+  }
+
+  /**
+   * Pins the cliques and separators of the model (@see #pin(Collection)); does
+   * nothing if the cache is unbounded.
+   */
+  public void pinModel(DecomposableModel model) {
+    if (getCapacity() == Integer.MAX_VALUE) {
+      return;
+    }
+    List<BitSet> sets = new ArrayList<BitSet>(model.getCliques());
+    sets.addAll(model.getSeparators());
+    pin(sets);
+  }
+
+  /** @return the number of requests answered from the cache */
+  public synchronized long getNbHits() {
+    return nbHits;
+  }
+
+  /** @return the number of requests for which a table had to be counted */
+  public synchronized long getNbMisses() {
+    return nbMisses;
+  }
+
+  /** @return the number of sets of variables evicted from the cache */
+  public synchronized long getNbEvictions() {
+    return lookup.getNbEvictions();
+  }
+
+  /**
+   * @return the number of cells read to count again the tables that had been
+   *         evicted (estimated, @see StatisticsCache#wasEvicted(BitSet))
+   */
+  public synchronized long getNbCellsRecounted() {
+    return nbCellsRecounted;
+  }
+
+  /** @return the number of sets of variables whose statistics are known */
+  public synchronized int size() {
+    return lookup.size();
+  }
+
+  /** @return the number of cells read to compute the statistics so far */
+  public long getNbCellsParsed() {
+    return nbCellsParsed.sum();
+  }
+}
@@ -26,4 +26,23 @@ public abstract class GraphActionScorer {
   int nbInstances;
   public abstract ScoredGraphAction scoreEdge(DecomposableModel model,GraphAction action);
 
+  /**
+   * Fills the caches of this scorer with the statistics of all the pairs of
+   * variables, computed in parallel, before the first step of the exploration
+   * scores every pair. Does nothing by default.
+   * 
+   * @param nbThreads
+   *            the number of threads to use
+   */
+  public void precomputePairs(int nbThreads) {
+  }
+
+  /**
+   * Called when the model changes, so that the statistics of its cliques and
+   * separators are kept when the caches of this scorer are bounded. Does
+   * nothing by default.
+   */
+  public void pinModel(DecomposableModel model) {
+  }
+
 }
@@ -55,4 +55,14 @@ public class GraphActionScorerBIC extends GraphActionScorer {
 		
 	}
 
+	@Override
+	public void precomputePairs(int nbThreads) {
+		entropyComputer.computePairwiseEntropies(nbThreads);
+	}
+
+	@Override
+	public void pinModel(DecomposableModel model) {
+		entropyComputer.pinModel(model);
+	}
+
 }
@@ -61,4 +61,14 @@ public class GraphActionScorerEntropy extends GraphActionScorer {
 		
 	}
 
+	@Override
+	public void precomputePairs(int nbThreads) {
+		entropyComputer.computePairwiseEntropies(nbThreads);
+	}
+
+	@Override
+	public void pinModel(DecomposableModel model) {
+		entropyComputer.pinModel(model);
+	}
+
 }
@@ -45,4 +45,14 @@ public class GraphActionScorerMML extends GraphActionScorer {
 
   }
 
+  @Override
+  public void precomputePairs(int nbThreads) {
+    computer.computePairwiseLengthsData(nbThreads);
+  }
+
+  @Override
+  public void pinModel(DecomposableModel model) {
+    computer.pinModel(model);
+  }
+
 }
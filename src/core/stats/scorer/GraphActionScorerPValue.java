@@ -18,6 +18,8 @@
 
 package core.stats.scorer;
 
+import org.apache.commons.math3.special.Erf;
+
 import core.stats.EntropyComputer;
 import core.tools.ChiSquared;
 import core.model.DecomposableModel;
@@ -28,6 +30,10 @@ import core.model.ScoredGraphAction;
 public class GraphActionScorerPValue extends GraphActionScorer {
 
   EntropyComputer entropyComputer;
+  /** computer on all the rows when entropyComputer only works on a sample of them, null otherwise */
+  EntropyComputer exactEntropyComputer;
+  /** number of standard deviations of the confidence band of the sampled statistics */
+  double z;
   @Deprecated
   public GraphActionScorerPValue(int nbInstances,EntropyComputer entropyComputer){
     this.entropyComputer = entropyComputer;
@@ -39,6 +45,28 @@ public class GraphActionScorerPValue extends GraphActionScorer {
     this.nbInstances = this.entropyComputer.getNbInstances();
   }
 
+  /**
+   * Scorer working on a sample of the rows (@see
+   * core.lattice.Lattice#sample(int, java.util.Random)): the entropies are
+   * estimated on the sample and scaled to the number of instances of the
+   * data; every p-value comes with a confidence interval so that the
+   * borderline candidates can be re-scored with the exact counts (@see
+   * #isBorderline(ScoredGraphAction, double)).
+   * 
+   * @param sampleEntropyComputer
+   *            computer on the sample
+   * @param exactEntropyComputer
+   *            computer on all the rows
+   * @param confidence
+   *            confidence level of the interval of the p-values (e.g. 0.99)
+   */
+  public GraphActionScorerPValue(EntropyComputer sampleEntropyComputer, EntropyComputer exactEntropyComputer, double confidence){
+    this.entropyComputer = sampleEntropyComputer;
+    this.exactEntropyComputer = exactEntropyComputer;
+    this.nbInstances = exactEntropyComputer.getNbInstances();
+    this.z = Math.sqrt(2.0) * Erf.erfInv(confidence);
+  }
+
 
   @Override
   public ScoredGraphAction scoreEdge(DecomposableModel model, GraphAction action) {
@@ -57,9 +85,69 @@ public class GraphActionScorerPValue extends GraphActionScorer {
     double gDiff = 2.0 * this.nbInstances * (diffEntropy);
     double pValue = ChiSquared.pValue(gDiff, dfDiff);
 
+    if (exactEntropyComputer != null) {
+      // G on the sample follows (approximately) a non-central chi-squared with
+      // dfDiff degrees of freedom; its variance is 2(df + 2.lambda)
+      int sampleSize = entropyComputer.getNbInstances();
+      double gSample = 2.0 * sampleSize * diffEntropy;
+      double lambda = Math.max(0.0, gSample - dfDiff);
+      double halfWidth = z * Math.sqrt(2.0 * (dfDiff + 2.0 * lambda)) * this.nbInstances / sampleSize;
+      double pValueLow = ChiSquared.pValue(gDiff + halfWidth, dfDiff);
+      double pValueHigh = ChiSquared.pValue(Math.max(0.0, gDiff - halfWidth), dfDiff);
+      return new PValueScoredGraphAction(action.getType(), action.getV1(), action.getV2(), pValue, dfDiff, gDiff, pValueLow, pValueHigh);
+    }
+
     PValueScoredGraphAction scoredAction = new PValueScoredGraphAction(action.getType(),action.getV1(), action.getV2(), pValue, dfDiff, gDiff);
     return scoredAction;
 
   }
 
+  /**
+   * @return true if the p-value of the action has been estimated on a sample
+   *         and the threshold is within its confidence interval, so that the
+   *         decision could change with the exact counts
+   */
+  public boolean isBorderline(ScoredGraphAction action, double threshold) {
+    if (!(action instanceof PValueScoredGraphAction)) {
+      return false;
+    }
+    PValueScoredGraphAction scored = (PValueScoredGraphAction) action;
+    return scored.isApproximate() && scored.getPValueLow() <= threshold && threshold <= scored.getPValueHigh();
+  }
+
+  /**
+   * Scores an action with the exact counts (all the rows), whether or not this
+   * scorer works on a sample.
+   */
+  public ScoredGraphAction scoreEdgeExactly(DecomposableModel model, GraphAction action) {
+    if (exactEntropyComputer == null) {
+      return scoreEdge(model, action);
+    }
+    Double diffEntropy = model.entropyDiffIfAdding(action.getV1(), action.getV2(), exactEntropyComputer);
+    long dfDiff = model.nbParametersDiffIfAdding(action.getV1(), action.getV2());
+    if (diffEntropy == null) {
+      return new PValueScoredGraphAction(action.getType(), action.getV1(), action.getV2(), 1.0, dfDiff, Double.NaN);
+    }
+    double gDiff = 2.0 * this.nbInstances * (diffEntropy);
+    return new PValueScoredGraphAction(action.getType(), action.getV1(), action.getV2(), ChiSquared.pValue(gDiff, dfDiff), dfDiff, gDiff);
+  }
+
+  /** @return true if the p-values are estimated on a sample of the rows */
+  public boolean isSampling() {
+    return exactEntropyComputer != null;
+  }
+
+  @Override
+  public void precomputePairs(int nbThreads) {
+    entropyComputer.computePairwiseEntropies(nbThreads);
+  }
+
+  @Override
+  public void pinModel(DecomposableModel model) {
+    entropyComputer.pinModel(model);
+    if (exactEntropyComputer != null) {
+      exactEntropyComputer.pinModel(model);
+    }
+  }
+
 }
@@ -59,4 +59,15 @@ public class GraphActionScorerQNML extends GraphActionScorer{
     public Object clone(){
         return new GraphActionScorerQNML((EntropyComputer)this.entropyComputer.clone(), (RegretComputer) this.regretComputer.clone());
     }
+
+    @Override
+    public void precomputePairs(int nbThreads) {
+        entropyComputer.computePairwiseEntropies(nbThreads);
+    }
+
+    @Override
+    public void pinModel(DecomposableModel model) {
+        entropyComputer.pinModel(model);
+    }
+
 }
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.tools;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that many threads can increment without contending on a single
+ * value (as java.util.concurrent.atomic.LongAdder): each thread adds to one of
+ * several stripes, chosen from its id, and the stripes are only summed when
+ * the counter is read.
+ */
+public final class StripedCounter {
+
+  private static final int NB_STRIPES = 16;
+  /** one stripe every 8 longs, so that two stripes are not on the same cache line */
+  private static final int PADDING = 8;
+
+  private final AtomicLongArray stripes = new AtomicLongArray(NB_STRIPES * PADDING);
+  /** counter the values are also added to (null if none) */
+  private final StripedCounter parent;
+
+  public StripedCounter() {
+    this(null);
+  }
+
+  /**
+   * @param parent
+   *            a counter the values added to this one are also added to, e.g.
+   *            a total over several counters
+   */
+  public StripedCounter(StripedCounter parent) {
+    this.parent = parent;
+  }
+
+  public void add(long value) {
+    int stripe = (int) (Thread.currentThread().getId() % NB_STRIPES);
+    stripes.addAndGet(stripe * PADDING, value);
+    if (parent != null) {
+      parent.add(value);
+    }
+  }
+
+  /** @return the sum of the values added (not atomic with concurrent additions) */
+  public long sum() {
+    long sum = 0L;
+    for (int i = 0; i < NB_STRIPES; i++) {
+      sum += stripes.get(i * PADDING);
+    }
+    return sum;
+  }
+
+  public void reset() {
+    for (int i = 0; i < NB_STRIPES; i++) {
+      stripes.set(i * PADDING, 0L);
+    }
+  }
+}
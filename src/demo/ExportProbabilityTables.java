@@ -101,8 +101,9 @@ public class ExportProbabilityTables {
 	    System.out.println("]");
 
 	    int nCombinations = node.getNbCells();
-	    for (int combination = 0; combination < nCombinations; combination++) {
-		int[] indexes = node.getIndexes(combination);
+	    int[] matrix = node.getMatrix();
+	    int[] indexes = new int[variableNumbers.length];
+	    for (int combination = 0; combination < nCombinations; combination++, node.nextIndexes(indexes)) {
 
 		System.out.print("\tp(");
 		for (int var = 0; var < variableNumbers.length; var++) {
@@ -112,7 +113,7 @@ public class ExportProbabilityTables {
 			System.out.print(",");
 		    }
 		}
-		int count = node.getMatrixCell(combination);
+		int count = matrix[combination];
 		double p = (1.0 + count) / (lattice.getNbInstances() + nCombinations);
 		System.out.println(") = " + p);
 	    }
@@ -131,8 +132,9 @@ public class ExportProbabilityTables {
 	    System.out.println("]");
 
 	    int nCombinations = node.getNbCells();
-	    for (int combination = 0; combination < nCombinations; combination++) {
-		int[] indexes = node.getIndexes(combination);
+	    int[] matrix = node.getMatrix();
+	    int[] indexes = new int[variableNumbers.length];
+	    for (int combination = 0; combination < nCombinations; combination++, node.nextIndexes(indexes)) {
 
 		System.out.print("\tp(");
 		for (int var = 0; var < variableNumbers.length; var++) {
@@ -142,7 +144,7 @@ public class ExportProbabilityTables {
 			System.out.print(",");
 		    }
 		}
-		int count = node.getMatrixCell(combination);
+		int count = matrix[combination];
 		double p = (1.0 + count) / (lattice.getNbInstances() + nCombinations);
 		System.out.println(") = " + p);
 	    }
@@ -14,6 +14,28 @@ public final class LoadArrays {
    * @param data (first dim is line no, second is variable number, content is value no for variable k in [0,nValuesForAttribute[k])
    */
   public static ChordalysisModeller.Data makeModelData(int[]nValuesForAttribute, int[][] data) {
+    return makeModelData(nValuesForAttribute, data, false);
+  }
+
+  /**
+   * Initialising method for the R package
+   * @param nValuesForAttribute number of values per attribute
+   * @param data (first dim is line no, second is variable number, content is value no for variable k in [0,nValuesForAttribute[k])
+   * @param collapseDuplicates if true, identical lines are stored once with their multiplicity (weighted lattice)
+   */
+  public static ChordalysisModeller.Data makeModelData(int[]nValuesForAttribute, int[][] data, boolean collapseDuplicates) {
+    return makeModelData(nValuesForAttribute, data, collapseDuplicates, false);
+  }
+
+  /**
+   * Initialising method for the R package
+   * @param nValuesForAttribute number of values per attribute
+   * @param data (first dim is line no, second is variable number, content is value no for variable k in [0,nValuesForAttribute[k])
+   * @param collapseDuplicates if true, identical lines are stored once with their multiplicity (weighted lattice)
+   * @param reorderRows if true, the lines are reordered to cluster the TID sets (@see RowOrdering)
+   */
+  public static ChordalysisModeller.Data makeModelData(int[]nValuesForAttribute, int[][] data, boolean collapseDuplicates,
+      boolean reorderRows) {
 
     // Access the size:
     int nbInstances   = data.length;
@@ -33,22 +55,29 @@ public final class LoadArrays {
       variables[a] = a;
       // --- For the lattice:
       convData[a] = new BitSet[nValuesForAttribute[a]];
-      for (int v = 0; v < convData[a].length; v++) { convData[a][v]=new BitSet(nbInstances); }
+      for (int v = 0; v < convData[a].length; v++) { convData[a][v]=new BitSet(); }
     }
 
     // --- 2 ---
     // For each instances (only for the lattice)...
+    RowDeduplicator deduplicator = collapseDuplicates ? new RowDeduplicator() : null;
+    int[] order = reorderRows ? RowOrdering.grayCodeOrder(data, nValuesForAttribute) : null;
     for (int i = 0; i < nbInstances; i++) {
+      int[] sample = (order != null) ? data[order[i]] : data[i];
+      int row = (deduplicator != null) ? deduplicator.add(sample) : i;
       for (int a = 0; a < nbVariables; a++) {
-        int[] sample = data[i];
-        convData[a][sample[a]].set(i);
+        convData[a][sample[a]].set(row);
       }
     }
 
     // --- 3 ---
     // Create the data:
-    return new ChordalysisModeller.Data(
-        new DecomposableModel(variables, nValuesForAttribute),
-        new Lattice(nbVariables, nbInstances, nValuesForAttribute, convData) );
+    Lattice lattice;
+    if (deduplicator != null) {
+      lattice = new Lattice(nbVariables, deduplicator.getNbRows(), nValuesForAttribute, convData, deduplicator.getWeights());
+    } else {
+      lattice = new Lattice(nbVariables, nbInstances, nValuesForAttribute, convData);
+    }
+    return new ChordalysisModeller.Data(new DecomposableModel(variables, nValuesForAttribute), lattice);
   }
 }
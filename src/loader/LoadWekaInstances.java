@@ -40,6 +40,24 @@ public final class LoadWekaInstances {
 
   /** Make a lattice over the given variables of the dataset.*/
   public static ChordalysisModeller.Data makeModelData(Instances dataset, boolean hasMissingValues) {
+    return makeModelData(dataset, hasMissingValues, false);
+  }
+
+  /**
+   * Make a lattice over the given variables of the dataset.
+   * @param collapseDuplicates if true, identical instances are stored once with their multiplicity (weighted lattice)
+   */
+  public static ChordalysisModeller.Data makeModelData(Instances dataset, boolean hasMissingValues, boolean collapseDuplicates) {
+    return makeModelData(dataset, hasMissingValues, collapseDuplicates, false);
+  }
+
+  /**
+   * Make a lattice over the given variables of the dataset.
+   * @param collapseDuplicates if true, identical instances are stored once with their multiplicity (weighted lattice)
+   * @param reorderRows if true, the instances are reordered to cluster the TID sets (@see RowOrdering)
+   */
+  public static ChordalysisModeller.Data makeModelData(Instances dataset, boolean hasMissingValues, boolean collapseDuplicates,
+      boolean reorderRows) {
 
     // Access the size:
     int nbInstances = dataset.numInstances();
@@ -69,6 +87,9 @@ public final class LoadWekaInstances {
 
     // --- 2 ---
     // For each instance (only for the lattice)...
+    RowDeduplicator deduplicator = collapseDuplicates ? new RowDeduplicator() : null;
+    int[][] allValues = reorderRows ? new int[nbInstances][] : null;
+    int[] values = new int[nbVariables];
     for (int i = 0; i < nbInstances; i++) {
       Instance row = dataset.instance(i);
       for (int a = 0; a < nbVariables; a++) {
@@ -84,15 +105,41 @@ public final class LoadWekaInstances {
           String value = row.stringValue(a);
           indexOfValue = row.attribute(a).indexOfValue(value);
         }
-        presence[a][indexOfValue].set(i);
+        values[a] = indexOfValue;
       }
+      if (allValues != null) {
+        // the rows are added once they are all known and reordered
+        allValues[i] = values.clone();
+      } else {
+        addRow(presence, values, i, deduplicator);
+      }
+    }
+    if (allValues != null) {
+      int[] order = RowOrdering.grayCodeOrder(allValues, nbValuesForAttribute);
+      for (int i = 0; i < nbInstances; i++) { addRow(presence, allValues[order[i]], i, deduplicator); }
     }
 
     // --- 3 ---
     // Create the data:
     return new ChordalysisModeller.Data(
         new DecomposableModel(variables, nbValuesForAttribute),
-        new Lattice(nbVariables, nbInstances, nbValuesForAttribute, presence) );
+        makeLattice(nbVariables, nbInstances, nbValuesForAttribute, presence, deduplicator) );
+  }
+
+  /** Sets the bits of a row (or of its distinct row if the rows are deduplicated) */
+  private static void addRow(BitSet[][] presence, int[] values, int row, RowDeduplicator deduplicator) {
+    int rowNumber = (deduplicator != null) ? deduplicator.add(values) : row;
+    for (int a = 0; a < values.length; a++) { presence[a][values[a]].set(rowNumber); }
+  }
+
+  /** Builds the lattice, weighted if the rows have been deduplicated */
+  private static Lattice makeLattice(int nbVariables, int nbInstances, int[] nbValuesForAttribute, BitSet[][] presence,
+      RowDeduplicator deduplicator) {
+    if (deduplicator != null) {
+      return new Lattice(nbVariables, deduplicator.getNbRows(), nbValuesForAttribute, presence, deduplicator.getWeights());
+    } else {
+      return new Lattice(nbVariables, nbInstances, nbValuesForAttribute, presence);
+    }
   }
 
 
@@ -112,6 +159,15 @@ public final class LoadWekaInstances {
   /** Make a lattice over the given variables of the dataset.*/
   public static ChordalysisModeller.Data makeModelData(Instances structure, ArffReader loader, boolean hasMissingValues)
     throws IOException {
+    return makeModelData(structure, loader, hasMissingValues, false);
+  }
+
+  /**
+   * Make a lattice over the given variables of the dataset.
+   * @param collapseDuplicates if true, identical instances are stored once with their multiplicity (weighted lattice)
+   */
+  public static ChordalysisModeller.Data makeModelData(Instances structure, ArffReader loader, boolean hasMissingValues,
+      boolean collapseDuplicates) throws IOException {
 
     // Access the size:
     int nbInstances = 0;
@@ -141,6 +197,8 @@ public final class LoadWekaInstances {
 
     // --- 2 ---
     // For each instance (only for the lattice)...
+    RowDeduplicator deduplicator = collapseDuplicates ? new RowDeduplicator() : null;
+    int[] values = new int[nbVariables];
     Instance row;
     while ((row = loader.readInstance(structure)) != null) {
       boolean skipRow = false;
@@ -158,16 +216,19 @@ public final class LoadWekaInstances {
           String value = row.stringValue(a);
           indexOfValue = row.attribute(a).indexOfValue(value);
         }
-        presence[a][indexOfValue].set(nbInstances);
+        values[a] = indexOfValue;
+      }
+      if (!skipRow) {
+        addRow(presence, values, nbInstances, deduplicator);
+        nbInstances++;
       }
-      if (!skipRow) { nbInstances++; }
     }
 
     // --- 3 ---
     // Create the data:
     return new ChordalysisModeller.Data(
         new DecomposableModel(variables, nbValuesForAttribute),
-        new Lattice(nbVariables, nbInstances, nbValuesForAttribute, presence) );
+        makeLattice(nbVariables, nbInstances, nbValuesForAttribute, presence, deduplicator) );
   }
 
 }
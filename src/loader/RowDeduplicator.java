@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ * 
+ * This file is part of Chordalysis.
+ * 
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ * 
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package loader;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Collapses identical rows (as arrays of value indexes) into distinct rows with
+ * a multiplicity, to build a weighted {@link core.lattice.Lattice}.
+ */
+public final class RowDeduplicator {
+
+  /** Key wrapping a row so that it can be hashed by content */
+  private static final class Row {
+    final int[] values;
+    final int hash;
+
+    Row(int[] values) {
+      this.values = values;
+      this.hash = Arrays.hashCode(values);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return (obj instanceof Row) && Arrays.equals(values, ((Row) obj).values);
+    }
+  }
+
+  private final HashMap<Row, Integer> ids;
+  private int[] weights;
+  private int nbRows;
+
+  public RowDeduplicator() {
+    this.ids = new HashMap<Row, Integer>();
+    this.weights = new int[1024];
+    this.nbRows = 0;
+  }
+
+  /**
+   * Adds one occurrence of a row.
+   * 
+   * @param row
+   *            the index of the value of every variable (copied if the row is
+   *            new, so the array can be reused by the caller)
+   * @return the number of the distinct row (in order of first occurrence)
+   */
+  public int add(int[] row) {
+    Row key = new Row(row);
+    Integer id = ids.get(key);
+    if (id != null) {
+      weights[id]++;
+      return id;
+    }
+    if (nbRows == weights.length) {
+      weights = Arrays.copyOf(weights, 2 * weights.length);
+    }
+    ids.put(new Row(row.clone()), nbRows);
+    weights[nbRows] = 1;
+    return nbRows++;
+  }
+
+  /** @return the number of distinct rows */
+  public int getNbRows() {
+    return nbRows;
+  }
+
+  /** @return the multiplicity of every distinct row */
+  public int[] getWeights() {
+    return Arrays.copyOf(weights, nbRows);
+  }
+}
@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ * 
+ * This file is part of Chordalysis.
+ * 
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ * 
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package loader;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Reordering of the rows of a dataset before building the TID sets of a
+ * {@link core.lattice.Lattice}: the rows are sorted in a Gray-code-like
+ * (reflected lexicographic) order, on the variables with the fewest values
+ * first, so that the rows having the same value are grouped in long runs. The
+ * TID sets then have more all-zero and all-one words, which makes the
+ * intersections more cache friendly and the sets much more compressible.
+ * The counts (hence the models) do not depend on the order of the rows.
+ */
+public final class RowOrdering {
+
+  private RowOrdering() {
+  }
+
+  /**
+   * @param data
+   *            the value of every variable for every row (first dim is line
+   *            no, second is variable number)
+   * @param nValuesForAttribute
+   *            number of values per variable
+   * @return the row numbers in their new order
+   */
+  public static int[] grayCodeOrder(int[][] data, int[] nValuesForAttribute) {
+    int nbRows = data.length;
+    int[] rows = new int[nbRows];
+    for (int i = 0; i < nbRows; i++) { rows[i] = i; }
+    int[] variables = variableOrder(data, nValuesForAttribute);
+    sort(data, variables, nValuesForAttribute, rows, new int[nbRows], 0, nbRows, 0, 0);
+    return rows;
+  }
+
+  /**
+   * @return the variables sorted by increasing number of values, then by
+   *         decreasing frequency of their most frequent value
+   */
+  private static int[] variableOrder(int[][] data, final int[] nValuesForAttribute) {
+    int nbVariables = nValuesForAttribute.length;
+    final int[] maxFrequencies = new int[nbVariables];
+    for (int a = 0; a < nbVariables; a++) {
+      int[] counts = new int[nValuesForAttribute[a]];
+      for (int i = 0; i < data.length; i++) { counts[data[i][a]]++; }
+      for (int v = 0; v < counts.length; v++) { maxFrequencies[a] = Math.max(maxFrequencies[a], counts[v]); }
+    }
+    Integer[] variables = new Integer[nbVariables];
+    for (int a = 0; a < nbVariables; a++) { variables[a] = a; }
+    Arrays.sort(variables, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a1, Integer a2) {
+        if (nValuesForAttribute[a1] != nValuesForAttribute[a2]) {
+          return nValuesForAttribute[a1] < nValuesForAttribute[a2] ? -1 : 1;
+        }
+        if (maxFrequencies[a1] != maxFrequencies[a2]) {
+          return maxFrequencies[a1] > maxFrequencies[a2] ? -1 : 1;
+        }
+        return a1.compareTo(a2);
+      }
+    });
+    int[] order = new int[nbVariables];
+    for (int a = 0; a < nbVariables; a++) { order[a] = variables[a]; }
+    return order;
+  }
+
+  /**
+   * Sorts rows[from,to[ (that share the same values for the variables before
+   * the given level) with one counting sort per level; the order of the
+   * values is reversed when the sum of the values of the prefix is odd, so
+   * that two consecutive groups of rows keep the same value for the next
+   * variable at their boundary.
+   */
+  private static void sort(int[][] data, int[] variables, int[] nValuesForAttribute, int[] rows, int[] buffer,
+      int from, int to, int level, int parity) {
+    if (to - from <= 1 || level == variables.length) {
+      return;
+    }
+    int a = variables[level];
+    int dim = nValuesForAttribute[a];
+    int[] starts = new int[dim + 1];
+    for (int i = from; i < to; i++) {
+      int v = data[rows[i]][a];
+      starts[((parity == 0) ? v : dim - 1 - v) + 1]++;
+    }
+    for (int k = 0; k < dim; k++) { starts[k + 1] += starts[k]; }
+    int[] positions = starts.clone();
+    for (int i = from; i < to; i++) {
+      int v = data[rows[i]][a];
+      int key = (parity == 0) ? v : dim - 1 - v;
+      buffer[from + positions[key]++] = rows[i];
+    }
+    System.arraycopy(buffer, from, rows, from, to - from);
+    for (int k = 0; k < dim; k++) {
+      int v = (parity == 0) ? k : dim - 1 - k;
+      sort(data, variables, nValuesForAttribute, rows, buffer, from + starts[k], from + starts[k + 1], level + 1, (parity + v) & 1);
+    }
+  }
+}
@@ -0,0 +1,52 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core;
+
+/**
+ * Runs all the tests (ant test). Every test is a class with a main method
+ * that throws an error when a check fails; the checks use assert, so the
+ * tests must be run with -ea.
+ */
+public final class AllTests {
+
+  private AllTests() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    boolean assertionsEnabled = false;
+    assert assertionsEnabled = true;
+    if (!assertionsEnabled) {
+      throw new IllegalStateException("The tests must be run with assertions enabled (-ea)");
+    }
+    core.lattice.TIDSetTest.main(args);
+    core.lattice.RowScanCounterTest.main(args);
+    core.lattice.SparseTableTest.main(args);
+    core.lattice.ImplicitValuesTest.main(args);
+    core.lattice.MemoryBudgetTest.main(args);
+    core.lattice.LatticeCopyTest.main(args);
+    core.lattice.ColumnFileTest.main(args);
+    core.lattice.CountStoreTest.main(args);
+    core.lattice.SamplingTest.main(args);
+    core.stats.StatisticsCacheTest.main(args);
+    core.stats.ConcurrentEntropyComputerTest.main(args);
+    core.stats.RegretComputerTest.main(args);
+    loader.RowDeduplicatorTest.main(args);
+    loader.RowOrderingTest.main(args);
+    System.out.println("All tests passed");
+  }
+}
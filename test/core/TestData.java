@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import core.lattice.Lattice;
+
+/**
+ * Small random datasets shared by the tests, and the lattices built from
+ * them the baseline way (one row per line, dense TID sets).
+ */
+public final class TestData {
+
+  private TestData() {
+  }
+
+  /** @return nbVariables numbers of values between minValues and maxValues */
+  public static int[] randomDims(Random random, int nbVariables, int minValues, int maxValues) {
+    int[] dims = new int[nbVariables];
+    for (int a = 0; a < nbVariables; a++) {
+      dims[a] = minValues + random.nextInt(maxValues - minValues + 1);
+    }
+    return dims;
+  }
+
+  /**
+   * @param duplicateRate
+   *            probability for a line to be a copy of a previous one
+   * @return nbLines random lines; consecutive variables are correlated so that
+   *         the models found are not empty
+   */
+  public static int[][] randomData(Random random, int[] dims, int nbLines, double duplicateRate) {
+    int[][] data = new int[nbLines][dims.length];
+    for (int i = 0; i < nbLines; i++) {
+      if (i > 0 && random.nextDouble() < duplicateRate) {
+        data[i] = data[random.nextInt(i)].clone();
+        continue;
+      }
+      for (int a = 0; a < dims.length; a++) {
+        if (a > 0 && random.nextDouble() < 0.3) {
+          data[i][a] = data[i][a - 1] % dims[a];
+        } else {
+          data[i][a] = random.nextInt(dims[a]);
+        }
+      }
+    }
+    return data;
+  }
+
+  /** @return the rows of every value of every variable */
+  public static BitSet[][] toBitSets(int[] dims, int[][] data) {
+    BitSet[][] sets = new BitSet[dims.length][];
+    for (int a = 0; a < dims.length; a++) {
+      sets[a] = new BitSet[dims[a]];
+      for (int v = 0; v < dims[a]; v++) {
+        sets[a][v] = new BitSet();
+      }
+    }
+    for (int i = 0; i < data.length; i++) {
+      for (int a = 0; a < dims.length; a++) {
+        sets[a][data[i][a]].set(i);
+      }
+    }
+    return sets;
+  }
+
+  /** @return the baseline lattice of the data (one row per line, dense TID sets) */
+  public static Lattice lattice(int[] dims, int[][] data) {
+    return new Lattice(dims.length, data.length, dims, toBitSets(dims, data));
+  }
+
+  /** @return nbSets random sets of 1 to maxSize variables */
+  public static List<BitSet> randomSets(Random random, int nbVariables, int nbSets, int maxSize) {
+    List<BitSet> sets = new ArrayList<BitSet>(nbSets);
+    for (int s = 0; s < nbSets; s++) {
+      BitSet set = new BitSet(nbVariables);
+      int size = 1 + random.nextInt(Math.min(maxSize, nbVariables));
+      while (set.cardinality() < size) {
+        set.set(random.nextInt(nbVariables));
+      }
+      sets.add(set);
+    }
+    return sets;
+  }
+
+  /** Fails if the two values differ by more than the tolerance */
+  public static void assertClose(double expected, double actual, double tolerance, String what) {
+    if (!(Math.abs(expected - actual) <= tolerance)) {
+      throw new AssertionError(what + ": expected " + expected + ", got " + actual);
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.lattice;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import core.TestData;
+import loader.RowDeduplicator;
+
+/**
+ * Writes lattices to a column file, maps them back and checks that the
+ * mapped lattices count the same matrices, with every engine.
+ */
+public final class ColumnFileTest {
+
+  private ColumnFileTest() {
+  }
+
+  public static void main(String[] args) throws IOException {
+    Random random = new Random(13);
+    int[] dims = TestData.randomDims(random, 10, 2, 7);
+    int[][] data = TestData.randomData(random, dims, 5000, 0.3);
+    BitSet[][] sets = TestData.toBitSets(dims, data);
+    List<BitSet> variableSets = TestData.randomSets(random, dims.length, 200, 5);
+
+    RowDeduplicator deduplicator = new RowDeduplicator();
+    int[][] rows = new int[data.length][];
+    for (int[] line : data) {
+      rows[deduplicator.add(line)] = line;
+    }
+    int[][] distinct = Arrays.copyOf(rows, deduplicator.getNbRows());
+
+    Lattice[] lattices = {
+        TestData.lattice(dims, data),
+        new Lattice(dims.length, data.length, dims, TIDSet.convert(sets, true, true)),
+        // weighted rows
+        new Lattice(dims.length, distinct.length, dims, TestData.toBitSets(dims, distinct), deduplicator.getWeights()) };
+
+    File file = File.createTempFile("chordalysis-columns", ".bin");
+    file.deleteOnExit();
+    try {
+      for (Lattice lattice : lattices) {
+        ColumnFile.write(file, lattice);
+        Lattice mapped = new Lattice(file);
+        assert mapped.getNbRows() == lattice.getNbRows();
+        assert mapped.getNbInstances() == lattice.getNbInstances();
+        assert Arrays.equals(mapped.getnbValuesForAttribute(), lattice.getnbValuesForAttribute());
+        for (int a = 0; a < dims.length; a++) {
+          assert mapped.getImplicitValue(a) == lattice.getImplicitValue(a);
+          for (TIDSet set : mapped.getData()[a]) {
+            assert set == null || set instanceof MappedTIDSet;
+          }
+        }
+        compare(lattice, mapped, variableSets);
+
+        BitSet selection = new BitSet();
+        for (int i = 0; i < lattice.getNbRows(); i += 2) {
+          selection.set(i);
+        }
+        compare(new Lattice(lattice, selection), new Lattice(mapped, selection), variableSets);
+
+        Lattice scanned = new Lattice(file);
+        scanned.enableRowScan();
+        compare(lattice, scanned, variableSets);
+      }
+      try {
+        ColumnFile.write(file, new Lattice(lattices[0], new BitSet()));
+        assert false : "a masked lattice cannot be written";
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    } finally {
+      file.delete();
+    }
+    System.out.println("ColumnFileTest passed");
+  }
+
+  private static void compare(Lattice expected, Lattice lattice, List<BitSet> variableSets) {
+    for (BitSet set : variableSets) {
+      assert Arrays.equals(expected.getNode(set).getMatrix(), lattice.getNode(set).getMatrix()) : "matrix of " + set;
+    }
+  }
+}
@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.lattice;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+
+import core.TestData;
+
+/**
+ * Checks that the matrices read from a count store are those counted from
+ * the data: misses then hits, across lattices, reopened stores and threads.
+ */
+public final class CountStoreTest {
+
+  private static final int NB_THREADS = 8;
+
+  private CountStoreTest() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    Random random = new Random(16);
+    int[] dims = TestData.randomDims(random, 10, 2, 6);
+    int[][] data = TestData.randomData(random, dims, 3000, 0.2);
+    // distinct sets: the nodes do not keep their matrices, so a set asked for twice is read from the store
+    List<BitSet> sets = new ArrayList<BitSet>(new LinkedHashSet<BitSet>(TestData.randomSets(random, dims.length, 200, 5)));
+    Lattice expected = TestData.lattice(dims, data);
+
+    File file = File.createTempFile("chordalysis-counts", ".bin");
+    file.deleteOnExit();
+    try {
+      testHitsAndMisses(file, dims, data, sets, expected);
+      testConcurrentReads(file, dims, data, sets, expected);
+      testTruncatedRecord(file);
+      testCorruptRecord(file);
+      testBuffers(file);
+      testBootstrapView(file, dims, data);
+    } finally {
+      file.delete();
+    }
+    System.out.println("CountStoreTest passed");
+  }
+
+  /** Misses on the first lattice, hits on the next ones, also once the store is reopened */
+  private static void testHitsAndMisses(File file, int[] dims, int[][] data, List<BitSet> sets, Lattice expected)
+      throws IOException {
+    CountStore store = new CountStore(file);
+    Lattice first = TestData.lattice(dims, data);
+    first.setCountStore(store);
+    compare(expected, first, sets);
+    assert store.getNbHits() == 0L : "hits in an empty store";
+    long nbMisses = store.getNbMisses();
+    assert nbMisses > 0L && store.size() == nbMisses;
+
+    Lattice second = TestData.lattice(dims, data);
+    second.setCountStore(store);
+    compare(expected, second, sets);
+    assert store.getNbMisses() == nbMisses : "a matrix of the store was counted again";
+    assert store.getNbHits() > 0L;
+    int size = store.size();
+    store.close();
+
+    store = new CountStore(file);
+    assert store.size() == size;
+    Lattice third = TestData.lattice(dims, data);
+    third.setCountStore(store);
+    compare(expected, third, sets);
+    assert store.getNbMisses() == 0L && store.getNbHits() > 0L;
+
+    // other data: other fingerprint, so nothing is read from the store
+    int[][] other = Arrays.copyOf(data, data.length - 1);
+    Lattice otherLattice = TestData.lattice(dims, other);
+    otherLattice.setCountStore(store);
+    long nbHits = store.getNbHits();
+    compare(TestData.lattice(dims, other), otherLattice, sets);
+    assert store.getNbHits() == nbHits : "matrix of other data read from the store";
+    store.close();
+  }
+
+  /** Several threads reading (and adding to) the same store */
+  private static void testConcurrentReads(File file, final int[] dims, final int[][] data, final List<BitSet> sets,
+      final Lattice expected) throws Exception {
+    final CountStore store = new CountStore(file);
+    final Throwable[] failure = new Throwable[1];
+    Thread[] threads = new Thread[NB_THREADS];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            Lattice lattice = TestData.lattice(dims, data);
+            lattice.setCountStore(store);
+            compare(expected, lattice, sets);
+          } catch (Throwable e) {
+            synchronized (failure) {
+              if (failure[0] == null) { failure[0] = e; }
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (failure[0] != null) {
+      throw new AssertionError(failure[0]);
+    }
+    assert store.getNbMisses() == 0L;
+    store.close();
+  }
+
+  /** A record cut by a crash is dropped when the store is reopened */
+  private static void testTruncatedRecord(File file) throws IOException {
+    file.delete();
+    CountStore store = new CountStore(file);
+    store.putMatrix(1L, new int[] { 0, 1 }, new int[] { 1, 2, 3, 4 });
+    store.putMatrix(1L, new int[] { 0, 2 }, new int[] { 5, 6 });
+    store.close();
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    long length = raf.length();
+    raf.setLength(length - 3);
+    raf.close();
+
+    store = new CountStore(file);
+    assert store.size() == 1;
+    assert Arrays.equals(new int[] { 1, 2, 3, 4 }, store.getMatrix(1L, new int[] { 0, 1 }, 4));
+    assert store.getMatrix(1L, new int[] { 0, 2 }, 2) == null;
+    // the store is writable again after the dropped record
+    store.putMatrix(1L, new int[] { 0, 2 }, new int[] { 5, 6 });
+    store.close();
+    store = new CountStore(file);
+    assert store.size() == 2;
+    assert Arrays.equals(new int[] { 5, 6 }, store.getMatrix(1L, new int[] { 0, 2 }, 2));
+    store.close();
+  }
+
+  /** A record with garbage sizes is dropped (not allocated) when the store is reopened */
+  private static void testCorruptRecord(File file) throws IOException {
+    int[][] garbage = { { 2, -5 }, { 1, Integer.MAX_VALUE }, { 0, 1, 0, -1 }, { 0, 1, 0, Integer.MAX_VALUE }, { 7, 0 } };
+    for (int[] ints : garbage) {
+      file.delete();
+      CountStore store = new CountStore(file);
+      store.putMatrix(1L, new int[] { 0, 1 }, new int[] { 1, 2, 3, 4 });
+      store.close();
+      // fingerprint, kind, then the given ints (k, variables, n)
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      raf.seek(raf.length());
+      raf.writeLong(1L);
+      raf.writeByte(ints[0]);
+      for (int i = 1; i < ints.length; i++) {
+        raf.writeInt(ints[i]);
+      }
+      raf.close();
+
+      store = new CountStore(file);
+      assert store.size() == 1 : "corrupt record " + Arrays.toString(ints);
+      assert Arrays.equals(new int[] { 1, 2, 3, 4 }, store.getMatrix(1L, new int[] { 0, 1 }, 4));
+      store.close();
+    }
+  }
+
+  /** Matrices stored from and read into buffers longer than the matrices */
+  private static void testBuffers(File file) throws IOException {
+    file.delete();
+    CountStore store = new CountStore(file);
+    int[] buffer = { 1, 2, 3, 4, -1, -1 };
+    store.putMatrix(1L, new int[] { 0, 1 }, buffer, 4);
+    SparseTable table = new SparseTable();
+    table.add(2L, 7);
+    store.putSparseMatrix(1L, new int[] { 0, 2 }, table);
+    store.close();
+
+    store = new CountStore(file);
+    assert Arrays.equals(new int[] { 1, 2, 3, 4 }, store.getMatrix(1L, new int[] { 0, 1 }, 4));
+    int[] into = { 9, 9, 9, 9, 9, 9 };
+    assert store.getMatrix(1L, new int[] { 0, 1 }, 4, into) == into;
+    assert Arrays.equals(new int[] { 1, 2, 3, 4, 9, 9 }, into);
+    // a sparse record clears the cells it does not hold
+    assert store.getMatrix(1L, new int[] { 0, 2 }, 4, into) == into;
+    assert Arrays.equals(new int[] { 0, 0, 7, 0, 9, 9 }, into);
+    assert store.getMatrix(1L, new int[] { 1, 2 }, 4, into) == null;
+    store.close();
+  }
+
+  /** The bootstrap views and the samples do not fill the store with the matrices of every resample */
+  private static void testBootstrapView(File file, int[] dims, int[][] data) throws IOException {
+    CountStore store = new CountStore(file);
+    Lattice lattice = TestData.lattice(dims, data);
+    lattice.setCountStore(store);
+    Lattice view = new Lattice(lattice, lattice.bootstrapWeights(new Random(3)));
+    assert view.getCountStore() == null;
+    int size = store.size();
+    view.getNode(TestData.randomSets(new Random(4), dims.length, 1, 4).get(0)).getMatrix();
+    assert store.size() == size;
+    // nor do the samples
+    Lattice[] samples = { lattice.sample(data.length / 2, new Random(5)),
+        lattice.sampleStratified(data.length / 2, 0, new Random(6)) };
+    for (Lattice sample : samples) {
+      assert sample.isSample() && sample.getCountStore() == null;
+      sample.getNode(TestData.randomSets(new Random(7), dims.length, 1, 4).get(0)).getMatrix();
+      assert store.size() == size;
+    }
+    store.close();
+  }
+
+  private static void compare(Lattice expected, Lattice lattice, List<BitSet> sets) {
+    for (BitSet set : sets) {
+      LatticeNode node = lattice.getNode(set);
+      if (node.isSparse()) {
+        SparseTable table = node.getSparseMatrix();
+        int[] matrix = expected.getNode(set).getMatrix();
+        for (int i = 0; i < matrix.length; i++) {
+          assert table.get(i) == matrix[i] : "cell " + i + " of " + set;
+        }
+      } else {
+        assert Arrays.equals(expected.getNode(set).getMatrix(), node.getMatrix()) : "matrix of " + set;
+      }
+    }
+  }
+}
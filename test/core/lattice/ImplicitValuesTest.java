@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.lattice;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import core.TestData;
+
+/**
+ * Checks that a lattice only storing the positive TID set of its binary
+ * variables counts the same matrices as one storing all the sets, with every
+ * engine (dense and compressed sets, row scan) and on masked views.
+ */
+public final class ImplicitValuesTest {
+
+  private ImplicitValuesTest() {
+  }
+
+  public static void main(String[] args) {
+    Random random = new Random(11);
+    int nbVariables = 16;
+    int[] dims = new int[nbVariables];
+    for (int a = 0; a < nbVariables; a++) {
+      dims[a] = (a % 5 == 3) ? 4 : 2;
+    }
+    // sparse binary data: value 1 is rare
+    int[][] data = new int[3000][nbVariables];
+    for (int i = 0; i < data.length; i++) {
+      for (int a = 0; a < nbVariables; a++) {
+        data[i][a] = (dims[a] == 2) ? (random.nextDouble() < 0.05 + 0.02 * a ? 1 : 0) : random.nextInt(dims[a]);
+      }
+    }
+    BitSet[][] sets = TestData.toBitSets(dims, data);
+    List<BitSet> variableSets = TestData.randomSets(random, nbVariables, 200, 6);
+    BitSet rows = new BitSet();
+    for (int i = 0; i < data.length; i += 3) {
+      rows.set(i);
+    }
+
+    for (int mode = 0; mode < 4; mode++) {
+      boolean compressed = (mode & 1) != 0, scan = (mode & 2) != 0;
+      Lattice expected = new Lattice(nbVariables, data.length, dims, TIDSet.convert(sets, compressed));
+      Lattice lattice = new Lattice(nbVariables, data.length, dims, TIDSet.convert(sets, compressed, true));
+      for (int a = 0; a < nbVariables; a++) {
+        assert lattice.getImplicitValue(a) == ((dims[a] == 2) ? 0 : -1) : "implicit value of " + a;
+      }
+      assert lattice.getDataSizeInBytes() < expected.getDataSizeInBytes();
+      if (scan) {
+        lattice.enableRowScan();
+      }
+      compare(expected, lattice, variableSets);
+      compare(new Lattice(expected, rows), new Lattice(lattice, rows), variableSets);
+    }
+    System.out.println("ImplicitValuesTest passed");
+  }
+
+  private static void compare(Lattice expected, Lattice lattice, List<BitSet> variableSets) {
+    for (BitSet set : variableSets) {
+      LatticeNode expectedNode = expected.getNode(set);
+      LatticeNode node = lattice.getNode(set);
+      if (node.isSparse()) {
+        SparseTable expectedTable = expectedNode.getSparseMatrix(), table = node.getSparseMatrix();
+        assert expectedTable.size() == table.size() : "size of the table of " + set;
+        for (int s = expectedTable.nextSlot(0); s >= 0; s = expectedTable.nextSlot(s + 1)) {
+          assert expectedTable.getCount(s) == table.get(expectedTable.getIndex(s)) : "table of " + set;
+        }
+      } else {
+        int[] matrix = expectedNode.getMatrix();
+        assert Arrays.equals(matrix, node.getMatrix()) : "matrix of " + set;
+        // single cells, without counting the whole matrix
+        for (int i = 0; i < matrix.length; i += 1 + matrix.length / 16) {
+          assert matrix[i] == node.getMatrixCell(i) : "cell " + i + " of " + set;
+        }
+      }
+    }
+  }
+}
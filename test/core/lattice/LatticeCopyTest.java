@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.lattice;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import core.TestData;
+
+/**
+ * Checks the copies of a lattice (copy-on-write): the nodes built before the
+ * copy are shared, the ones built afterwards by either lattice are its own,
+ * the shared nodes are never evicted, and every lattice keeps counting right.
+ */
+public final class LatticeCopyTest {
+
+  private LatticeCopyTest() {
+  }
+
+  public static void main(String[] args) {
+    Random random = new Random(20);
+    int[] dims = TestData.randomDims(random, 10, 2, 5);
+    int[][] data = TestData.randomData(random, dims, 2000, 0.2);
+    List<BitSet> before = TestData.randomSets(random, dims.length, 100, 5);
+    List<BitSet> after = TestData.randomSets(random, dims.length, 100, 5);
+    Lattice expected = TestData.lattice(dims, data);
+
+    testSharing(dims, data, before, after, expected);
+    testEviction(dims, data, before, after, expected, false);
+    testEviction(dims, data, before, after, expected, true);
+    System.out.println("LatticeCopyTest passed");
+  }
+
+  /** Which nodes are shared, with copies of copies */
+  private static void testSharing(int[] dims, int[][] data, List<BitSet> before, List<BitSet> after, Lattice expected) {
+    Lattice original = TestData.lattice(dims, data);
+    LatticeNode[] originalNodes = nodes(original, before);
+    Lattice copy = new Lattice(original);
+    assert copy.getNbInstances() == original.getNbInstances();
+    // the nodes built before the copy are shared
+    for (int i = 0; i < before.size(); i++) {
+      assert copy.getNode(before.get(i)) == originalNodes[i] : "node " + before.get(i) + " not shared";
+      assert original.getNode(before.get(i)) == originalNodes[i];
+    }
+    // the nodes built afterwards are not
+    for (BitSet set : after) {
+      if (original.lookup(sorted(set)) != null) {
+        continue;
+      }
+      LatticeNode node = copy.getNode(set);
+      assert node.lattice == copy;
+      assert original.lookup(sorted(set)) == null : "node " + set + " of the copy visible from the original";
+      LatticeNode own = original.getNode(set);
+      assert own != node && own.lattice == original;
+      assert copy.getNode(set) == node && original.getNode(set) == own;
+    }
+    compare(expected, original, before, after);
+    compare(expected, copy, before, after);
+
+    // a copy of the copy shares the nodes of both
+    Lattice second = new Lattice(copy);
+    for (int i = 0; i < before.size(); i++) {
+      assert second.getNode(before.get(i)) == originalNodes[i];
+    }
+    for (BitSet set : after) {
+      assert second.getNode(set) == copy.getNode(set);
+    }
+    // two copies of a copy that has not built anything share the same nodes
+    Lattice third = new Lattice(second);
+    Lattice fourth = new Lattice(second);
+    for (BitSet set : after) {
+      assert third.getNode(set) == fourth.getNode(set);
+    }
+    compare(expected, second, before, after);
+  }
+
+  /** Copies under a tiny memory budget: the shared nodes stay, the others come and go */
+  private static void testEviction(int[] dims, int[][] data, List<BitSet> before, List<BitSet> after, Lattice expected,
+      boolean rowScan) {
+    Lattice original = TestData.lattice(dims, data);
+    if (rowScan) { original.enableRowScan(); }
+    LatticeNode[] originalNodes = nodes(original, before);
+    Lattice copy = new Lattice(original);
+    assert copy.isRowScanEnabled() == rowScan;
+    // the shared nodes leave the accounting of the original
+    assert original.getMemoryUsage() == 0L;
+    original.setMemoryBudget(500L);
+    copy.setMemoryBudget(500L);
+    for (int pass = 0; pass < 2; pass++) {
+      compare(expected, original, before, after);
+      compare(expected, copy, before, after);
+      assert original.getMemoryUsage() <= 500L && copy.getMemoryUsage() <= 500L;
+    }
+    assert original.getNbEvictions() > 0L && copy.getNbEvictions() > 0L : "nothing evicted";
+    for (int i = 0; i < before.size(); i++) {
+      assert original.getNode(before.get(i)) == originalNodes[i] : "shared node " + before.get(i) + " evicted";
+      assert copy.getNode(before.get(i)) == originalNodes[i] : "shared node " + before.get(i) + " evicted";
+    }
+  }
+
+  private static LatticeNode[] nodes(Lattice lattice, List<BitSet> sets) {
+    LatticeNode[] nodes = new LatticeNode[sets.size()];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = lattice.getNode(sets.get(i));
+    }
+    return nodes;
+  }
+
+  private static int[] sorted(BitSet set) {
+    int[] variables = new int[set.cardinality()];
+    for (int i = set.nextSetBit(0), j = 0; i >= 0; i = set.nextSetBit(i + 1)) { variables[j++] = i; }
+    return variables;
+  }
+
+  private static void compare(Lattice expected, Lattice lattice, List<BitSet> before, List<BitSet> after) {
+    for (List<BitSet> sets : Arrays.asList(before, after)) {
+      for (BitSet set : sets) {
+        LatticeNode node = lattice.getNode(set);
+        assert Arrays.equals(expected.getNode(set).getMatrix(), node.getMatrix()) : "matrix of " + set;
+      }
+    }
+  }
+}
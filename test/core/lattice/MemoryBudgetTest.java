@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.lattice;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import core.TestData;
+
+/**
+ * Checks that a lattice with a tiny memory budget, that keeps evicting and
+ * rebuilding its nodes, counts the same matrices as a lattice without budget,
+ * and that it stays within its budget.
+ */
+public final class MemoryBudgetTest {
+
+  /** room for a few nodes only */
+  private static final long BUDGET = 1000L;
+
+  private MemoryBudgetTest() {
+  }
+
+  public static void main(String[] args) {
+    Random random = new Random(6);
+    int[] dims = TestData.randomDims(random, 10, 2, 6);
+    int[][] data = TestData.randomData(random, dims, 3000, 0.2);
+    List<BitSet> sets = TestData.randomSets(random, dims.length, 300, 6);
+    Lattice unbounded = TestData.lattice(dims, data);
+
+    testBudget(unbounded, TestData.lattice(dims, data), sets);
+    Lattice scan = TestData.lattice(dims, data);
+    scan.enableRowScan();
+    testBudget(unbounded, scan, sets);
+    testLoweredBudget(unbounded, TestData.lattice(dims, data), sets);
+
+    // no budget: nothing is ever evicted, and the nodes are built once
+    assert unbounded.getNbEvictions() == 0L && unbounded.getNbRebuilds() == 0L;
+    for (BitSet set : sets) {
+      assert unbounded.getNode(set) == unbounded.getNode(set);
+    }
+    System.out.println("MemoryBudgetTest passed");
+  }
+
+  /** Each set asked for twice, in two passes, so that the evicted nodes are rebuilt */
+  private static void testBudget(Lattice unbounded, Lattice lattice, List<BitSet> sets) {
+    lattice.setMemoryBudget(BUDGET);
+    assert lattice.getMemoryBudget() == BUDGET;
+    for (int pass = 0; pass < 2; pass++) {
+      for (BitSet set : sets) {
+        compare(unbounded.getNode(set), lattice.getNode(set), set);
+        assert lattice.getMemoryUsage() <= BUDGET : "over budget: " + lattice.getMemoryUsage();
+      }
+    }
+    assert lattice.getNbEvictions() > 0L : "nothing evicted";
+    assert lattice.getNbRebuilds() > 0L : "nothing rebuilt";
+    assert lattice.getNbNodes() < lattice.getNbVariables() + sets.size();
+
+    // a node kept by the caller still counts after having been evicted
+    BitSet first = sets.get(0);
+    LatticeNode held = lattice.getNode(first);
+    for (BitSet set : sets) {
+      lattice.getNode(set);
+    }
+    compare(unbounded.getNode(first), held, first);
+  }
+
+  /** Lowering the budget of a lattice evicts its nodes at once */
+  private static void testLoweredBudget(Lattice unbounded, Lattice lattice, List<BitSet> sets) {
+    for (BitSet set : sets) {
+      lattice.getNode(set);
+    }
+    assert lattice.getNbEvictions() == 0L;
+    long usage = lattice.getMemoryUsage();
+    assert usage > BUDGET;
+    lattice.setMemoryBudget(BUDGET);
+    assert lattice.getMemoryUsage() <= BUDGET;
+    assert lattice.getNbEvictions() > 0L;
+    for (BitSet set : sets) {
+      compare(unbounded.getNode(set), lattice.getNode(set), set);
+    }
+  }
+
+  private static void compare(LatticeNode expected, LatticeNode node, BitSet set) {
+    assert Arrays.equals(expected.getVariablesNumbers(), node.getVariablesNumbers());
+    if (node.isSparse()) {
+      SparseTable table = node.getSparseMatrix();
+      SparseTable expectedTable = expected.getSparseMatrix();
+      assert table.size() == expectedTable.size() : "size of the table of " + set;
+      for (int s = expectedTable.nextSlot(0); s >= 0; s = expectedTable.nextSlot(s + 1)) {
+        assert table.get(expectedTable.getIndex(s)) == expectedTable.getCount(s) : "table of " + set;
+      }
+    } else {
+      assert Arrays.equals(expected.getMatrix(), node.getMatrix()) : "matrix of " + set;
+    }
+  }
+}
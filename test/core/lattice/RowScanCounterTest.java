@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.lattice;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import core.TestData;
+
+/**
+ * Checks that the row scan counts the same matrices as the intersection of
+ * the TID sets, for plain, weighted and masked lattices.
+ */
+public final class RowScanCounterTest {
+
+  private RowScanCounterTest() {
+  }
+
+  public static void main(String[] args) {
+    Random random = new Random(4);
+    int[] dims = TestData.randomDims(random, 10, 2, 6);
+    int[][] data = TestData.randomData(random, dims, 3000, 0.2);
+    List<BitSet> sets = TestData.randomSets(random, dims.length, 300, 6);
+
+    Lattice intersections = TestData.lattice(dims, data);
+    Lattice scan = TestData.lattice(dims, data);
+    scan.enableRowScan();
+    assert scan.isRowScanEnabled();
+    compare(intersections, scan, sets);
+    // the copies count like the lattice they copy
+    compare(intersections, new Lattice(scan), sets);
+
+    int[] weights = new int[data.length];
+    for (int i = 0; i < weights.length; i++) {
+      weights[i] = random.nextInt(4);
+    }
+    compare(new Lattice(intersections, weights), new Lattice(scan, weights), sets);
+
+    BitSet rows = new BitSet();
+    for (int i = 0; i < data.length; i++) {
+      if (random.nextDouble() < 0.4) { rows.set(i); }
+    }
+    compare(new Lattice(intersections, rows), new Lattice(scan, rows), sets);
+    System.out.println("RowScanCounterTest passed");
+  }
+
+  private static void compare(Lattice intersections, Lattice scan, List<BitSet> sets) {
+    assert intersections.getNbInstances() == scan.getNbInstances();
+    int nbScanned = 0;
+    for (BitSet set : sets) {
+      LatticeNode expected = intersections.getNode(set);
+      LatticeNode node = scan.getNode(set);
+      if (node.isRowScanCheaper()) { nbScanned++; }
+      if (node.isSparse()) {
+        assert sameCells(expected.getSparseMatrix(), node.getSparseMatrix()) : "sparse matrix of " + set;
+      } else {
+        assert Arrays.equals(expected.getMatrix(), node.getMatrix()) : "matrix of " + set;
+      }
+      // the engine can also be forced, whatever the cost model says
+      if (set.cardinality() > 1 && !node.isSparse()) {
+        int[] variables = new int[set.cardinality()];
+        for (int i = set.nextSetBit(0), j = 0; i >= 0; i = set.nextSetBit(i + 1)) { variables[j++] = i; }
+        int[] matrix = new int[node.getNbCells()];
+        scan.rowScan.count(variables, scan.getnbValuesForAttribute(), matrix);
+        assert Arrays.equals(expected.getMatrix(), matrix) : "scanned matrix of " + set;
+      }
+    }
+    assert nbScanned > 0 : "the row scan was never chosen";
+  }
+
+  private static boolean sameCells(SparseTable expected, SparseTable table) {
+    for (int s = expected.nextSlot(0); s >= 0; s = expected.nextSlot(s + 1)) {
+      if (expected.getCount(s) != table.get(expected.getIndex(s))) {
+        return false;
+      }
+    }
+    for (int s = table.nextSlot(0); s >= 0; s = table.nextSlot(s + 1)) {
+      if (table.getCount(s) != expected.get(table.getIndex(s))) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.lattice;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import core.TestData;
+import core.explorer.ChordalysisModellingSMT;
+import loader.LoadArrays;
+
+/**
+ * Checks the samples of a lattice against the lattice they are drawn from,
+ * and that scoring on a sample (with the borderline candidates re-scored
+ * exactly) finds the dependencies found with the exact counts.
+ */
+public final class SamplingTest {
+
+  private SamplingTest() {
+  }
+
+  public static void main(String[] args) {
+    Random random = new Random(18);
+    int[] dims = TestData.randomDims(random, 8, 2, 5);
+    int[][] data = TestData.randomData(random, dims, 4000, 0.1);
+    List<BitSet> sets = TestData.randomSets(random, dims.length, 100, 4);
+
+    Lattice lattice = TestData.lattice(dims, data);
+    assert !lattice.isSample() && lattice.getExactLattice() == lattice;
+    assert lattice.sample(data.length, random) == lattice : "a sample of all the rows is the lattice itself";
+
+    Lattice sample = lattice.sample(500, random);
+    checkSample(lattice, sample, 500, sets);
+
+    int variable = 0;
+    Lattice stratified = lattice.sampleStratified(500, variable, random);
+    checkSample(lattice, stratified, 500 + dims[variable], sets);
+    BitSet strataVariable = new BitSet();
+    strataVariable.set(variable);
+    int[] population = lattice.getNode(strataVariable).getMatrix();
+    int[] strata = stratified.getNode(strataVariable).getMatrix();
+    for (int v = 0; v < population.length; v++) {
+      double share = 500.0 * population[v] / data.length;
+      assert Math.abs(strata[v] - share) <= 0.5 + 1e-9 : "size of the stratum of value " + v;
+    }
+
+    testModel(random);
+    System.out.println("SamplingTest passed");
+  }
+
+  /** The sample counts at most maxSize rows, each of them counted by the exact lattice */
+  private static void checkSample(Lattice lattice, Lattice sample, int maxSize, List<BitSet> sets) {
+    assert sample.isSample() && sample.getExactLattice() == lattice;
+    assert sample.getNbInstances() > 0 && sample.getNbInstances() <= maxSize;
+    for (BitSet set : sets) {
+      int[] expected = lattice.getNode(set).getMatrix();
+      int[] matrix = sample.getNode(set).getMatrix();
+      long total = 0L;
+      for (int i = 0; i < matrix.length; i++) {
+        assert matrix[i] <= expected[i] : "cell " + i + " of " + set;
+        total += matrix[i];
+      }
+      assert total == sample.getNbInstances() : "number of rows in the matrix of " + set;
+    }
+  }
+
+  /**
+   * Models with and without sampling, on data where consecutive variables are
+   * dependent: the sample may change the order in which the edges are added
+   * (hence the triangulation), but not the dependencies found
+   */
+  private static void testModel(Random random) {
+    int[] dims = TestData.randomDims(random, 10, 2, 4);
+    int[][] data = TestData.randomData(random, dims, 20000, 0.0);
+    ChordalysisModellingSMT exact = new ChordalysisModellingSMT(LoadArrays.makeModelData(dims, data), 0.05);
+    exact.buildModel();
+    ChordalysisModellingSMT sampled = new ChordalysisModellingSMT(LoadArrays.makeModelData(dims, data), 0.05);
+    sampled.setSampling(2000, 0.999, 1L);
+    sampled.buildModel();
+    assert sampled.getLattice().getNbInstances() == data.length;
+    for (int a = 1; a < dims.length; a++) {
+      assert exact.getModel().graph.containsEdge(a - 1, a) : "edge " + (a - 1) + "-" + a + " of the exact model";
+      assert sampled.getModel().graph.containsEdge(a - 1, a) : "edge " + (a - 1) + "-" + a + " of the sampled model";
+    }
+
+    // a sample of all the rows is no sample at all
+    ChordalysisModellingSMT whole = new ChordalysisModellingSMT(LoadArrays.makeModelData(dims, data), 0.05);
+    whole.setSampling(data.length, 0.999, 1L);
+    whole.buildModel();
+    assert exact.getModel().toString().equals(whole.getModel().toString());
+  }
+}
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.lattice;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import core.TestData;
+
+/**
+ * Checks the sparse tables of the nodes against the dense matrices, and the
+ * tables of the nodes with many cells against the counts of the lines of the
+ * data, with and without the implicit values of the binary variables.
+ */
+public final class SparseTableTest {
+
+  private SparseTableTest() {
+  }
+
+  public static void main(String[] args) {
+    Random random = new Random(7);
+    testDenseNodes(random);
+    testSparseNodes(random);
+    System.out.println("SparseTableTest passed");
+  }
+
+  /** Sparse tables of small nodes against their dense matrices */
+  private static void testDenseNodes(Random random) {
+    int[] dims = TestData.randomDims(random, 8, 2, 5);
+    int[][] data = TestData.randomData(random, dims, 2000, 0.1);
+    Lattice lattice = TestData.lattice(dims, data);
+    for (BitSet set : TestData.randomSets(random, dims.length, 200, 5)) {
+      LatticeNode node = lattice.getNode(set);
+      int[] matrix = node.getMatrix();
+      SparseTable table = node.getSparseMatrix();
+      int nbNonEmpty = 0;
+      for (int i = 0; i < matrix.length; i++) {
+        assert table.get(i) == matrix[i] : "cell " + i + " of " + set;
+        if (matrix[i] != 0) { nbNonEmpty++; }
+      }
+      assert table.size() == nbNonEmpty : "size of the table of " + set;
+    }
+  }
+
+  /** Tables of nodes with many more cells than rows against the lines of the data */
+  private static void testSparseNodes(Random random) {
+    int nbVariables = 8;
+    int[] dims = new int[nbVariables];
+    for (int a = 0; a < nbVariables; a++) {
+      // binary variables mixed with variables with many values
+      dims[a] = (a % 2 == 0) ? 2 : 40 + random.nextInt(20);
+    }
+    int[][] data = TestData.randomData(random, dims, 1500, 0.1);
+    BitSet[][] sets = TestData.toBitSets(dims, data);
+    Lattice[] lattices = {
+        new Lattice(nbVariables, data.length, dims, sets),
+        // only the positive TID set of the binary variables
+        new Lattice(nbVariables, data.length, dims, TIDSet.convert(sets, false, true)) };
+    List<BitSet> variableSets = TestData.randomSets(random, nbVariables, 200, nbVariables);
+    int nbSparse = 0;
+    for (Lattice lattice : lattices) {
+      for (BitSet set : variableSets) {
+        LatticeNode node = lattice.getNode(set);
+        if (!node.isSparse()) {
+          continue;
+        }
+        nbSparse++;
+        Map<Long, Integer> expected = count(dims, data, set);
+        SparseTable table = node.getSparseMatrix();
+        // the cells emptied by the implicit values are not kept
+        assert table.size() == expected.size() : "size of the table of " + set;
+        for (Map.Entry<Long, Integer> cell : expected.entrySet()) {
+          assert table.get(cell.getKey()) == cell.getValue() : "cell " + cell.getKey() + " of " + set;
+        }
+      }
+    }
+    assert nbSparse > 0 : "no sparse node";
+  }
+
+  /** @return the non-empty cells of the table of the given variables, indexed as for the nodes */
+  private static Map<Long, Integer> count(int[] dims, int[][] data, BitSet set) {
+    Map<Long, Integer> cells = new HashMap<Long, Integer>();
+    for (int[] line : data) {
+      long index = 0L;
+      for (int a = set.nextSetBit(0); a >= 0; a = set.nextSetBit(a + 1)) {
+        index = index * dims[a] + line[a];
+      }
+      Integer count = cells.get(index);
+      cells.put(index, (count == null) ? 1 : count + 1);
+    }
+    return cells;
+  }
+}
@@ -0,0 +1,214 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.lattice;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Checks every operation of the dense and compressed TID sets against
+ * {@link BitSet}, for every pairing of the two implementations, on random
+ * sets spanning several chunks of the compressed sets and mixing their three
+ * containers (array, bitmap and run).
+ */
+public final class TIDSetTest {
+
+  private static final int CHUNK = 1 << CompressedTIDSet.CHUNK_BITS;
+  private static final int NB_CHUNKS = 5;
+
+  private TIDSetTest() {
+  }
+
+  public static void main(String[] args) {
+    Random random = new Random(5);
+    int[] weights = new int[NB_CHUNKS * CHUNK];
+    for (int i = 0; i < weights.length; i++) {
+      weights[i] = random.nextInt(4);
+    }
+    boolean[] kinds = new boolean[3];
+    for (int t = 0; t < 60; t++) {
+      BitSet a = randomSet(random), b = randomSet(random), c = randomSet(random);
+      countContainers(new CompressedTIDSet(a), kinds);
+      for (int pairing = 0; pairing < 8; pairing++) {
+        TIDSet sa = make(a, (pairing & 1) != 0), sb = make(b, (pairing & 2) != 0), sc = make(c, (pairing & 4) != 0);
+        String what = "pairing " + pairing + " of sets " + t;
+        checkSet(a, sa, weights, random, what);
+        checkIntersection(a, b, sa, sb, weights, random, what);
+        checkThreeWay(a, b, c, sa, sb, sc, weights, what);
+      }
+    }
+    assert kinds[0] && kinds[1] && kinds[2] : "some containers were never built";
+    checkEdgeCases();
+    System.out.println("TIDSetTest passed");
+  }
+
+  private static TIDSet make(BitSet set, boolean compressed) {
+    return compressed ? TIDSet.compressed(set) : TIDSet.dense(set);
+  }
+
+  /**
+   * @return a set whose chunks are empty, full, sparse (array container), half
+   *         full (bitmap container) or made of a few long runs (run
+   *         container), with rows set at the edges of the chunks
+   */
+  private static BitSet randomSet(Random random) {
+    BitSet set = new BitSet();
+    int nbChunks = 1 + random.nextInt(NB_CHUNKS);
+    for (int c = 0; c < nbChunks; c++) {
+      int from = c * CHUNK;
+      switch (random.nextInt(5)) {
+      case 0:
+        break;
+      case 1:
+        set.set(from, from + CHUNK);
+        break;
+      case 2:
+        for (int n = random.nextInt(CompressedTIDSet.ARRAY_MAX_SIZE); n > 0; n--) {
+          set.set(from + random.nextInt(CHUNK));
+        }
+        break;
+      case 3:
+        for (int i = from; i < from + CHUNK; i++) {
+          if (random.nextBoolean()) { set.set(i); }
+        }
+        break;
+      default:
+        for (int n = 1 + random.nextInt(20); n > 0; n--) {
+          int start = from + random.nextInt(CHUNK);
+          set.set(start, Math.min(from + CHUNK, start + random.nextInt(5000)));
+        }
+      }
+      if (random.nextInt(3) == 0) { set.set(from); }
+      if (random.nextInt(3) == 0) { set.set(from + CHUNK - 1); }
+    }
+    return set;
+  }
+
+  private static void countContainers(CompressedTIDSet set, boolean[] kinds) {
+    for (int i = 0; i < set.nbContainers; i++) {
+      CompressedTIDSet.Container container = set.containers[i];
+      if (container instanceof CompressedTIDSet.ArrayContainer) { kinds[0] = true; }
+      if (container instanceof CompressedTIDSet.BitmapContainer) { kinds[1] = true; }
+      if (container instanceof CompressedTIDSet.RunContainer) { kinds[2] = true; }
+    }
+  }
+
+  /** Operations on a single set */
+  private static void checkSet(BitSet expected, TIDSet set, int[] weights, Random random, String what) {
+    assert set.cardinality() == expected.cardinality() : "cardinality, " + what;
+    assert set.isEmpty() == expected.isEmpty() : "isEmpty, " + what;
+    assert set.toBitSet().equals(expected) : "toBitSet, " + what;
+    assert set.weightedCardinality(weights) == weightedCardinality(expected, weights) : "weightedCardinality, " + what;
+    for (int q = 0; q < 200; q++) {
+      int row = randomRow(random);
+      assert set.get(row) == expected.get(row) : "get(" + row + "), " + what;
+      assert set.nextSetBit(row) == expected.nextSetBit(row) : "nextSetBit(" + row + "), " + what;
+    }
+    // every row, crossing all the chunk boundaries
+    int expectedRow = expected.nextSetBit(0);
+    for (int row = set.nextSetBit(0); row >= 0; row = set.nextSetBit(row + 1)) {
+      assert row == expectedRow : "iteration, " + what;
+      expectedRow = expected.nextSetBit(row + 1);
+    }
+    assert expectedRow < 0 : "iteration stopped early, " + what;
+  }
+
+  /** Intersection of two sets, in both orders */
+  private static void checkIntersection(BitSet a, BitSet b, TIDSet sa, TIDSet sb, int[] weights, Random random,
+      String what) {
+    BitSet expected = (BitSet) a.clone();
+    expected.and(b);
+    int weighted = weightedCardinality(expected, weights);
+    for (int order = 0; order < 2; order++) {
+      TIDSet x = (order == 0) ? sa : sb, y = (order == 0) ? sb : sa;
+      String where = what + ((order == 0) ? "" : " (swapped)");
+      checkSet(expected, x.and(y), weights, random, "and, " + where);
+      assert x.andCardinality(y) == expected.cardinality() : "andCardinality, " + where;
+      assert x.andWeightedCardinality(y, weights) == weighted : "andWeightedCardinality, " + where;
+      TIDSet[] sets = { x, y };
+      assert TIDSet.intersectionCardinality(sets, 2, null) == expected.cardinality() : "intersectionCardinality, " + where;
+      assert TIDSet.intersectionCardinality(sets, 2, weights) == weighted : "weighted intersectionCardinality, " + where;
+    }
+  }
+
+  /** Intersections of three sets, including results of intersections intersected again */
+  private static void checkThreeWay(BitSet a, BitSet b, BitSet c, TIDSet sa, TIDSet sb, TIDSet sc, int[] weights,
+      String what) {
+    BitSet expected = (BitSet) a.clone();
+    expected.and(b);
+    expected.and(c);
+    assert sa.and(sb).and(sc).toBitSet().equals(expected) : "and of and, " + what;
+    assert sa.and(sb).andCardinality(sc) == expected.cardinality() : "andCardinality of and, " + what;
+    TIDSet[] sets = { sa, sb, sc };
+    assert TIDSet.intersectionCardinality(sets, 3, null) == expected.cardinality() : "intersectionCardinality, " + what;
+    assert TIDSet.intersectionCardinality(sets, 3, weights) == weightedCardinality(expected, weights)
+        : "weighted intersectionCardinality, " + what;
+    // only the first sets are intersected
+    BitSet first = (BitSet) a.clone();
+    first.and(b);
+    assert TIDSet.intersectionCardinality(sets, 2, null) == first.cardinality() : "intersectionCardinality of 2, " + what;
+    assert TIDSet.intersectionCardinality(sets, 1, null) == a.cardinality() : "intersectionCardinality of 1, " + what;
+  }
+
+  /** Empty sets, full chunks and the last rows of the chunks */
+  private static void checkEdgeCases() {
+    BitSet empty = new BitSet();
+    BitSet edges = new BitSet();
+    for (int c = 0; c < NB_CHUNKS; c++) {
+      edges.set(c * CHUNK);
+      edges.set(c * CHUNK + CHUNK - 1);
+    }
+    BitSet full = new BitSet();
+    full.set(0, NB_CHUNKS * CHUNK);
+    int[] weights = new int[NB_CHUNKS * CHUNK];
+    Arrays.fill(weights, 1);
+    Random random = new Random(1);
+    for (BitSet set : new BitSet[] { empty, edges, full }) {
+      for (int pairing = 0; pairing < 4; pairing++) {
+        for (BitSet other : new BitSet[] { empty, edges, full }) {
+          checkIntersection(set, other, make(set, (pairing & 1) != 0), make(other, (pairing & 2) != 0), weights, random,
+              "edge case " + pairing);
+        }
+      }
+    }
+    assert TIDSet.compressed(empty).nextSetBit(0) == -1;
+    assert TIDSet.compressed(edges).nextSetBit(CHUNK - 1) == CHUNK - 1;
+    assert TIDSet.compressed(edges).nextSetBit(CHUNK + 1) == 2 * CHUNK - 1;
+  }
+
+  private static int randomRow(Random random) {
+    int chunk = random.nextInt(NB_CHUNKS + 1);
+    switch (random.nextInt(3)) {
+    case 0:
+      return chunk * CHUNK;
+    case 1:
+      return Math.max(0, chunk * CHUNK - 1);
+    default:
+      return chunk * CHUNK + random.nextInt(CHUNK);
+    }
+  }
+
+  private static int weightedCardinality(BitSet set, int[] weights) {
+    int c = 0;
+    for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+      c += weights[i];
+    }
+    return c;
+  }
+}
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.stats;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import core.TestData;
+import core.explorer.ChordalysisModellingSMT;
+import core.lattice.Lattice;
+import loader.LoadArrays;
+
+/**
+ * Scores the same lattice from several threads and checks that the results
+ * are those of a single thread working on its own copy of the data.
+ */
+public final class ConcurrentEntropyComputerTest {
+
+  private static final int NB_THREADS = 8;
+
+  private ConcurrentEntropyComputerTest() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    Random random = new Random(5);
+    int[] dims = TestData.randomDims(random, 12, 2, 5);
+    int[][] data = TestData.randomData(random, dims, 5000, 0.0);
+    List<BitSet> sets = TestData.randomSets(random, dims.length, 4000, 4);
+
+    testEntropies(dims, data, sets, Integer.MAX_VALUE, Long.MAX_VALUE);
+    // evictions of statistics and of nodes while the threads are running
+    testEntropies(dims, data, sets, 50, 20000L);
+    testFamilies(dims, data);
+    testModel(dims, data);
+    testCellCounts(dims, data, sets);
+    System.out.println("ConcurrentEntropyComputerTest passed");
+  }
+
+  /** Entropies computed by a pool of threads */
+  private static void testEntropies(int[] dims, int[][] data, List<BitSet> sets, int capacity, long memoryBudget) {
+    Lattice lattice = TestData.lattice(dims, data);
+    lattice.setMemoryBudget(memoryBudget);
+    ConcurrentEntropyComputer concurrent = new ConcurrentEntropyComputer(lattice, NB_THREADS);
+    concurrent.getStatisticsService().setCapacity(capacity);
+    EntropyComputer single = new EntropyComputer(TestData.lattice(dims, data));
+    try {
+      double[] entropies = concurrent.computeEntropies(sets);
+      for (int i = 0; i < sets.size(); i++) {
+        TestData.assertClose(single.computeEntropy(sets.get(i)), entropies[i], 1e-12, "entropy of " + sets.get(i));
+      }
+    } finally {
+      concurrent.shutdown();
+    }
+    assert concurrent.getNbCellsParsed() > 0L;
+  }
+
+  /** Families (Sab, Sab+a, Sab+b, Sab+a+b) computed by several threads on the same computer */
+  private static void testFamilies(int[] dims, int[][] data) throws InterruptedException {
+    final int nbVariables = dims.length;
+    final EntropyComputer shared = new EntropyComputer(TestData.lattice(dims, data));
+    final EntropyComputer single = new EntropyComputer(TestData.lattice(dims, data));
+    final Throwable[] failure = new Throwable[1];
+    Thread[] threads = new Thread[NB_THREADS];
+    for (int t = 0; t < threads.length; t++) {
+      final int first = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int s = first; s < 400; s += NB_THREADS) {
+              BitSet Sab = new BitSet(nbVariables);
+              Sab.set(s % nbVariables);
+              int a = (7 * s + 1) % nbVariables, b = (5 * s + 3) % nbVariables;
+              if (a == b || Sab.get(a) || Sab.get(b)) {
+                continue;
+              }
+              shared.computeEntropies(Sab, a, b);
+              BitSet family = (BitSet) Sab.clone();
+              family.set(a);
+              family.set(b);
+              TestData.assertClose(single.computeEntropy(family), shared.computeEntropy(family), 1e-12, "entropy of " + family);
+            }
+          } catch (Throwable e) {
+            synchronized (failure) {
+              if (failure[0] == null) { failure[0] = e; }
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (failure[0] != null) {
+      throw new AssertionError(failure[0]);
+    }
+  }
+
+  /** The deprecated count of all the computers is the sum of their own counts */
+  @SuppressWarnings("deprecation")
+  private static void testCellCounts(int[] dims, int[][] data, List<BitSet> sets) {
+    EntropyComputer first = new EntropyComputer(TestData.lattice(dims, data));
+    EntropyComputer second = new EntropyComputer(TestData.lattice(dims, data));
+    for (int i = 0; i < 100; i++) {
+      first.computeEntropy(sets.get(i));
+      second.computeEntropy(sets.get(2 * i));
+    }
+    assert first.getNbCellsParsed() > 0L && second.getNbCellsParsed() > 0L;
+    assert EntropyComputer.nbCellsEverParsed == first.getNbCellsParsed() + second.getNbCellsParsed() : EntropyComputer.nbCellsEverParsed
+        + " cells for " + first.getNbCellsParsed() + " + " + second.getNbCellsParsed();
+    new EntropyComputer(TestData.lattice(dims, data));
+    assert EntropyComputer.nbCellsEverParsed == 0L : "not reset";
+  }
+
+  /** Same model whether the pairs are precomputed by one thread or by several */
+  private static void testModel(int[] dims, int[][] data) {
+    ChordalysisModellingSMT single = new ChordalysisModellingSMT(LoadArrays.makeModelData(dims, data), 0.05);
+    single.setNbThreads(1);
+    single.buildModel();
+    ChordalysisModellingSMT concurrent = new ChordalysisModellingSMT(LoadArrays.makeModelData(dims, data), 0.05);
+    concurrent.setNbThreads(NB_THREADS);
+    concurrent.buildModel();
+    assert single.getModel().graph.edgeSet().size() > 0 : "empty model";
+    assert single.getModel().toString().equals(concurrent.getModel().toString());
+  }
+}
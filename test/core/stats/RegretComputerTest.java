@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Copyright (C) 2017 Joan Capdevila Pujol
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.stats;
+
+import static org.apache.commons.math3.util.FastMath.log;
+
+import java.util.Random;
+
+import core.TestData;
+
+/**
+ * Checks the regrets of {@link RegretComputer}:
+ * - the exact values against the definition of the parametric complexity,
+ *   C(N,K) = sum over the tables of counts (n1..nK) of N of
+ *   N!/(n1!...nK!) prod (ni/N)^ni, enumerated for small N and K;
+ * - C(N,2) summed exactly against its expansion, on both sides of
+ *   {@link RegretComputer#MAX_EXACT_INSTANCES_C2};
+ * - the asymptotic expansion against the recurrence where the computer
+ *   switches from one to the other ({@link RegretComputer#MAX_EXACT_CELLS});
+ * - the lazily extended table against the whole table computed at once.
+ */
+public final class RegretComputerTest {
+
+  /** tolerance on the log of the regret for the exact values */
+  private static final double EXACT_TOLERANCE = 1e-10;
+  /** tolerance for the expansion of C(N,2) just above MAX_EXACT_INSTANCES_C2, whose error is O(N^-3) */
+  private static final double C2_TOLERANCE = 1e-8;
+  /** tolerance for the expansion at the switch-over, whose error is O(1/K) (about 3e-6 nits) */
+  private static final double SWITCH_TOLERANCE = 1e-5;
+
+  private RegretComputerTest() {
+  }
+
+  public static void main(String[] args) {
+    testBruteForce();
+    testRegret2();
+    testSwitchOver();
+    testLazyExtension();
+    System.out.println("RegretComputerTest passed");
+  }
+
+  private static RegretComputer computer(int nbInstances) {
+    Random random = new Random(nbInstances);
+    int[] dims = TestData.randomDims(random, 2, 2, 3);
+    return new RegretComputer(TestData.lattice(dims, TestData.randomData(random, dims, nbInstances, 0.0)));
+  }
+
+  /** Exact values against the sum over all the tables of counts */
+  private static void testBruteForce() {
+    for (int n = 1; n <= 8; n++) {
+      RegretComputer computer = computer(n);
+      for (int k = 1; k <= 6; k++) {
+        double expected = log(bruteForce(n, k, n, 0));
+        TestData.assertClose(expected, computer.getLogRegret(k), EXACT_TOLERANCE, "log C(" + n + "," + k + ")");
+      }
+      TestData.assertClose(log(bruteForce(n, 2, n, 0)), RegretComputer.logRegret2(n), EXACT_TOLERANCE, "log C(" + n + ",2)");
+    }
+  }
+
+  /**
+   * @return the sum over the counts of the cells from 'cell' to k-1 (that sum
+   *         to 'remaining') of prod N!/ni! (ni/N)^ni, the N! being spread over
+   *         the cells
+   */
+  private static double bruteForce(int n, int k, int remaining, int cell) {
+    if (cell == k - 1) {
+      return term(n, remaining) / factorial(remaining) * factorial(n);
+    }
+    double sum = 0.0;
+    for (int count = 0; count <= remaining; count++) {
+      sum += term(n, count) / factorial(count) * bruteForce(n, k, remaining - count, cell + 1);
+    }
+    return sum;
+  }
+
+  /** @return (count/n)^count, with 0^0 = 1 */
+  private static double term(int n, int count) {
+    return (count == 0) ? 1.0 : Math.pow((double) count / n, count);
+  }
+
+  private static double factorial(int n) {
+    double f = 1.0;
+    for (int i = 2; i <= n; i++) {
+      f *= i;
+    }
+    return f;
+  }
+
+  /** C(N,2) summed exactly (log space) against its expansion, above the threshold */
+  private static void testRegret2() {
+    for (int n = RegretComputer.MAX_EXACT_INSTANCES_C2 + 1; n <= RegretComputer.MAX_EXACT_INSTANCES_C2 + 50; n += 7) {
+      TestData.assertClose(exactRegret2(n), RegretComputer.logRegret2(n), C2_TOLERANCE, "log C(" + n + ",2)");
+    }
+  }
+
+  /** @return log C(N,2) = log sum over r of binomial(n,r) (r/n)^r ((n-r)/n)^(n-r) */
+  private static double exactRegret2(int n) {
+    double[] logTerms = new double[n + 1];
+    double logFactorialN = 0.0;
+    for (int i = 2; i <= n; i++) {
+      logFactorialN += log(i);
+    }
+    double logFactorialR = 0.0, max = Double.NEGATIVE_INFINITY;
+    for (int r = 0; r <= n; r++) {
+      if (r > 0) {
+        logFactorialR += log(r);
+      }
+      double logFactorialNR = 0.0;
+      for (int i = 2; i <= n - r; i++) {
+        logFactorialNR += log(i);
+      }
+      logTerms[r] = logFactorialN - logFactorialR - logFactorialNR + (r > 0 ? r * log((double) r / n) : 0.0)
+          + (r < n ? (n - r) * log((double) (n - r) / n) : 0.0);
+      max = Math.max(max, logTerms[r]);
+    }
+    double sum = 0.0;
+    for (int r = 0; r <= n; r++) {
+      sum += Math.exp(logTerms[r] - max);
+    }
+    return max + log(sum);
+  }
+
+  /** The expansion used above MAX_EXACT_CELLS agrees with the recurrence there */
+  private static void testSwitchOver() {
+    int k = RegretComputer.MAX_EXACT_CELLS;
+    for (int n : new int[] { 50, 1000, 20000, 100000 }) {
+      RegretComputer computer = computer(n);
+      double exact = computer.getLogRegret(k);
+      TestData.assertClose(exact, RegretComputer.logRegretAsymptotic(n, k), SWITCH_TOLERANCE, "log C(" + n + "," + k + ")");
+      // just above the switch-over, the regret is still increasing with K
+      double above = computer.getLogRegret(k + 1L);
+      assert above > exact : "log C(" + n + ",K) decreases at the switch-over";
+    }
+  }
+
+  /** Values asked for in any order against the whole table computed at once */
+  private static void testLazyExtension() {
+    int n = 5000, maxK = 5000;
+    double[] eager = new double[maxK + 1];
+    eager[1] = 0.0;
+    eager[2] = RegretComputer.logRegret2(n);
+    for (int k = 3; k <= maxK; k++) {
+      double a = Math.max(eager[k - 1], eager[k - 2]);
+      eager[k] = a + log(Math.exp(eager[k - 1] - a) + (double) n / (k - 2) * Math.exp(eager[k - 2] - a));
+    }
+    RegretComputer computer = computer(n);
+    Random random = new Random(3);
+    for (int q = 0; q < 2000; q++) {
+      int k = 1 + random.nextInt(maxK);
+      TestData.assertClose(eager[k], computer.getLogRegret(k), 1e-9 * Math.max(1.0, Math.abs(eager[k])), "log C(" + n + "," + k + ")");
+    }
+  }
+}
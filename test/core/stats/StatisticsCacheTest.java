@@ -0,0 +1,208 @@
+/*******************************************************************************
+ * Copyright (C) 2017 Joan Capdevila Pujol
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package core.stats;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import core.TestData;
+import core.stats.StatisticsService.TableStatistics;
+
+/**
+ * Checks {@link StatisticsCache} against a HashMap, under random puts and
+ * lookups of sets of variables of various lengths (so that the keys are
+ * compacted as entries are evicted):
+ * - unbounded, the cache holds exactly the entries of the map;
+ * - bounded, it never holds more entries than its capacity, even a tiny one,
+ *   what it holds has the last values put, and the last entries added are kept;
+ * - the pinned entries are never evicted, and are trimmed once unpinned.
+ */
+public final class StatisticsCacheTest {
+
+  private static final int NB_VARIABLES = 80;
+  private static final int NB_KEYS = 400;
+  private static final int NB_OPERATIONS = 20000;
+  /** size of the window of the cache (the last entries added, never evicted) */
+  private static final int WINDOW = 16;
+
+  private StatisticsCacheTest() {
+  }
+
+  public static void main(String[] args) {
+    testUnbounded();
+    for (int capacity : new int[] { 1, 2, 5, WINDOW, WINDOW + 1, 100 }) {
+      testBounded(capacity);
+    }
+    testSetCapacity();
+    testPinned();
+    System.out.println("StatisticsCacheTest passed");
+  }
+
+  private static List<BitSet> keys(Random random) {
+    LinkedHashSet<BitSet> keys = new LinkedHashSet<BitSet>(TestData.randomSets(random, NB_VARIABLES, NB_KEYS, 6));
+    // sets on high variables have longer keys
+    for (int i = 0; i < NB_KEYS / 4; i++) {
+      BitSet set = new BitSet();
+      set.set(NB_VARIABLES + random.nextInt(200));
+      set.set(random.nextInt(NB_VARIABLES));
+      keys.add(set);
+    }
+    keys.add(new BitSet());
+    return new ArrayList<BitSet>(keys);
+  }
+
+  private static TableStatistics statistics(int version) {
+    return new TableStatistics(version, version + 0.5, version + 1L, version + 2L);
+  }
+
+  private static boolean same(TableStatistics expected, TableStatistics actual) {
+    return expected.entropy == actual.entropy && expected.lengthData == actual.lengthData && expected.nbCells == actual.nbCells
+        && expected.nbNonEmptyCells == actual.nbNonEmptyCells;
+  }
+
+  private static void testUnbounded() {
+    Random random = new Random(1);
+    List<BitSet> keys = keys(random);
+    StatisticsCache cache = new StatisticsCache(4);
+    Map<BitSet, TableStatistics> reference = new HashMap<BitSet, TableStatistics>();
+    for (int op = 0; op < NB_OPERATIONS; op++) {
+      BitSet key = keys.get(random.nextInt(keys.size()));
+      if (random.nextInt(3) == 0) {
+        TableStatistics statistics = statistics(op);
+        BitSet argument = (BitSet) key.clone();
+        int entry = cache.put(argument, statistics);
+        // the key is copied
+        argument.set(NB_VARIABLES + 300);
+        reference.put(key, statistics);
+        assert cache.getEntropy(entry) == op : "entry " + entry + " of " + key;
+      } else {
+        TableStatistics expected = reference.get(key);
+        TableStatistics actual = cache.get(key);
+        assert expected == null ? actual == null : actual != null && same(expected, actual) : "values of " + key;
+        assert cache.containsKey(key) == (expected != null) : "containsKey " + key;
+      }
+      assert cache.size() == reference.size() : "size " + cache.size() + " != " + reference.size();
+    }
+    assert cache.getNbEvictions() == 0 : "evictions from an unbounded cache";
+    for (BitSet key : keys) {
+      int entry = cache.find(key);
+      TableStatistics expected = reference.get(key);
+      assert (entry >= 0) == (expected != null) : "find " + key;
+      if (entry >= 0) {
+        assert cache.getEntropy(entry) == expected.entropy && cache.getLengthData(entry) == expected.lengthData
+            && cache.getNbCells(entry) == expected.nbCells && cache.getNbNonEmptyCells(entry) == expected.nbNonEmptyCells : "entry of " + key;
+      }
+    }
+  }
+
+  private static void testBounded(int capacity) {
+    Random random = new Random(capacity);
+    List<BitSet> keys = keys(random);
+    StatisticsCache cache = new StatisticsCache();
+    cache.setCapacity(capacity);
+    Map<BitSet, TableStatistics> reference = new HashMap<BitSet, TableStatistics>();
+    // the last sets added to the cache (not merely updated)
+    LinkedList<BitSet> added = new LinkedList<BitSet>();
+    int window = Math.min(WINDOW, capacity - 1);
+    for (int op = 0; op < NB_OPERATIONS; op++) {
+      BitSet key = keys.get(random.nextInt(keys.size()));
+      if (random.nextInt(2) == 0) {
+        TableStatistics statistics = statistics(op);
+        boolean present = cache.containsKey(key);
+        cache.put(key, statistics);
+        reference.put(key, statistics);
+        assert same(statistics, cache.get(key)) : "capacity " + capacity + ": " + key + " just put";
+        if (!present) {
+          added.remove(key);
+          added.addFirst(key);
+          if (added.size() > window) {
+            added.removeLast();
+          }
+        }
+      } else {
+        TableStatistics actual = cache.get(key);
+        assert actual == null || same(reference.get(key), actual) : "capacity " + capacity + ": stale values of " + key;
+      }
+      assert cache.size() <= capacity : "capacity " + capacity + ": " + cache.size() + " entries";
+      for (BitSet last : added) {
+        assert cache.containsKey(last) : "capacity " + capacity + ": " + last + " evicted from the window";
+      }
+      if (op % 100 == 0) {
+        int nbFound = 0;
+        for (BitSet k : keys) {
+          if (cache.containsKey(k)) {
+            nbFound++;
+          }
+        }
+        assert nbFound == cache.size() : "capacity " + capacity + ": " + nbFound + " sets found, size " + cache.size();
+      }
+    }
+    assert cache.getNbEvictions() > 0 : "capacity " + capacity + ": no eviction";
+  }
+
+  private static void testSetCapacity() {
+    Random random = new Random(2);
+    List<BitSet> keys = keys(random);
+    StatisticsCache cache = new StatisticsCache();
+    for (int i = 0; i < keys.size(); i++) {
+      cache.put(keys.get(i), statistics(i));
+    }
+    int size = cache.size();
+    for (int capacity : new int[] { 200, 17, 3, 1 }) {
+      cache.setCapacity(capacity);
+      assert cache.size() == capacity : "capacity " + capacity + ": " + cache.size() + " entries";
+      assert cache.getNbEvictions() == size - capacity : "evictions " + cache.getNbEvictions();
+      for (int i = 0; i < keys.size(); i++) {
+        TableStatistics actual = cache.get(keys.get(i));
+        assert actual == null || same(statistics(i), actual) : "values of " + keys.get(i);
+      }
+    }
+  }
+
+  private static void testPinned() {
+    Random random = new Random(3);
+    List<BitSet> keys = keys(random);
+    int capacity = 5;
+    StatisticsCache cache = new StatisticsCache();
+    cache.setCapacity(capacity);
+    List<BitSet> pinned = keys.subList(0, 8);
+    for (int i = 0; i < pinned.size(); i++) {
+      cache.put(pinned.get(i), statistics(i));
+      cache.setPinned(pinned.get(i), true);
+    }
+    assert cache.size() == pinned.size() : "pinned entries evicted: " + cache.size();
+    for (int op = 0; op < 2000; op++) {
+      BitSet key = keys.get(pinned.size() + random.nextInt(keys.size() - pinned.size()));
+      cache.put(key, statistics(op));
+      assert cache.containsKey(key) : key + " just put";
+      assert cache.size() <= capacity + pinned.size() : cache.size() + " entries";
+    }
+    for (int i = 0; i < pinned.size(); i++) {
+      assert same(statistics(i), cache.get(pinned.get(i))) : "pinned " + pinned.get(i);
+    }
+    cache.unpinAll();
+    cache.trim();
+    assert cache.size() <= capacity : "after unpinning: " + cache.size() + " entries";
+  }
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package loader;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import core.TestData;
+import core.explorer.ChordalysisModellingSMT;
+import core.lattice.Lattice;
+import core.stats.EntropyComputer;
+
+/**
+ * Checks that collapsing the duplicate lines into weighted rows changes
+ * neither the counts nor the model.
+ */
+public final class RowDeduplicatorTest {
+
+  private RowDeduplicatorTest() {
+  }
+
+  public static void main(String[] args) {
+    Random random = new Random(9);
+    int[] dims = TestData.randomDims(random, 10, 2, 4);
+    int[][] data = TestData.randomData(random, dims, 4000, 0.5);
+
+    testDeduplicator(data);
+
+    ChordalysisModellingSMT baseline = new ChordalysisModellingSMT(LoadArrays.makeModelData(dims, data, false), 0.05);
+    ChordalysisModellingSMT collapsed = new ChordalysisModellingSMT(LoadArrays.makeModelData(dims, data, true), 0.05);
+    Lattice lattice = collapsed.getLattice();
+    assert lattice.getNbInstances() == data.length;
+    assert lattice.getNbRows() == distinctLines(data) : "one row per distinct line";
+
+    EntropyComputer expected = new EntropyComputer(baseline.getLattice());
+    EntropyComputer entropies = new EntropyComputer(lattice);
+    for (BitSet set : TestData.randomSets(random, dims.length, 300, 5)) {
+      assert Arrays.equals(baseline.getLattice().getNode(set).getMatrix(), lattice.getNode(set).getMatrix()) : "matrix of " + set;
+      TestData.assertClose(expected.computeEntropy(set), entropies.computeEntropy(set), 1e-12, "entropy of " + set);
+    }
+
+    baseline.buildModel();
+    collapsed.buildModel();
+    assert baseline.getModel().toString().equals(collapsed.getModel().toString());
+    System.out.println("RowDeduplicatorTest passed");
+  }
+
+  /** Ids and multiplicities of the distinct rows */
+  private static void testDeduplicator(int[][] data) {
+    RowDeduplicator deduplicator = new RowDeduplicator();
+    int[] ids = new int[data.length];
+    for (int i = 0; i < data.length; i++) {
+      ids[i] = deduplicator.add(data[i]);
+    }
+    int[] weights = deduplicator.getWeights();
+    assert weights.length == deduplicator.getNbRows();
+    int[] multiplicities = new int[weights.length];
+    for (int i = 0; i < data.length; i++) {
+      multiplicities[ids[i]]++;
+      // the first occurrence of a line gets the next id
+      assert ids[i] <= (i == 0 ? 0 : max(ids, i) + 1);
+      if (i > 0 && Arrays.equals(data[i], data[i - 1])) {
+        assert ids[i] == ids[i - 1];
+      }
+    }
+    assert Arrays.equals(multiplicities, weights);
+    assert deduplicator.getNbRows() == distinctLines(data);
+  }
+
+  private static int max(int[] values, int length) {
+    int max = values[0];
+    for (int i = 1; i < length; i++) {
+      max = Math.max(max, values[i]);
+    }
+    return max;
+  }
+
+  private static int distinctLines(int[][] data) {
+    Set<List<Integer>> lines = new HashSet<List<Integer>>();
+    for (int[] line : data) {
+      Integer[] values = new Integer[line.length];
+      for (int a = 0; a < line.length; a++) {
+        values[a] = line[a];
+      }
+      lines.add(Arrays.asList(values));
+    }
+    return lines.size();
+  }
+}
@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Francois Petitjean
+ *
+ * This file is part of Chordalysis.
+ *
+ * Chordalysis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * Chordalysis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Chordalysis.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package loader;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import core.TestData;
+import core.explorer.ChordalysisModellingSMT;
+import core.lattice.Lattice;
+import core.stats.EntropyComputer;
+
+/**
+ * Checks that reordering the rows (alone or with the collapse of the
+ * duplicate lines) changes neither the counts nor the model.
+ */
+public final class RowOrderingTest {
+
+  private RowOrderingTest() {
+  }
+
+  public static void main(String[] args) {
+    Random random = new Random(15);
+    int[] dims = TestData.randomDims(random, 10, 2, 5);
+    int[][] data = TestData.randomData(random, dims, 4000, 0.3);
+
+    testPermutation(data, dims);
+
+    ChordalysisModellingSMT baseline = new ChordalysisModellingSMT(LoadArrays.makeModelData(dims, data, false, false), 0.05);
+    ChordalysisModellingSMT reordered = new ChordalysisModellingSMT(LoadArrays.makeModelData(dims, data, false, true), 0.05);
+    ChordalysisModellingSMT both = new ChordalysisModellingSMT(LoadArrays.makeModelData(dims, data, true, true), 0.05);
+
+    EntropyComputer expected = new EntropyComputer(baseline.getLattice());
+    for (ChordalysisModellingSMT modeller : new ChordalysisModellingSMT[] { reordered, both }) {
+      Lattice lattice = modeller.getLattice();
+      assert lattice.getNbInstances() == data.length;
+      EntropyComputer entropies = new EntropyComputer(lattice);
+      for (BitSet set : TestData.randomSets(random, dims.length, 300, 5)) {
+        assert Arrays.equals(baseline.getLattice().getNode(set).getMatrix(), lattice.getNode(set).getMatrix()) : "matrix of " + set;
+        TestData.assertClose(expected.computeEntropy(set), entropies.computeEntropy(set), 1e-12, "entropy of " + set);
+      }
+    }
+
+    baseline.buildModel();
+    reordered.buildModel();
+    both.buildModel();
+    assert baseline.getModel().toString().equals(reordered.getModel().toString());
+    assert baseline.getModel().toString().equals(both.getModel().toString());
+    System.out.println("RowOrderingTest passed");
+  }
+
+  /** The order is a permutation of the rows that groups the equal lines */
+  private static void testPermutation(int[][] data, int[] dims) {
+    int[] order = RowOrdering.grayCodeOrder(data, dims);
+    assert order.length == data.length;
+    boolean[] seen = new boolean[data.length];
+    for (int row : order) {
+      assert !seen[row] : "row " + row + " appears twice";
+      seen[row] = true;
+    }
+    Map<String, Integer> lastPositions = new HashMap<String, Integer>();
+    for (int i = 0; i < order.length; i++) {
+      Integer last = lastPositions.put(Arrays.toString(data[order[i]]), i);
+      assert last == null || last == i - 1 : "the copies of line " + order[i] + " are not contiguous";
+    }
+    assert RowOrdering.grayCodeOrder(new int[0][], dims).length == 0;
+  }
+}